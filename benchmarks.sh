@@ -0,0 +1,10 @@
+# Builds and runs the JMH benchmarks in benchmarks/. JMH is not part of the source tree: set
+# JMH_LIB to a directory holding jmh-core, jmh-generator-annprocess, jopt-simple and
+# commons-math3 jars. Arguments are passed on to JMH, for example:
+# JMH_LIB=~/jmh ./benchmarks.sh FindTopmostShape -p numberOfShapes=1000
+# JMH_LIB=~/jmh ./benchmarks.sh -rf json -rff target/baseline.json
+JMH_CLASSPATH=$(echo "$JMH_LIB"/*.jar | tr ' ' ':')
+rm -rf target/benchmarks
+mkdir -p target/benchmarks
+javac -cp "$JMH_CLASSPATH" -processor org.openjdk.jmh.generators.BenchmarkProcessor -d target/benchmarks se/nohle/almapaint/*.java benchmarks/se/nohle/almapaint/*.java || exit 1
+java -cp "target/benchmarks:$JMH_CLASSPATH" org.openjdk.jmh.Main "$@"
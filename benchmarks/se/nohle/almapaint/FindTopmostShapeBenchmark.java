@@ -0,0 +1,75 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks ShapeManager.findTopmostShapeThatIncludesPoint on synthetic documents of 1k to 1M
+ * shapes. A random point is usually found among the topmost shapes, while a point outside all
+ * shapes makes the hit test look at every shape, which is the worst case.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class FindTopmostShapeBenchmark
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  /** The number of points. A power of two, so that the next one can be picked with a mask. */
+  private static final int NUMBER_OF_POINTS = 1024;
+
+  private static final CoordinatePair POINT_OUTSIDE_ALL_SHAPES = new CoordinatePair(-1000, -1000);
+
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  @Param({"1000", "10000", "100000", "1000000"})
+  public int numberOfShapes;
+
+  private ShapeManager shapeManager;
+  private CoordinatePair[] points;
+  private int index;
+
+  @Setup
+  public void setUp()
+  {
+    shapeManager = new ShapeManager();
+    shapeManager.addLoadedShapes(SyntheticDocument.createShapes(numberOfShapes, 1));
+    points = SyntheticDocument.createPoints(NUMBER_OF_POINTS, 2);
+  }
+
+  @Benchmark
+  public ShapeAndDragTypeTuple randomPoint()
+  {
+    index = (index + 1) & (NUMBER_OF_POINTS - 1);
+    return shapeManager.findTopmostShapeThatIncludesPoint(points[index], true);
+  }
+
+  @Benchmark
+  public ShapeAndDragTypeTuple pointOutsideAllShapes()
+  {
+    return shapeManager.findTopmostShapeThatIncludesPoint(POINT_OUTSIDE_ALL_SHAPES, true);
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks the geometry functions of Utilities that the hit tests of the shapes are built on.
+ * Each call takes the next of a fixed set of inputs, so that the JIT cannot fold the result.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GeometryBenchmark
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  /** The number of inputs. A power of two, so that the next one can be picked with a mask. */
+  private static final int NUMBER_OF_INPUTS = 1024;
+
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  private CoordinatePair[] points;
+
+  /** The start and end points of the lines, four coordinates per line. */
+  private int[] lines;
+
+  /** The top left corner, width and height of the rectangles, four values per rectangle. */
+  private int[] rectangles;
+
+  private int index;
+
+  @Setup
+  public void setUp()
+  {
+    points = SyntheticDocument.createPoints(NUMBER_OF_INPUTS, 1);
+    Random random = new Random(2);
+    lines = new int[4 * NUMBER_OF_INPUTS];
+    rectangles = new int[4 * NUMBER_OF_INPUTS];
+    for (int i = 0; i < NUMBER_OF_INPUTS; i++)
+    {
+      // Around the point, so that both short and long distances occur.
+      CoordinatePair point = points[i];
+      lines[4 * i] = point.x + random.nextInt(201) - 100;
+      lines[4 * i + 1] = point.y + random.nextInt(201) - 100;
+      lines[4 * i + 2] = point.x + random.nextInt(201) - 100;
+      lines[4 * i + 3] = point.y + random.nextInt(201) - 100;
+      rectangles[4 * i] = point.x - random.nextInt(100);
+      rectangles[4 * i + 1] = point.y - random.nextInt(100);
+      rectangles[4 * i + 2] = random.nextInt(150);
+      rectangles[4 * i + 3] = random.nextInt(150);
+    }
+  }
+
+  @Benchmark
+  public double distanceBetweenLineAndPoint()
+  {
+    int i = nextIndex();
+    return Utilities.distanceBetweenLineAndPoint(lines[4 * i], lines[4 * i + 1], lines[4 * i + 2],
+      lines[4 * i + 3], points[i]);
+  }
+
+  @Benchmark
+  public boolean pointInRectangle()
+  {
+    int i = nextIndex();
+    return Utilities.pointInRectangle(points[i], rectangles[4 * i], rectangles[4 * i + 1],
+      rectangles[4 * i + 2], rectangles[4 * i + 3]);
+  }
+
+  private int nextIndex()
+  {
+    index = (index + 1) & (NUMBER_OF_INPUTS - 1);
+    return index;
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks FileHandler.load on synthetic documents of 100k and 1M shapes, which are saved in
+ * chunks, with fork/join pools of 1 to 8 threads, to show how decoding the chunks scales with
+ * the number of cores. The shapes are handed over in batches, with the top left quarter of the
+ * canvas as the viewport, the way the editor loads a document.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class LoadBenchmark
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  private static final int BATCH_SIZE = 1024;
+  private static final Rectangle VIEWPORT =
+    new Rectangle(0, 0, SyntheticDocument.CANVAS_WIDTH / 2, SyntheticDocument.CANVAS_HEIGHT / 2);
+
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  @Param({"100000", "1000000"})
+  public int numberOfShapes;
+
+  @Param({"1", "2", "4", "8"})
+  public int poolSize;
+
+  private File document;
+  private ForkJoinPool pool;
+
+  @Setup
+  public void setUp()
+    throws IOException
+  {
+    List<DrawableShape> shapes = SyntheticDocument.createShapes(numberOfShapes, 1);
+    for (int i = 0; i < shapes.size(); i++)
+    {
+      shapes.get(i).setShapeId(i + 1);
+    }
+
+    document = File.createTempFile("LoadBenchmark", ".aar");
+    FileHandler.save(document, shapes);
+    pool = new ForkJoinPool(poolSize);
+  }
+
+  @TearDown
+  public void tearDown()
+    throws IOException
+  {
+    pool.shutdown();
+    Files.deleteIfExists(document.toPath());
+  }
+
+  @Benchmark
+  public int load()
+    throws IOException, ClassNotFoundException
+  {
+    int[] numberOfShapesLoaded = new int[1];
+    FileHandler.load(document, VIEWPORT, BATCH_SIZE, pool,
+      (shapes, positions, numberOfShapesLoadedSoFar, numberOfShapesInFile) ->
+      {
+        numberOfShapesLoaded[0] = numberOfShapesLoadedSoFar;
+        return true;
+      });
+    return numberOfShapesLoaded[0];
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks isPointIncluded and isPointInResizeArea of every type of shape. Each fork tests one
+ * type, against points near the shapes so that both hits and misses occur. Only selected shapes
+ * have resize areas, so isPointInResizeArea is run on selected copies of the shapes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ShapeHitTestBenchmark
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  /** The number of shapes and points. A power of two, so that the next one can be picked with a mask. */
+  private static final int NUMBER_OF_INPUTS = 1024;
+
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  /** The name of a SyntheticDocument.ShapeType, as JMH cannot reach the package private enum. */
+  @Param({"RECTANGLE", "FILLED_RECTANGLE", "LINE", "CIRCLE", "FILLED_CIRCLE", "FREEHAND"})
+  public String shapeType;
+
+  private DrawableShape[] shapes;
+  private DrawableShape[] selectedShapes;
+  private CoordinatePair[] points;
+  private int index;
+
+  @Setup
+  public void setUp()
+  {
+    List<DrawableShape> shapeList =
+      SyntheticDocument.createShapes(SyntheticDocument.ShapeType.valueOf(shapeType), NUMBER_OF_INPUTS, 1);
+    shapes = shapeList.toArray(new DrawableShape[0]);
+    selectedShapes = new DrawableShape[NUMBER_OF_INPUTS];
+    for (int i = 0; i < NUMBER_OF_INPUTS; i++)
+    {
+      selectedShapes[i] = shapes[i].createClone();
+      selectedShapes[i].select();
+    }
+    points = SyntheticDocument.createPointsNear(shapeList, NUMBER_OF_INPUTS, 2);
+  }
+
+  @Benchmark
+  public boolean isPointIncluded()
+  {
+    int i = nextIndex();
+    return shapes[i].isPointIncluded(points[i]);
+  }
+
+  @Benchmark
+  public boolean isPointInResizeArea()
+  {
+    int i = nextIndex();
+    return selectedShapes[i].isPointInResizeArea(points[i]);
+  }
+
+  private int nextIndex()
+  {
+    index = (index + 1) & (NUMBER_OF_INPUTS - 1);
+    return index;
+  }
+}
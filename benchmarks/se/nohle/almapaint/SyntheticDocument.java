@@ -0,0 +1,184 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Creates synthetic documents and points for the benchmarks. The same seed always gives the same
+ * shapes, so that results from different runs can be compared.
+ *
+ * The shapes are spread over a canvas of a fixed size, as a document grows by getting denser
+ * rather than larger. Most shapes are outlines, which only include the points close to their
+ * edges, so a hit test often has to look at many shapes before it finds one.
+ */
+class SyntheticDocument
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  static final int CANVAS_WIDTH = 4000;
+  static final int CANVAS_HEIGHT = 3000;
+
+  /** The number of points of each freehand shape. */
+  static final int FREEHAND_POINTS = 16;
+
+  private static final Color[] COLORS = {Color.BLACK, Color.RED, Color.GREEN, Color.BLUE};
+
+  /** The types of shape a document is made of, in equal numbers. */
+  enum ShapeType
+  {
+    RECTANGLE, FILLED_RECTANGLE, LINE, CIRCLE, FILLED_CIRCLE, FREEHAND
+  }
+
+  private SyntheticDocument()
+  {
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Creates a document with shapes of all types, interleaved.
+   *
+   * @param numberOfShapes The number of shapes.
+   * @param seed The seed of the random generator.
+   * @return The shapes, the bottom-most first.
+   */
+  static List<DrawableShape> createShapes(int numberOfShapes, long seed)
+  {
+    Random random = new Random(seed);
+    ShapeType[] shapeTypes = ShapeType.values();
+    List<DrawableShape> shapes = new ArrayList<>(numberOfShapes);
+    for (int i = 0; i < numberOfShapes; i++)
+    {
+      shapes.add(createShape(shapeTypes[i % shapeTypes.length], random));
+    }
+
+    return shapes;
+  }
+
+  /**
+   * Creates shapes of one type.
+   *
+   * @param shapeType The type of the shapes.
+   * @param numberOfShapes The number of shapes.
+   * @param seed The seed of the random generator.
+   * @return The shapes.
+   */
+  static List<DrawableShape> createShapes(ShapeType shapeType, int numberOfShapes, long seed)
+  {
+    Random random = new Random(seed);
+    List<DrawableShape> shapes = new ArrayList<>(numberOfShapes);
+    for (int i = 0; i < numberOfShapes; i++)
+    {
+      shapes.add(createShape(shapeType, random));
+    }
+
+    return shapes;
+  }
+
+  /**
+   * Creates points spread over the canvas.
+   *
+   * @param numberOfPoints The number of points.
+   * @param seed The seed of the random generator.
+   * @return The points.
+   */
+  static CoordinatePair[] createPoints(int numberOfPoints, long seed)
+  {
+    Random random = new Random(seed);
+    CoordinatePair[] points = new CoordinatePair[numberOfPoints];
+    for (int i = 0; i < numberOfPoints; i++)
+    {
+      points[i] = new CoordinatePair(random.nextInt(CANVAS_WIDTH), random.nextInt(CANVAS_HEIGHT));
+    }
+
+    return points;
+  }
+
+  /**
+   * Creates points close to the shapes, so that a share of them hit the shape they were made for.
+   *
+   * @param shapes The shapes. Point i is made for shape i modulo the number of shapes.
+   * @param numberOfPoints The number of points.
+   * @param seed The seed of the random generator.
+   * @return The points.
+   */
+  static CoordinatePair[] createPointsNear(List<DrawableShape> shapes, int numberOfPoints, long seed)
+  {
+    Random random = new Random(seed);
+    CoordinatePair[] points = new CoordinatePair[numberOfPoints];
+    for (int i = 0; i < numberOfPoints; i++)
+    {
+      Rectangle bounds = shapes.get(i % shapes.size()).getBounds();
+      points[i] = new CoordinatePair(bounds.x + random.nextInt(bounds.width + 1),
+        bounds.y + random.nextInt(bounds.height + 1));
+    }
+
+    return points;
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PRIVATE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  private static DrawableShape createShape(ShapeType shapeType, Random random)
+  {
+    Color color = COLORS[random.nextInt(COLORS.length)];
+    int strokeWidth = 1 + random.nextInt(4);
+    int x = random.nextInt(CANVAS_WIDTH);
+    int y = random.nextInt(CANVAS_HEIGHT);
+    int width = 5 + random.nextInt(100);
+    int height = 5 + random.nextInt(100);
+
+    switch (shapeType)
+    {
+      case RECTANGLE:
+        return new RectangleShape(color, x, y, width, height, false, strokeWidth);
+      case FILLED_RECTANGLE:
+        return new RectangleShape(color, x, y, width, height, true, strokeWidth);
+      case LINE:
+        // Sloping up as often as down.
+        return new LineShape(color, x, y, x + width, y + height - 55, strokeWidth, false);
+      case CIRCLE:
+        return new CircleShape(color, new CoordinatePair(x, y), width / 2, false, strokeWidth, false);
+      case FILLED_CIRCLE:
+        return new CircleShape(color, new CoordinatePair(x, y), width / 2, true, strokeWidth, false);
+      default:
+        List<CoordinatePair> points = new ArrayList<>(FREEHAND_POINTS);
+        for (int i = 0; i < FREEHAND_POINTS; i++)
+        {
+          points.add(new CoordinatePair(x, y));
+          x += random.nextInt(17) - 8;
+          y += random.nextInt(17) - 8;
+        }
+        return new FreehandShape(color, strokeWidth, points);
+    }
+  }
+}
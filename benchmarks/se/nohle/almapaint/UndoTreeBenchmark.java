@@ -0,0 +1,126 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks UndoTree on trees of 1k to 100k nodes, in three shapes: a deep chain that is undone
+ * and redone from end to end, a wide fork at the root whose branches are switched between, and
+ * two deep branches that fork at the root, so that switching between them walks the whole tree.
+ * The commands execute to themselves, so only the tree itself is measured.
+ *
+ * buildChain measures the memory footprint of the tree: run it with -prof gc, and
+ * gc.alloc.rate.norm divided by numberOfNodes is the number of bytes a node takes, since
+ * everything it allocates is kept by the tree.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class UndoTreeBenchmark
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  private static final Object COMMAND = new Object();
+  private static final UndoTree.CommandExecutor<Object> EXECUTOR = command -> command;
+
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  @Param({"1000", "10000", "100000"})
+  public int numberOfNodes;
+
+  private UndoTree<Object> deepChain;
+  private UndoTree<Object> wideFork;
+  private UndoTree<Object> distantBranches;
+
+  @Setup
+  public void setUp()
+  {
+    deepChain = buildChain();
+
+    wideFork = new UndoTree<>();
+    for (int i = 0; i < numberOfNodes; i++)
+    {
+      if (wideFork.canUndo())
+      {
+        wideFork.undo(EXECUTOR);
+      }
+      wideFork.add(COMMAND);
+    }
+
+    distantBranches = new UndoTree<>();
+    for (int i = 0; i < numberOfNodes / 2; i++)
+    {
+      distantBranches.add(COMMAND);
+    }
+    while (distantBranches.canUndo())
+    {
+      distantBranches.undo(EXECUTOR);
+    }
+    for (int i = numberOfNodes / 2; i < numberOfNodes; i++)
+    {
+      distantBranches.add(COMMAND);
+    }
+  }
+
+  @Benchmark
+  public int undoAndRedoDeepChain()
+  {
+    while (deepChain.canUndo())
+    {
+      deepChain.undo(EXECUTOR);
+    }
+    while (deepChain.canRedo())
+    {
+      deepChain.redo(EXECUTOR);
+    }
+    return deepChain.getUndoDepth();
+  }
+
+  @Benchmark
+  public int switchBranchAtWideFork()
+  {
+    wideFork.switchToAdjacentBranch(1, EXECUTOR);
+    return wideFork.getUndoDepth();
+  }
+
+  @Benchmark
+  public int switchBetweenDistantBranches()
+  {
+    distantBranches.switchToAdjacentBranch(1, EXECUTOR);
+    return distantBranches.getUndoDepth();
+  }
+
+  @Benchmark
+  public UndoTree<Object> buildChain()
+  {
+    UndoTree<Object> undoTree = new UndoTree<>();
+    for (int i = 0; i < numberOfNodes; i++)
+    {
+      undoTree.add(COMMAND);
+    }
+    return undoTree;
+  }
+}
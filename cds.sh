@@ -0,0 +1,4 @@
+# Records the classes loaded at startup in a class data sharing archive. Run build.sh first.
+# Start the application with the archive like this:
+# java -XX:SharedArchiveFile=target/almapaint.jsa -cp target se.nohle.almapaint.MainFrame
+java -XX:ArchiveClassesAtExit=target/almapaint.jsa -Dalmapaint.exitAfterStartup=true -cp target se.nohle.almapaint.MainFrame
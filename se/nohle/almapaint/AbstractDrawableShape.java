@@ -31,6 +31,9 @@ abstract class AbstractDrawableShape implements DrawableShape
   protected Color color;
   protected transient CoordinatePair resizeVector;
   protected transient CoordinatePair translationVector;
+
+  /** Identifies this shape among the managed shapes. Assigned by ShapeManager, 0 if not assigned. */
+  private transient int shapeId;
   private final static long serialVersionUID = 123457890L;
 
   /** Is this shape selected? */
@@ -153,6 +156,41 @@ abstract class AbstractDrawableShape implements DrawableShape
     translationVector = null;
   }
   
+  /**
+   * Sets the color used to draw this shape.
+   *
+   * @param color The new color.
+   */
+  @Override
+  public void setColor(Color color)
+  {
+    this.color = color;
+  }
+
+  @Override
+  public Color getColor()
+  {
+    return color;
+  }
+
+  @Override
+  public int getStrokeWidth()
+  {
+    return strokeWidth;
+  }
+
+  @Override
+  public int getShapeId()
+  {
+    return shapeId;
+  }
+
+  @Override
+  public void setShapeId(int shapeId)
+  {
+    this.shapeId = shapeId;
+  }
+
   /**
    * Creates a clone of this shape.
    *
@@ -207,6 +245,23 @@ abstract class AbstractDrawableShape implements DrawableShape
     return rectWidthAndHight;
   }
 
+  /**
+   * Creates bounds from the extreme coordinates of a shape, padded to include the pen and
+   * the selection markers.
+   *
+   * @param minX The smallest x coordinate of the shape.
+   * @param minY The smallest y coordinate of the shape.
+   * @param maxX The largest x coordinate of the shape.
+   * @param maxY The largest y coordinate of the shape.
+   * @return The padded bounds.
+   */
+  protected Rectangle createPaddedBounds(int minX, int minY, int maxX, int maxY)
+  {
+    int padding = Math.max(strokeWidth, getWidthOfMarkerSquare()) / 2 + 1;
+    return new Rectangle(minX - padding, minY - padding,
+      maxX - minX + 2 * padding, maxY - minY + 2 * padding);
+  }
+
   //----------------------------------------------------------
   // PRIVATE METHODS.
   //---------------------------------------------------------- 
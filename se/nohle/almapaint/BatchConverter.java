@@ -0,0 +1,408 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Headless command line entry point that processes many .aar files at once: rewrites them in the
+ * current format, which converts documents saved in older formats, and exports them as SVG
+ * images and PNG thumbnails.
+ *
+ * Files are processed concurrently by a pool of threads, more of them than there are processors
+ * so that reading and writing files overlaps with computing. Rendering is CPU bound, so the
+ * number of files being rendered at once is limited to the number of processors. The documents
+ * loaded at once are limited by an estimate of the heap they take. The time spent
+ * on each file is printed when the file is done, and the throughput at the end.
+ */
+public class BatchConverter
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  private static final String USAGE =
+    "Usage: java se.nohle.almapaint.BatchConverter [options] <directory or glob>...\n" +
+    "Options:\n" +
+    "  --convert           Rewrite the files in the current format\n" +
+    "  --compress          Compress the rewritten files\n" +
+    "  --svg               Export the files as SVG images\n" +
+    "  --thumbnail <size>  Export the files as PNG images at most size pixels wide and high\n" +
+    "  --output <dir>      Write to this directory instead of next to the files\n" +
+    "  --threads <n>       Process this many files at once";
+
+  private static final String AAR_SUFFIX = ".aar";
+  private static final int EXIT_FAILURE = 1;
+  private static final int EXIT_USAGE = 2;
+
+  /**
+   * Rough number of bytes a loaded document takes on the heap per byte of its file. Compressed
+   * files take more, so this errs on the high side for uncompressed ones.
+   */
+  private static final int HEAP_BYTES_PER_FILE_BYTE = 16;
+
+  /** The unit of the memory permits. */
+  private static final int BYTES_PER_MEMORY_PERMIT = 1024;
+
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  private boolean convert;
+  private boolean compress;
+  private boolean exportSvg;
+  private int thumbnailSize;
+  private Path outputDirectory;
+  private int numberOfThreads = 4 * Runtime.getRuntime().availableProcessors();
+  private final List<String> inputs = new ArrayList<>();
+
+  private final Semaphore renderingPermits = new Semaphore(Runtime.getRuntime().availableProcessors());
+
+  /**
+   * Limits the estimated heap used by the documents loaded at once to half of the heap, as the
+   * threads are many more than the processors. Fair, so that a large document is not starved by
+   * small ones.
+   */
+  private final int numberOfMemoryPermits =
+    (int)Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 2 / BYTES_PER_MEMORY_PERMIT);
+  private final Semaphore memoryPermits = new Semaphore(numberOfMemoryPermits, true);
+  private final AtomicInteger numberOfFailedFiles = new AtomicInteger();
+  private final AtomicLong numberOfShapes = new AtomicLong();
+  private final AtomicLong numberOfBytes = new AtomicLong();
+
+  private BatchConverter()
+  {
+  }
+
+  /**
+   * M A I N
+   */
+  public static void main(String[] args)
+    throws InterruptedException
+  {
+    // Must be set before anything from AWT is loaded.
+    System.setProperty("java.awt.headless", "true");
+
+    BatchConverter converter = new BatchConverter();
+    if (!converter.parseArguments(args))
+    {
+      System.err.println(USAGE);
+      System.exit(EXIT_USAGE);
+    }
+
+    List<Path> files;
+    try
+    {
+      files = converter.findFiles();
+    }
+    catch (IOException | InvalidPathException e)
+    {
+      System.err.println("Cannot list files: " + e.getMessage());
+      System.exit(EXIT_FAILURE);
+      return;
+    }
+
+    if (!converter.processFiles(files))
+    {
+      System.exit(EXIT_FAILURE);
+    }
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PRIVATE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * @return false if the arguments are invalid.
+   */
+  private boolean parseArguments(String[] args)
+  {
+    try
+    {
+      for (int i = 0; i < args.length; i++)
+      {
+        switch (args[i])
+        {
+          case "--convert":
+            convert = true;
+            break;
+          case "--compress":
+            compress = true;
+            break;
+          case "--svg":
+            exportSvg = true;
+            break;
+          case "--thumbnail":
+            thumbnailSize = Integer.parseInt(args[++i]);
+            if (thumbnailSize <= 0)
+            {
+              return false;
+            }
+            break;
+          case "--output":
+            outputDirectory = Paths.get(args[++i]);
+            break;
+          case "--threads":
+            numberOfThreads = Integer.parseInt(args[++i]);
+            if (numberOfThreads <= 0)
+            {
+              return false;
+            }
+            break;
+          default:
+            if (args[i].startsWith("--"))
+            {
+              return false;
+            }
+            inputs.add(args[i]);
+            break;
+        }
+      }
+    }
+    catch (ArrayIndexOutOfBoundsException | NumberFormatException | InvalidPathException e)
+    {
+      return false;
+    }
+
+    return !inputs.isEmpty() && (convert || exportSvg || thumbnailSize > 0);
+  }
+
+  /**
+   * Finds the .aar files of the directories, and the files that match the globs, among the
+   * inputs.
+   */
+  private List<Path> findFiles()
+    throws IOException
+  {
+    List<Path> files = new ArrayList<>();
+    for (String input : inputs)
+    {
+      int firstGlobCharacter = indexOfGlobCharacter(input);
+      if (firstGlobCharacter < 0)
+      {
+        Path path = Paths.get(input);
+        if (Files.isDirectory(path))
+        {
+          files.addAll(listFiles(path, file -> file.getFileName().toString().endsWith(AAR_SUFFIX)));
+        }
+        else
+        {
+          files.add(path);
+        }
+      }
+      else
+      {
+        // Only the directory before the first glob character needs to be searched.
+        int lastSeparator = input.lastIndexOf(File.separatorChar, firstGlobCharacter);
+        Path directory = Paths.get(lastSeparator < 0 ? "." : input.substring(0, lastSeparator + 1));
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input);
+        files.addAll(listFiles(directory, file -> matcher.matches(lastSeparator < 0 ? directory.relativize(file) : file)));
+      }
+    }
+
+    return files;
+  }
+
+  private static int indexOfGlobCharacter(String input)
+  {
+    for (int i = 0; i < input.length(); i++)
+    {
+      if ("*?[{".indexOf(input.charAt(i)) >= 0)
+      {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  private static List<Path> listFiles(Path directory, PathMatcher matcher)
+    throws IOException
+  {
+    try (Stream<Path> paths = Files.walk(directory))
+    {
+      return paths.filter(Files::isRegularFile).filter(matcher::matches).sorted().collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Processes the files concurrently, printing the time spent on each and the throughput.
+   *
+   * @return true if all files were processed successfully.
+   */
+  private boolean processFiles(List<Path> files)
+    throws InterruptedException
+  {
+    long startTime = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(numberOfThreads, Math.max(1, files.size())));
+    try
+    {
+      for (Path file : files)
+      {
+        executor.execute(() -> processFile(file));
+      }
+    }
+    finally
+    {
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+    System.out.println(String.format(Locale.ROOT,
+      "%d files (%d failed), %d shapes, %.1f MB in %.2f s: %.1f files/s, %.0f shapes/s, %.1f MB/s",
+      files.size(), numberOfFailedFiles.get(), numberOfShapes.get(), numberOfBytes.get() / 1e6, seconds,
+      files.size() / seconds, numberOfShapes.get() / seconds, numberOfBytes.get() / 1e6 / seconds));
+
+    return numberOfFailedFiles.get() == 0;
+  }
+
+  /**
+   * Processes one file. Run by a thread of the pool.
+   */
+  private void processFile(Path file)
+  {
+    StringBuilder report = new StringBuilder(file.toString()).append(':');
+    long startTime = System.nanoTime();
+    int memoryPermitsHeld = 0;
+    try
+    {
+      long fileSize = Files.size(file);
+
+      // A document larger than the limit is processed when no other one is loaded.
+      int memoryPermitsNeeded = (int)Math.min(numberOfMemoryPermits,
+        fileSize * HEAP_BYTES_PER_FILE_BYTE / BYTES_PER_MEMORY_PERMIT + 1);
+      memoryPermits.acquire(memoryPermitsNeeded);
+      memoryPermitsHeld = memoryPermitsNeeded;
+      startTime = System.nanoTime();
+
+      List<DrawableShape> shapes = FileHandler.load(file.toFile());
+      report.append(' ').append(shapes.size()).append(" shapes,");
+      startTime = reportTime(report, "load", startTime);
+      numberOfShapes.addAndGet(shapes.size());
+      numberOfBytes.addAndGet(fileSize);
+
+      if (convert)
+      {
+        FileHandler.save(outputFile(file, AAR_SUFFIX).toFile(), shapes,
+          compress ? FileHandler.DEFAULT_COMPRESSION_LEVEL : FileHandler.NO_COMPRESSION,
+          (numberOfShapesSaved, numberOfShapesToSave) -> true);
+        startTime = reportTime(report, "convert", startTime);
+      }
+
+      if (exportSvg || thumbnailSize > 0)
+      {
+        Dimension size = getSize(shapes);
+        renderingPermits.acquire();
+        try
+        {
+          if (exportSvg)
+          {
+            SvgExporter.export(outputFile(file, ".svg").toFile(), shapes, size);
+            startTime = reportTime(report, "svg", startTime);
+          }
+          if (thumbnailSize > 0)
+          {
+            double scale = Math.min(1.0, (double)thumbnailSize / Math.max(size.width, size.height));
+            PngExporter.export(outputFile(file, ".png").toFile(), shapes, size, scale);
+            startTime = reportTime(report, "thumbnail", startTime);
+          }
+        }
+        finally
+        {
+          renderingPermits.release();
+        }
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      numberOfFailedFiles.incrementAndGet();
+      report.append(" interrupted");
+    }
+    catch (Throwable e)
+    {
+      // Also errors such as OutOfMemoryError, or the file would not be counted as failed.
+      numberOfFailedFiles.incrementAndGet();
+      report.append(" failed: ").append(e);
+    }
+    finally
+    {
+      memoryPermits.release(memoryPermitsHeld);
+    }
+
+    System.out.println(report);
+  }
+
+  /**
+   * Appends the time since a start time to a report.
+   *
+   * @return The current time, the start time of the next step.
+   */
+  private static long reportTime(StringBuilder report, String step, long startTime)
+  {
+    long now = System.nanoTime();
+    report.append(' ').append(step).append(' ').append((now - startTime) / 1000000).append(" ms");
+    return now;
+  }
+
+  /**
+   * Returns the file to write the output of a step to: a file named after the input file, but
+   * with the specified suffix, in the output directory or else next to the input file.
+   */
+  private Path outputFile(Path file, String suffix)
+  {
+    String name = file.getFileName().toString();
+    if (name.endsWith(AAR_SUFFIX))
+    {
+      name = name.substring(0, name.length() - AAR_SUFFIX.length());
+    }
+    name += suffix;
+
+    return outputDirectory != null ? outputDirectory.resolve(name) : file.resolveSibling(name);
+  }
+
+  /**
+   * Returns the size of the drawing area that holds the shapes, which documents do not record.
+   */
+  private static Dimension getSize(List<DrawableShape> shapes)
+  {
+    int width = 1;
+    int height = 1;
+    for (DrawableShape shape : shapes)
+    {
+      Rectangle bounds = shape.getBounds();
+      width = Math.max(width, bounds.x + bounds.width);
+      height = Math.max(height, bounds.y + bounds.height);
+    }
+
+    return new Dimension(width, height);
+  }
+}
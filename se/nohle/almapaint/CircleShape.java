@@ -26,12 +26,13 @@ import static se.nohle.almapaint.Utilities.pointInRectangle;
  */
 class CircleShape extends AbstractDrawableShape
 {
+  private final static long serialVersionUID = -8898569175906416322L;
+
   private enum CircleResizeArea
   {
     TOP, RIGHT, BOTTOM, LEFT
   }
 
-  private final Color color; 
   private int topLeftX; 
   private int topLeftY; 
   private CoordinatePair centerPoint;
@@ -54,8 +55,7 @@ class CircleShape extends AbstractDrawableShape
               boolean fill, int strokeWidth, boolean selected)
   {
     super(strokeWidth, color, selected);
-        
-    this.color = color;
+
     this.fill = fill;
     this.centerPoint = centerPoint;
     this.radius = radius;
@@ -229,6 +229,33 @@ class CircleShape extends AbstractDrawableShape
     super.incorporateResizeVector();
   }
 
+  /**
+   * Returns a rectangle that encloses this shape.
+   *
+   * @return The bounds of this shape.
+   */
+  @Override
+  public Rectangle getBounds()
+  {
+    return createPaddedBounds(centerPoint.x - radius, centerPoint.y - radius,
+      centerPoint.x + radius, centerPoint.y + radius);
+  }
+
+  CoordinatePair getCenterPoint()
+  {
+    return centerPoint;
+  }
+
+  int getRadius()
+  {
+    return radius;
+  }
+
+  boolean isFilled()
+  {
+    return fill;
+  }
+
   /**
    * Creates a clone of this shape.
    *
@@ -18,7 +18,9 @@
  */
 package se.nohle.almapaint;
 
+import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Rectangle;
 import java.io.Serializable;
 
 /**
@@ -55,6 +57,14 @@ public interface DrawableShape extends Serializable, Cloneable
    */
   public void setSelectedResizeArea(CoordinatePair point);
 
+  /**
+   * Should return a rectangle that encloses this shape, including its selection markers.
+   * Translation and resize vectors are not taken into account.
+   *
+   * @return The bounds of this shape.
+   */
+  public Rectangle getBounds();
+
   /**
    * Should set the resize vector to use when drawing this shape.
    *
@@ -81,6 +91,42 @@ public interface DrawableShape extends Serializable, Cloneable
    */
   public void incorporateTranslationVector();
 
+  /**
+   * Should set the color used to draw this shape.
+   *
+   * @param color The new color.
+   */
+  public void setColor(Color color);
+
+  /**
+   * Should return the color used to draw this shape.
+   *
+   * @return The color.
+   */
+  public Color getColor();
+
+  /**
+   * Should return the width of the pen used to draw this shape.
+   *
+   * @return The stroke width.
+   */
+  public int getStrokeWidth();
+
+  /**
+   * Should return the ID that identifies this shape among the managed shapes. A clone that replaces
+   * a shape keeps the ID of the shape it replaces.
+   *
+   * @return The ID of this shape, or 0 if no ID has been assigned yet.
+   */
+  public int getShapeId();
+
+  /**
+   * Should set the ID that identifies this shape among the managed shapes.
+   *
+   * @param shapeId The ID.
+   */
+  public void setShapeId(int shapeId);
+
   /**
    * Creates a clone of this shape.
    *
@@ -0,0 +1,285 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.swing.SwingUtilities;
+
+/**
+ * Exposes metrics of the editor as an MXBean, so that a long-running session can be watched
+ * with a JMX client such as JConsole.
+ *
+ * The latency histograms and cache counters are static, so that the classes that record to them
+ * need no reference to this class, and may be updated from any thread without locking. The
+ * shapes and the undo history belong to the EDT, so they are read there, on demand. The shapes
+ * are counted in place rather than through a snapshot, since a snapshot would make the next edit
+ * copy the whole list of shapes.
+ */
+class EditorMetrics implements EditorMetricsMXBean
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  static final LatencyHistogram PAINT_LATENCY = new LatencyHistogram();
+  static final LatencyHistogram HIT_TEST_LATENCY = new LatencyHistogram();
+  static final HitCounter BOUNDS_CACHE = new HitCounter();
+  static final HitCounter THUMBNAIL_CACHE = new HitCounter();
+
+  private static final String OBJECT_NAME = "se.nohle.almapaint:type=EditorMetrics";
+
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  private final ShapePanel shapePanel;
+
+  /**
+   * Constructor
+   *
+   * @param shapePanel The panel whose shapes and undo history to expose.
+   */
+  private EditorMetrics(ShapePanel shapePanel)
+  {
+    this.shapePanel = shapePanel;
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Registers the metrics of a panel with the platform MBean server. Loads the management
+   * classes, so it should not be called while the application starts.
+   *
+   * @param shapePanel The panel whose shapes and undo history to expose.
+   */
+  static void register(ShapePanel shapePanel)
+  {
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new EditorMetrics(shapePanel),
+        new ObjectName(OBJECT_NAME));
+    }
+    catch (JMException e)
+    {
+      e.printStackTrace();
+    }
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PUBLIC METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  @Override
+  public Map<String, Integer> getShapeCountsByType()
+  {
+    return readOnEventDispatchThread(() ->
+      {
+        // Counted per class first, so that the name of each class is looked up only once.
+        Map<Class<?>, Integer> shapeCountsByClass = new HashMap<>();
+        for (DrawableShape shape : shapePanel.getShapes())
+        {
+          shapeCountsByClass.merge(shape.getClass(), 1, Integer::sum);
+        }
+
+        Map<String, Integer> shapeCounts = new TreeMap<>();
+        shapeCountsByClass.forEach((shapeClass, count) -> shapeCounts.put(shapeClass.getSimpleName(), count));
+        return shapeCounts;
+      });
+  }
+
+  @Override
+  public long getTotalPoints()
+  {
+    return readOnEventDispatchThread(() ->
+      {
+        long numberOfPoints = 0;
+        for (DrawableShape shape : shapePanel.getShapes())
+        {
+          if (shape instanceof FreehandShape)
+          {
+            numberOfPoints += ((FreehandShape)shape).getNumberOfPoints();
+          }
+        }
+
+        return numberOfPoints;
+      });
+  }
+
+  @Override
+  public int getUndoDepth()
+  {
+    return readOnEventDispatchThread(shapePanel::getUndoDepth);
+  }
+
+  @Override
+  public int getRedoDepth()
+  {
+    return readOnEventDispatchThread(shapePanel::getRedoDepth);
+  }
+
+  @Override
+  public long getEstimatedUndoHistoryBytes()
+  {
+    return readOnEventDispatchThread(shapePanel::estimateUndoHistoryBytes);
+  }
+
+  @Override
+  public double getBoundsCacheHitRate()
+  {
+    return BOUNDS_CACHE.getHitRate();
+  }
+
+  @Override
+  public double getThumbnailCacheHitRate()
+  {
+    return THUMBNAIL_CACHE.getHitRate();
+  }
+
+  @Override
+  public long getPaintCount()
+  {
+    return PAINT_LATENCY.getCount();
+  }
+
+  @Override
+  public double getPaintLatencyP50()
+  {
+    return PAINT_LATENCY.getPercentile(50) / 1e6;
+  }
+
+  @Override
+  public double getPaintLatencyP99()
+  {
+    return PAINT_LATENCY.getPercentile(99) / 1e6;
+  }
+
+  @Override
+  public long getHitTestCount()
+  {
+    return HIT_TEST_LATENCY.getCount();
+  }
+
+  @Override
+  public double getHitTestLatencyP50()
+  {
+    return HIT_TEST_LATENCY.getPercentile(50) / 1e6;
+  }
+
+  @Override
+  public double getHitTestLatencyP99()
+  {
+    return HIT_TEST_LATENCY.getPercentile(99) / 1e6;
+  }
+
+  @Override
+  public void resetLatencies()
+  {
+    PAINT_LATENCY.reset();
+    HIT_TEST_LATENCY.reset();
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PRIVATE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Reads a value on the EDT and waits for it.
+   *
+   * @param reader Reads the value.
+   * @return The value.
+   */
+  private static <T> T readOnEventDispatchThread(Callable<T> reader)
+  {
+    FutureTask<T> task = new FutureTask<>(reader);
+    if (SwingUtilities.isEventDispatchThread())
+    {
+      task.run();
+    }
+    else
+    {
+      SwingUtilities.invokeLater(task);
+    }
+
+    try
+    {
+      return task.get();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for the EDT", e);
+    }
+    catch (ExecutionException e)
+    {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  //
+  // INNER CLASS
+  //
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+
+  /**
+   * Counts the hits and misses of a cache. May be updated from any thread without locking.
+   */
+  static class HitCounter
+  {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    void hit()
+    {
+      hits.increment();
+    }
+
+    void miss()
+    {
+      misses.increment();
+    }
+
+    /**
+     * Returns the share of the requests that were hits.
+     *
+     * @return The hit rate from 0 to 1, or NaN if there has been no request.
+     */
+    double getHitRate()
+    {
+      long numberOfHits = hits.sum();
+      long numberOfRequests = numberOfHits + misses.sum();
+      return numberOfRequests == 0 ? Double.NaN : (double)numberOfHits / numberOfRequests;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.util.Map;
+
+/**
+ * Management interface of the metrics of the editor, for watching a session over JMX. The
+ * latencies are given in milliseconds.
+ */
+public interface EditorMetricsMXBean
+{
+  /**
+   * Should return the number of shapes of each type.
+   *
+   * @return The number of shapes, keyed by the simple name of their class.
+   */
+  public Map<String, Integer> getShapeCountsByType();
+
+  /**
+   * Should return the total number of points of the freehand shapes.
+   *
+   * @return The number of points.
+   */
+  public long getTotalPoints();
+
+  /**
+   * Should return the number of operations that successive undos would undo.
+   *
+   * @return The undo depth.
+   */
+  public int getUndoDepth();
+
+  /**
+   * Should return the number of operations that successive redos would redo.
+   *
+   * @return The redo depth.
+   */
+  public int getRedoDepth();
+
+  /**
+   * Should return an estimate of the heap held by the undo history.
+   *
+   * @return The estimated number of bytes.
+   */
+  public long getEstimatedUndoHistoryBytes();
+
+  /**
+   * Should return the share of the requests for the bounds of freehand shapes that were served
+   * from their cache.
+   *
+   * @return The hit rate from 0 to 1, or NaN if there has been no request.
+   */
+  public double getBoundsCacheHitRate();
+
+  /**
+   * Should return the share of the requests for thumbnails that were served from the thumbnail
+   * cache.
+   *
+   * @return The hit rate from 0 to 1, or NaN if there has been no request.
+   */
+  public double getThumbnailCacheHitRate();
+
+  public long getPaintCount();
+
+  public double getPaintLatencyP50();
+
+  public double getPaintLatencyP99();
+
+  public long getHitTestCount();
+
+  public double getHitTestLatencyP50();
+
+  public double getHitTestLatencyP99();
+
+  /**
+   * Should discard the recorded paint and hit test latencies, so that the percentiles cover
+   * the time from now on.
+   */
+  public void resetLatencies();
+}
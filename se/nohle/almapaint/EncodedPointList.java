@@ -0,0 +1,204 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * An unmodifiable list of points that are decoded on demand from the delta encoded form
+ * written by ShapeEncoder. Used for the points of freehand shapes loaded from a file, so that
+ * they can stay in the (possibly memory mapped) file buffer until the shape is edited.
+ *
+ * Iterating is cheap. Access by index is not, except for the first and the last point.
+ */
+class EncodedPointList extends AbstractList<CoordinatePair>
+{
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  private final ByteBuffer encodedPoints;
+  private final int size;
+  private final int minX;
+  private final int minY;
+  private final int maxX;
+  private final int maxY;
+
+  /** The last point. Null until it has been decoded. */
+  private volatile CoordinatePair lastPoint;
+
+  /**
+   * Constructor
+   *
+   * @param encodedPoints The encoded points, from position 0 to the limit of the buffer.
+   * @param size The number of points. Must be at least one.
+   * @param minX The smallest x coordinate of the points.
+   * @param minY The smallest y coordinate of the points.
+   * @param maxX The largest x coordinate of the points.
+   * @param maxY The largest y coordinate of the points.
+   */
+  EncodedPointList(ByteBuffer encodedPoints, int size, int minX, int minY, int maxX, int maxY)
+  {
+    this.encodedPoints = encodedPoints;
+    this.size = size;
+    this.minX = minX;
+    this.minY = minY;
+    this.maxX = maxX;
+    this.maxY = maxY;
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PUBLIC METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  @Override
+  public int size()
+  {
+    return size;
+  }
+
+  @Override
+  public CoordinatePair get(int index)
+  {
+    if (index < 0 || index >= size)
+    {
+      throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+    }
+
+    if (index == size - 1 && lastPoint != null)
+    {
+      return lastPoint;
+    }
+
+    Iterator<CoordinatePair> iterator = iterator();
+    CoordinatePair point = iterator.next();
+    for (int i = 0; i < index; i++)
+    {
+      point = iterator.next();
+    }
+
+    if (index == size - 1)
+    {
+      lastPoint = point;
+    }
+
+    return point;
+  }
+
+  /**
+   * Returns an iterator that decodes the points one by one. Several iterators may be used
+   * at the same time, also by different threads.
+   */
+  @Override
+  public Iterator<CoordinatePair> iterator()
+  {
+    return new Iterator<CoordinatePair>()
+    {
+      private int index;
+      private int position;
+      private int x;
+      private int y;
+
+      @Override
+      public boolean hasNext()
+      {
+        return index < size;
+      }
+
+      @Override
+      public CoordinatePair next()
+      {
+        if (index >= size)
+        {
+          throw new NoSuchElementException();
+        }
+
+        x += readSignedVarInt();
+        y += readSignedVarInt();
+        index++;
+
+        return new CoordinatePair(x, y);
+      }
+
+      private int readSignedVarInt()
+      {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+          b = encodedPoints.get(position++);
+          value |= (b & 0x7f) << shift;
+          shift += 7;
+        }
+        while (b < 0);
+
+        return (value >>> 1) ^ -(value & 1);
+      }
+    };
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Returns the encoded points.
+   *
+   * @return A read-only buffer from the first to the last encoded byte.
+   */
+  ByteBuffer getEncodedPoints()
+  {
+    return encodedPoints.asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns the number of bytes of the encoded points.
+   *
+   * @return The length of the encoded points.
+   */
+  int getEncodedLength()
+  {
+    return encodedPoints.limit();
+  }
+
+  int getMinX()
+  {
+    return minX;
+  }
+
+  int getMinY()
+  {
+    return minY;
+  }
+
+  int getMaxX()
+  {
+    return maxX;
+  }
+
+  int getMaxY()
+  {
+    return maxY;
+  }
+}
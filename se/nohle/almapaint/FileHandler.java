@@ -18,25 +18,353 @@
  */
 package se.nohle.almapaint;
 
+import java.awt.Rectangle;
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.DosFileAttributeView;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+/**
+ * Saves and loads documents.
+ *
+ * Documents are saved in a compact binary format: the magic number "AARB", a format version byte,
+ * a codec byte and then one or more segments. A segment starts with its length and CRC32
+ * checksum as ints, followed by the number of records as a variable length quantity and the
+ * records. A record is a type byte and a shape ID, and puts or removes the shape with that ID.
+ * A record that puts a shape is followed by the shape, encoded by ShapeEncoder, and replaces
+ * the shape with the same ID in place, if there is one, and is added after all other shapes
+ * otherwise.
+ *
+ * A save writes a single segment with all shapes, or, when the changes since the document was
+ * last saved or loaded are known, appends a segment with the changed shapes only. In the first
+ * segment, the shapes are grouped into chunks of shapes that are close to each other. Each
+ * record of a chunk is preceded by the distance to the position of the previous shape of the
+ * chunk, in the order of the shapes. The segment ends with an index of the chunks: their
+ * number, and the position, number of shapes and bounds of each chunk, followed by the
+ * position of the index as an int. That lets a document that has not been appended to be
+ * loaded starting with the shapes that will be visible, leaving the rest for later. The time of
+ * such a save depends on the size of the changes, not the size of the document. When most of
+ * a document consists of replaced and removed shapes it is compacted, that is, saved anew.
+ *
+ * A document can be compressed, which the codec byte tells. The data of each segment is then
+ * deflated, preceded by its inflated length. Segments are encoded and deflated a piece at a time
+ * as they are written, and inflated a piece at a time as they are decoded, so compressing takes
+ * no memory in proportion to the size of the document. The shapes of a compressed document are
+ * decoded in the order they were written, on the loading thread.
+ *
+ * Documents are loaded by memory mapping the file and decoding the shapes straight from the
+ * mapping. The points of freehand shapes stay in the mapping until the shapes are edited.
+ * Windows does not let a file that is mapped be replaced, and a mapping lasts until it has
+ * been garbage collected, so there the file is read into memory instead.
+ * The chunks, and the records that are live after segments have been appended, are decoded
+ * concurrently by fork/join tasks with decoders of their own, and handed over in order.
+ * Earlier versions of the format, and files written by earlier versions of the application,
+ * which used Java serialization, can still be loaded.
+ *
+ * A document is never overwritten in place. It is written to a temporary file in the same
+ * directory, which is forced to disk and then renamed over the document, so that a crash in
+ * the middle of a save leaves either the old or the new version of the document. The temporary
+ * file is given the permissions of the document it replaces. Segments
+ * are appended in place, but a segment whose checksum does not match is ignored, so an
+ * interrupted append leaves the old version too.
+ */
 class FileHandler
 {
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  /** "AARB" in ASCII. */
+  private static final int MAGIC_NUMBER = 0x41415242;
+  static final int FORMAT_VERSION = 5;
+
+  /** The first version of the format that consists of segments. */
+  private static final int FIRST_SEGMENTED_FORMAT_VERSION = 3;
+
+  /** The first version of the format in which the first segment consists of chunks. */
+  private static final int FIRST_CHUNKED_FORMAT_VERSION = 4;
+
+  /** The first version of the format whose header has a codec byte. */
+  private static final int FIRST_COMPRESSIBLE_FORMAT_VERSION = 5;
+
+  /** The magic number, the format version and the codec. */
+  private static final int HEADER_SIZE = 6;
+
+  private static final byte CODEC_NONE = 0;
+  private static final byte CODEC_DEFLATE = 1;
+
+  /** The compression level that saves a document without compressing it. */
+  static final int NO_COMPRESSION = Deflater.NO_COMPRESSION;
+
+  /** The compression level to use unless another one is asked for: fast, and still effective. */
+  static final int DEFAULT_COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+  /** The size of the buffer compressed data is written through. */
+  private static final int COMPRESSION_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The number of encoded bytes that are collected before they are written, or deflated, when a
+   * document is saved, and the size of the window a compressed segment is inflated through.
+   */
+  private static final int STREAMING_BUFFER_SIZE = 1024 * 1024;
+
+  /** The side of the squares the plane is divided into when the shapes are grouped into chunks. */
+  private static final int CHUNK_SIZE = 1024;
+  private static final int MAX_NUMBER_OF_SHAPES_PER_CHUNK = 4096;
+
+  /** The number of records each task decodes when the records of a document are decoded concurrently. */
+  private static final int NUMBER_OF_RECORDS_PER_TASK = 4096;
+
+  private static final byte RECORD_PUT = 1;
+  private static final byte RECORD_REMOVE = 2;
+
+  /**
+   * The largest shape ID a document may contain. The IDs of removed shapes are not reused, so the
+   * IDs are not bounded by the number of records, but the tables indexed by ID must stay sane.
+   */
+  private static final int MAX_SHAPE_ID = 1 << 26;
+
+  /** The length and the checksum of a segment. */
+  private static final int SEGMENT_HEADER_SIZE = 8;
+
+  /** The number of shapes to save between progress reports. */
+  private static final int PROGRESS_INTERVAL = 1024;
+
+  /** The first two bytes of a Java serialization stream. */
+  private static final int SERIALIZATION_STREAM_MAGIC = 0xaced;
+
+  /** False on Windows, where a file cannot be replaced while it is memory mapped. */
+  private static final boolean MAPPED_FILES_CAN_BE_REPLACED =
+    !System.getProperty("os.name", "").startsWith("Windows");
+
   /**
    * Saves the list of shapes in the specifed file.
    *
    * @param fileToSaveIn The file to save in.
    * @param shapes The shapes to save.
+   * @return What is needed to append changes to the saved document, or null if the shapes
+   *         do not have unique IDs.
+   */
+  static SavedDocument save(File fileToSaveIn, List<DrawableShape> shapes)
+    throws IOException
+  {
+    return save(fileToSaveIn, shapes, (numberOfShapesSaved, numberOfShapes) -> true);
+  }
+
+  /**
+   * Saves the list of shapes in the specifed file, reporting the progress to a listener.
+   * The file is not touched unless the save is completed.
+   *
+   * @param fileToSaveIn The file to save in.
+   * @param shapes The shapes to save.
+   * @param listener The listener to report the progress to. Called on the saving thread.
+   * @return What is needed to append changes to the saved document, or null if the shapes
+   *         do not have unique IDs.
+   * @throws InterruptedIOException If the listener cancelled the save.
    */
-  static void save(File fileToSaveIn, List<DrawableShape> shapes)
+  static SavedDocument save(File fileToSaveIn, List<DrawableShape> shapes, SaveListener listener)
     throws IOException
   {
-    // Write to file.
-    try  (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(fileToSaveIn)))
+    return save(fileToSaveIn, shapes, NO_COMPRESSION, listener);
+  }
+
+  /**
+   * Saves the list of shapes in the specifed file, compressed at the specified level, reporting
+   * the progress to a listener. The file is not touched unless the save is completed.
+   *
+   * @param fileToSaveIn The file to save in.
+   * @param shapes The shapes to save.
+   * @param compressionLevel NO_COMPRESSION, or a Deflater compression level from 1 to 9.
+   * @param listener The listener to report the progress to. Called on the saving thread.
+   * @return What is needed to append changes to the saved document, or null if the shapes
+   *         do not have unique IDs.
+   * @throws InterruptedIOException If the listener cancelled the save.
+   */
+  static SavedDocument save(File fileToSaveIn, List<DrawableShape> shapes, int compressionLevel,
+                            SaveListener listener)
+    throws IOException
+  {
+    FlightRecorderEvents.DocumentEvent event = new FlightRecorderEvents.DocumentEvent();
+    event.begin();
+
+    // The IDs of the shapes are used in the records, if they can tell the shapes apart.
+    SavedDocument savedDocument = haveUniqueShapeIds(shapes) ?
+      new SavedDocument(fileToSaveIn.toPath(), compressionLevel != NO_COMPRESSION) : null;
+
+    // The shapes are encoded a piece at a time, each piece written, or deflated, before the next
+    // is encoded, so that the encoded document is never held in memory.
+    List<Chunk> chunks = divideIntoChunks(shapes);
+    long[] uncompressedSize = new long[1];
+    long size = writeAtomically(fileToSaveIn.toPath(), channel ->
+      {
+        ShapeEncoder encoder = new ShapeEncoder(2 * STREAMING_BUFFER_SIZE);
+        encoder.writeInt(MAGIC_NUMBER);
+        encoder.writeByte(FORMAT_VERSION);
+        encoder.writeByte(compressionLevel != NO_COMPRESSION ? CODEC_DEFLATE : CODEC_NONE);
+        writeFully(channel, 0, encoder.toByteBuffer());
+        encoder.clear();
+
+        try (SegmentWriter segment = new SegmentWriter(channel, HEADER_SIZE, compressionLevel))
+        {
+          encoder.writeVarInt(shapes.size());
+          int numberOfShapesSaved = 0;
+          for (Chunk chunk : chunks)
+          {
+            // Only the positions of a segment shorter than Integer.MAX_VALUE are written.
+            chunk.position = (int)(segment.getUncompressedSize() + encoder.size());
+            int previousPosition = -1;
+            for (int position : chunk.shapePositions)
+            {
+              DrawableShape shape = shapes.get(position);
+              int shapeId = savedDocument != null ? shape.getShapeId() : position + 1;
+              int recordStart = encoder.size();
+              encoder.writeVarInt(position - previousPosition - 1);
+              encoder.writeByte(RECORD_PUT);
+              encoder.writeVarInt(shapeId);
+              encoder.writeShape(shape);
+              if (savedDocument != null)
+              {
+                savedDocument.shapePut(shapeId, encoder.size() - recordStart);
+              }
+              previousPosition = position;
+              chunk.bounds = chunk.bounds == null ? shape.getBounds() : chunk.bounds.union(shape.getBounds());
+
+              if (encoder.size() >= STREAMING_BUFFER_SIZE)
+              {
+                segment.write(encoder.toByteBuffer());
+                encoder.clear();
+              }
+
+              if (++numberOfShapesSaved % PROGRESS_INTERVAL == 0 &&
+                  !listener.shapesSaved(numberOfShapesSaved, shapes.size()))
+              {
+                throw new InterruptedIOException("The save was cancelled");
+              }
+            }
+          }
+          writeChunkIndex(encoder, (int)(segment.getUncompressedSize() + encoder.size()), chunks);
+          segment.write(encoder.toByteBuffer());
+          segment.finish();
+          uncompressedSize[0] = HEADER_SIZE + SEGMENT_HEADER_SIZE + segment.getUncompressedSize();
+        }
+      });
+    if (savedDocument != null)
     {
-      oos.writeObject(shapes);
+      savedDocument.documentWritten(size, uncompressedSize[0]);
     }
+
+    commitDocumentEvent(event, "save", fileToSaveIn, size, shapes.size(), compressionLevel != NO_COMPRESSION);
+    return savedDocument;
+  }
+
+  /**
+   * Saves the changes made to a document since it was last saved or loaded by appending them
+   * to the file. Saves all shapes, like save(File, List, int, SaveListener), if the changes are
+   * unknown, the file has been modified since or it is to be compressed differently. The file
+   * is not touched unless the save is completed, apart from an appended segment that is ignored
+   * when the document is loaded.
+   *
+   * @param fileToSaveIn The file to save in.
+   * @param shapes All shapes of the document.
+   * @param changes The changes made to the shapes since the document was last saved or loaded,
+   *                or null if they are unknown.
+   * @param savedDocument What was returned when the document was last saved or loaded, or null.
+   *                      Updated if the changes are appended.
+   * @param compressionLevel NO_COMPRESSION, or a Deflater compression level from 1 to 9.
+   * @param listener The listener to report the progress to. Called on the saving thread.
+   * @return What is needed to append further changes to the saved document, or null if the
+   *         shapes do not have unique IDs.
+   * @throws InterruptedIOException If the listener cancelled the save.
+   */
+  static SavedDocument save(File fileToSaveIn, List<DrawableShape> shapes, ShapeChanges changes,
+                            SavedDocument savedDocument, int compressionLevel, SaveListener listener)
+    throws IOException
+  {
+    if (changes == null || savedDocument == null || !savedDocument.describes(fileToSaveIn) ||
+        savedDocument.isCompressed() != (compressionLevel != NO_COMPRESSION) ||
+        hasShapeIdsAbove(changes, MAX_SHAPE_ID))
+    {
+      // A shape with an ID that a document may not contain is saved in a new document, where the
+      // shapes are numbered by position.
+      return save(fileToSaveIn, shapes, compressionLevel, listener);
+    }
+
+    FlightRecorderEvents.DocumentEvent event = new FlightRecorderEvents.DocumentEvent();
+    event.begin();
+
+    // Removing a shape that is not in the document, because it was added after the last save,
+    // takes no record.
+    int numberOfRecords = 0;
+    for (int i = 0; i < changes.size(); i++)
+    {
+      if (changes.getShape(i) != null || savedDocument.contains(changes.getShapeId(i)))
+      {
+        numberOfRecords++;
+      }
+    }
+    if (numberOfRecords == 0)
+    {
+      return savedDocument;
+    }
+
+    ShapeEncoder encoder = new ShapeEncoder(16 * numberOfRecords + 64);
+    encoder.writeVarInt(numberOfRecords);
+    int[] recordLengths = new int[changes.size()];
+    for (int i = 0; i < changes.size(); i++)
+    {
+      int recordStart = encoder.size();
+      DrawableShape shape = changes.getShape(i);
+      if (shape != null)
+      {
+        encoder.writeByte(RECORD_PUT);
+        encoder.writeVarInt(changes.getShapeId(i));
+        encoder.writeShape(shape);
+      }
+      else if (savedDocument.contains(changes.getShapeId(i)))
+      {
+        encoder.writeByte(RECORD_REMOVE);
+        encoder.writeVarInt(changes.getShapeId(i));
+      }
+      recordLengths[i] = encoder.size() - recordStart;
+
+      if ((i + 1) % PROGRESS_INTERVAL == 0 && !listener.shapesSaved(i + 1, changes.size()))
+      {
+        throw new InterruptedIOException("The save was cancelled");
+      }
+    }
+
+    long size = savedDocument.getSize();
+    long segmentSize = append(fileToSaveIn.toPath(), size, encoder.toByteBuffer(), compressionLevel);
+    for (int i = 0; i < changes.size(); i++)
+    {
+      if (changes.getShape(i) != null)
+      {
+        savedDocument.shapePut(changes.getShapeId(i), recordLengths[i]);
+      }
+      else
+      {
+        savedDocument.shapeRemoved(changes.getShapeId(i));
+      }
+    }
+    savedDocument.documentWritten(size + segmentSize,
+      savedDocument.getUncompressedSize() + SEGMENT_HEADER_SIZE + encoder.size());
+
+    commitDocumentEvent(event, "append", fileToSaveIn, segmentSize, changes.size(), savedDocument.isCompressed());
+    return savedDocument;
   }
 
   /**
@@ -45,17 +373,1617 @@ class FileHandler
    * @param fileToLoadFrom The file to save in.
    * @return The loaded shapes.
    */
-  @SuppressWarnings("unchecked")
   static List<DrawableShape>  load(File fileToLoadFrom) 
     throws IOException,ClassNotFoundException
   {
-    // Read from a file.
+    List<DrawableShape> shapes = new ArrayList<>();
+    load(fileToLoadFrom, null, Integer.MAX_VALUE, (loadedShapes, positions, numberOfShapesLoaded, numberOfShapes) ->
+      {
+        if (positions == null)
+        {
+          shapes.addAll(loadedShapes);
+          return true;
+        }
+
+        // Chunks are loaded in the order they are saved in, which is not the order of the shapes.
+        while (shapes.size() < numberOfShapes)
+        {
+          shapes.add(null);
+        }
+        for (int i = 0; i < positions.length; i++)
+        {
+          shapes.set(positions[i], loadedShapes.get(i));
+        }
+        return true;
+      });
+
+    return shapes;
+  }
+
+  /**
+   * Loads shapes from the specifed file and hands them over to a listener in batches, as they
+   * are decoded. Files written with Java serialization are handed over in one batch.
+   *
+   * The shapes get the IDs they were saved with, if the document is in the segmented format.
+   * If the document consists of chunks only, the chunks that intersect the viewport are loaded
+   * first, so that the shapes that will be visible can be displayed as soon as possible.
+   *
+   * The records of a document whose first segment consists of chunks are decoded concurrently
+   * on the common fork/join pool.
+   *
+   * @param fileToLoadFrom The file to load from.
+   * @param viewport The area the shapes are going to be displayed in, or null if unknown.
+   * @param batchSize The maximum number of shapes in a batch.
+   * @param listener The listener to hand the shapes over to.
+   * @return What is needed to append changes to the loaded document, or null if the document
+   *         is in an earlier format or the listener stopped the load.
+   */
+  static SavedDocument load(File fileToLoadFrom, Rectangle viewport, int batchSize, LoadListener listener)
+    throws IOException,ClassNotFoundException
+  {
+    return load(fileToLoadFrom, viewport, batchSize, ForkJoinPool.commonPool(), listener);
+  }
+
+  /**
+   * Loads shapes from the specifed file, like load(File, Rectangle, int, LoadListener), decoding
+   * the records concurrently on the specified pool. The shapes are still handed over in order,
+   * on the calling thread.
+   *
+   * @param fileToLoadFrom The file to load from.
+   * @param viewport The area the shapes are going to be displayed in, or null if unknown.
+   * @param batchSize The maximum number of shapes in a batch.
+   * @param pool The pool to decode the records on.
+   * @param listener The listener to hand the shapes over to.
+   * @return What is needed to append changes to the loaded document, or null if the document
+   *         is in an earlier format or the listener stopped the load.
+   */
+  static SavedDocument load(File fileToLoadFrom, Rectangle viewport, int batchSize, ForkJoinPool pool,
+                            LoadListener listener)
+    throws IOException,ClassNotFoundException
+  {
+    FlightRecorderEvents.DocumentEvent event = new FlightRecorderEvents.DocumentEvent();
+    event.begin();
+
+    int[] numberOfShapesLoaded = new int[1];
+    SavedDocument loadedDocument = loadDocument(fileToLoadFrom, viewport, batchSize, pool,
+      (shapes, positions, numberOfShapesLoadedSoFar, numberOfShapes) ->
+      {
+        numberOfShapesLoaded[0] = numberOfShapesLoadedSoFar;
+        return listener.shapesLoaded(shapes, positions, numberOfShapesLoadedSoFar, numberOfShapes);
+      });
+
+    commitDocumentEvent(event, "load", fileToLoadFrom, fileToLoadFrom.length(), numberOfShapesLoaded[0],
+      loadedDocument != null && loadedDocument.isCompressed());
+    return loadedDocument;
+  }
+
+  /**
+   * Loads shapes from the specifed file. See load(File, Rectangle, int, ForkJoinPool, LoadListener).
+   */
+  private static SavedDocument loadDocument(File fileToLoadFrom, Rectangle viewport, int batchSize,
+                                            ForkJoinPool pool, LoadListener listener)
+    throws IOException,ClassNotFoundException
+  {
+    // Map the file, unless that would keep it from being saved. The mapping stays valid after the
+    // channel has been closed.
+    ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(fileToLoadFrom.toPath(), StandardOpenOption.READ))
+    {
+      buffer = MAPPED_FILES_CAN_BE_REPLACED ?
+        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()) : readFully(channel);
+      if (buffer.remaining() >= 2 && (buffer.getShort(0) & 0xffff) == SERIALIZATION_STREAM_MAGIC)
+      {
+        List<DrawableShape> shapes =
+          loadSerialized(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+        listener.shapesLoaded(shapes, null, shapes.size(), shapes.size());
+        return null;
+      }
+    }
+
+    try
+    {
+      if (buffer.getInt() != MAGIC_NUMBER)
+      {
+        throw new StreamCorruptedException("Not an AlmaPaint document");
+      }
+
+      int version = buffer.get();
+      if (version < 1 || version > FORMAT_VERSION)
+      {
+        throw new IOException("Unsupported format version: " + version);
+      }
+
+      int codec = version >= FIRST_COMPRESSIBLE_FORMAT_VERSION ? buffer.get() : CODEC_NONE;
+      if (codec == CODEC_DEFLATE)
+      {
+        return loadCompressedSegments(fileToLoadFrom.toPath(), buffer, version, findEndOfSegments(buffer),
+          batchSize, listener);
+      }
+      else if (codec != CODEC_NONE)
+      {
+        throw new IOException("Unsupported codec: " + codec);
+      }
+
+      if (version >= FIRST_SEGMENTED_FORMAT_VERSION)
+      {
+        return loadSegments(fileToLoadFrom.toPath(), buffer, version, viewport, batchSize, pool, listener);
+      }
+
+      ShapeDecoder decoder = new ShapeDecoder(buffer, version);
+
+      int numberOfShapes = decoder.readVarInt();
+      int numberOfShapesLoaded = 0;
+      while (numberOfShapesLoaded < numberOfShapes)
+      {
+        int numberOfShapesInBatch = Math.min(batchSize, numberOfShapes - numberOfShapesLoaded);
+        List<DrawableShape> batch = new ArrayList<>(Math.min(numberOfShapesInBatch, buffer.remaining()));
+        for (int i = 0; i < numberOfShapesInBatch; i++)
+        {
+          batch.add(decoder.readShape());
+        }
+        numberOfShapesLoaded += numberOfShapesInBatch;
+
+        if (!listener.shapesLoaded(batch, null, numberOfShapesLoaded, numberOfShapes))
+        {
+          return null;
+        }
+      }
+
+      return null;
+    }
+    catch (BufferUnderflowException | IndexOutOfBoundsException e)
+    {
+      throw new EOFException("Unexpected end of file");
+    }
+  }
+
+  /**
+   * Loads the shapes of a document in the segmented format that is not compressed.
+   *
+   * @param file The document.
+   * @param buffer The content of the document, positioned at the first segment.
+   * @param version The format version of the document.
+   * @param viewport The area the shapes are going to be displayed in, or null if unknown.
+   * @param batchSize The maximum number of shapes in a batch.
+   * @param pool The pool to decode the records of a chunked document on.
+   * @param listener The listener to hand the shapes over to.
+   * @return What is needed to append changes to the document, or null if the listener
+   *         stopped the load.
+   */
+  private static SavedDocument loadSegments(Path file, ByteBuffer buffer, int version, Rectangle viewport,
+                                            int batchSize, ForkJoinPool pool, LoadListener listener)
+    throws IOException
+  {
+    ShapeDecoder decoder = new ShapeDecoder(buffer, version);
+    boolean chunked = version >= FIRST_CHUNKED_FORMAT_VERSION;
+    SavedDocument savedDocument = new SavedDocument(file, false);
+    int firstSegmentStart = buffer.position();
+    int firstSegmentEnd = findEndOfSegment(buffer, firstSegmentStart, false);
+    if (firstSegmentEnd < 0)
+    {
+      throw new EOFException("Unexpected end of file");
+    }
+
+    int payloadStart = firstSegmentStart + SEGMENT_HEADER_SIZE;
+    buffer.position(payloadStart);
+    int numberOfShapesInFirstSegment = decoder.readVarInt();
+    if (numberOfShapesInFirstSegment < 0 || numberOfShapesInFirstSegment > firstSegmentEnd - payloadStart)
+    {
+      throw new StreamCorruptedException("Invalid number of shapes: " + numberOfShapesInFirstSegment);
+    }
+    List<Chunk> chunks = chunked ?
+      readChunkIndex(buffer, decoder, payloadStart, firstSegmentEnd, numberOfShapesInFirstSegment) : null;
+
+    if (firstSegmentEnd == buffer.limit() && chunked)
+    {
+      // Nothing has been appended, so every record puts a new shape. The chunks that will be
+      // visible are loaded first.
+      List<Chunk> chunksInLoadOrder = new ArrayList<>(chunks.size());
+      for (Chunk chunk : chunks)
+      {
+        if (viewport != null && chunk.bounds.intersects(viewport))
+        {
+          chunksInLoadOrder.add(chunk);
+        }
+      }
+      for (Chunk chunk : chunks)
+      {
+        if (viewport == null || !chunk.bounds.intersects(viewport))
+        {
+          chunksInLoadOrder.add(chunk);
+        }
+      }
+
+      // Each chunk is decoded by a task of its own, and handed over when it and the chunks
+      // before it are done.
+      List<ForkJoinTask<Chunk>> tasks = new ArrayList<>(chunksInLoadOrder.size());
+      for (Chunk chunk : chunksInLoadOrder)
+      {
+        tasks.add(pool.submit(() -> decodeChunk(buffer, version, chunk, numberOfShapesInFirstSegment)));
+      }
+
+      // The positions are checked here, on one thread, so that every shape gets a position of its
+      // own and no position is left empty.
+      BitSet placedPositions = new BitSet(numberOfShapesInFirstSegment);
+      try
+      {
+        int numberOfShapesLoaded = 0;
+        for (ForkJoinTask<Chunk> task : tasks)
+        {
+          Chunk chunk = join(task);
+          for (int position : chunk.shapePositions)
+          {
+            if (placedPositions.get(position))
+            {
+              throw new StreamCorruptedException("Invalid position of shape: " + position);
+            }
+            placedPositions.set(position);
+          }
+
+          for (int i = 0; i < chunk.numberOfShapes; i++)
+          {
+            savedDocument.shapePut(chunk.shapes.get(i).getShapeId(), chunk.recordLengths[i]);
+          }
+
+          for (int start = 0; start < chunk.numberOfShapes; start += batchSize)
+          {
+            int end = (int)Math.min((long)start + batchSize, chunk.numberOfShapes);
+            numberOfShapesLoaded += end - start;
+            if (!listener.shapesLoaded(new ArrayList<>(chunk.shapes.subList(start, end)),
+                  Arrays.copyOfRange(chunk.shapePositions, start, end), numberOfShapesLoaded,
+                  numberOfShapesInFirstSegment))
+            {
+              return null;
+            }
+          }
+        }
+      }
+      finally
+      {
+        // Does nothing to the tasks that are done.
+        for (ForkJoinTask<Chunk> task : tasks)
+        {
+          task.cancel(false);
+        }
+      }
+
+      if (placedPositions.cardinality() != numberOfShapesInFirstSegment)
+      {
+        throw new StreamCorruptedException("Malformed segment");
+      }
+      documentRead(savedDocument, firstSegmentEnd);
+      return savedDocument;
+    }
+
+    if (firstSegmentEnd == buffer.limit())
+    {
+      // Nothing has been appended, so every record puts a new shape, and the shapes can be
+      // handed over as they are decoded.
+      int numberOfShapesLoaded = 0;
+      while (numberOfShapesLoaded < numberOfShapesInFirstSegment)
+      {
+        int numberOfShapesInBatch = Math.min(batchSize, numberOfShapesInFirstSegment - numberOfShapesLoaded);
+        List<DrawableShape> batch = new ArrayList<>(numberOfShapesInBatch);
+        for (int i = 0; i < numberOfShapesInBatch; i++)
+        {
+          int recordStart = buffer.position();
+          DrawableShape shape = readShapeRecord(decoder);
+          savedDocument.shapePut(shape.getShapeId(), buffer.position() - recordStart);
+          batch.add(shape);
+        }
+        numberOfShapesLoaded += numberOfShapesInBatch;
+
+        if (!listener.shapesLoaded(batch, null, numberOfShapesLoaded, numberOfShapesInFirstSegment))
+        {
+          return null;
+        }
+      }
+
+      documentRead(savedDocument, firstSegmentEnd);
+      return savedDocument;
+    }
+
+    // First pass: find the live records, in the order of their shapes, without decoding the shapes.
+    Map<Integer, Integer> slotsByShapeId = new HashMap<>();
+    int[] recordPositionsBySlot = new int[Math.max(numberOfShapesInFirstSegment, 1024)];
+    int numberOfSlots = 0;
+    int numberOfShapes = 0;
+    int segmentStart = firstSegmentStart;
+    int segmentEnd = firstSegmentEnd;
+    if (chunked)
+    {
+      // The records of the chunks are not in the order of the shapes, but their positions are known.
+      numberOfSlots = numberOfShapesInFirstSegment;
+      Arrays.fill(recordPositionsBySlot, -1);
+      for (Chunk chunk : chunks)
+      {
+        buffer.position(chunk.position);
+        int position = -1;
+        for (int i = 0; i < chunk.numberOfShapes; i++)
+        {
+          int recordStart = buffer.position();
+          position += 1 + decoder.readVarInt();
+          if (position < 0 || position >= numberOfSlots || recordPositionsBySlot[position] >= 0)
+          {
+            throw new StreamCorruptedException("Invalid position of shape: " + position);
+          }
+          recordPositionsBySlot[position] = buffer.position();
+          if (decoder.readByte() != RECORD_PUT)
+          {
+            throw new StreamCorruptedException("Malformed segment");
+          }
+          int shapeId = readShapeId(decoder);
+          decoder.skipShape();
+          savedDocument.shapePut(shapeId, buffer.position() - recordStart);
+          slotsByShapeId.put(shapeId, position);
+          numberOfShapes++;
+        }
+      }
+
+      segmentStart = firstSegmentEnd;
+      segmentEnd = findEndOfSegment(buffer, segmentStart, true);
+    }
+
+    while (segmentEnd >= 0)
+    {
+      buffer.position(segmentStart + SEGMENT_HEADER_SIZE);
+      int numberOfRecords = decoder.readVarInt();
+      for (int i = 0; i < numberOfRecords; i++)
+      {
+        int recordStart = buffer.position();
+        byte recordType = decoder.readByte();
+        int shapeId = readShapeId(decoder);
+        Integer slot = slotsByShapeId.get(shapeId);
+        if (recordType == RECORD_PUT)
+        {
+          decoder.skipShape();
+          savedDocument.shapePut(shapeId, buffer.position() - recordStart);
+          if (slot == null)
+          {
+            if (numberOfSlots == recordPositionsBySlot.length)
+            {
+              recordPositionsBySlot = Arrays.copyOf(recordPositionsBySlot, numberOfSlots * 2);
+            }
+            slot = numberOfSlots++;
+            slotsByShapeId.put(shapeId, slot);
+            numberOfShapes++;
+          }
+          recordPositionsBySlot[slot] = recordStart;
+        }
+        else if (recordType == RECORD_REMOVE)
+        {
+          if (slot != null)
+          {
+            slotsByShapeId.remove(shapeId);
+            recordPositionsBySlot[slot] = -1;
+            numberOfShapes--;
+          }
+          savedDocument.shapeRemoved(shapeId);
+        }
+        else
+        {
+          throw new StreamCorruptedException("Unknown record type: " + recordType);
+        }
+      }
+
+      if (!chunked && buffer.position() != segmentEnd)
+      {
+        throw new StreamCorruptedException("Malformed segment");
+      }
+      chunked = false;
+      segmentStart = segmentEnd;
+      segmentEnd = findEndOfSegment(buffer, segmentStart, true);
+    }
+
+    // Second pass: decode the live records, concurrently, a range of slots per task, and hand
+    // them over in order.
+    List<ForkJoinTask<List<DrawableShape>>> tasks = new ArrayList<>();
+    for (int start = 0; start < numberOfSlots; start += NUMBER_OF_RECORDS_PER_TASK)
+    {
+      int[] recordPositions = Arrays.copyOfRange(recordPositionsBySlot, start,
+        Math.min(start + NUMBER_OF_RECORDS_PER_TASK, numberOfSlots));
+      tasks.add(pool.submit(() -> decodeRecords(buffer, version, recordPositions)));
+    }
+
+    try
+    {
+      int numberOfShapesLoaded = 0;
+      List<DrawableShape> batch = new ArrayList<>(Math.min(batchSize, numberOfShapes));
+      for (ForkJoinTask<List<DrawableShape>> task : tasks)
+      {
+        for (DrawableShape shape : join(task))
+        {
+          batch.add(shape);
+          if (batch.size() == batchSize || numberOfShapesLoaded + batch.size() == numberOfShapes)
+          {
+            numberOfShapesLoaded += batch.size();
+            if (!listener.shapesLoaded(batch, null, numberOfShapesLoaded, numberOfShapes))
+            {
+              return null;
+            }
+            batch = new ArrayList<>(Math.min(batchSize, numberOfShapes - numberOfShapesLoaded));
+          }
+        }
+      }
+    }
+    finally
+    {
+      for (ForkJoinTask<List<DrawableShape>> task : tasks)
+      {
+        task.cancel(false);
+      }
+    }
+
+    // Anything after the last complete segment is the remains of an interrupted save, which
+    // makes the size differ from the one of the file, so that the next save rewrites the file.
+    documentRead(savedDocument, segmentStart);
+    return savedDocument;
+  }
+
+  /**
+   * Loads the shapes of a compressed document. Each segment is inflated a piece at a time as it
+   * is decoded, so that no more than a piece, or the longest record, is held inflated at a time.
+   * The positions of the shapes of the first segment are only known when the chunk index at its
+   * end has been read, so the shapes are decoded in the order they were written, and the live
+   * shapes are handed over in order when all segments have been decoded.
+   *
+   * @param file The document.
+   * @param buffer The content of the document, positioned at the first segment. The first segment
+   *               of a compressed document consists of chunks.
+   * @param version The format version of the document.
+   * @param end The position after the last complete segment.
+   * @param batchSize The maximum number of shapes in a batch.
+   * @param listener The listener to hand the shapes over to.
+   * @return What is needed to append changes to the document, or null if the listener
+   *         stopped the load.
+   */
+  private static SavedDocument loadCompressedSegments(Path file, ByteBuffer buffer, int version, int end,
+                                                      int batchSize, LoadListener listener)
+    throws IOException
+  {
+    SavedDocument savedDocument = new SavedDocument(file, true);
+    long uncompressedSize = buffer.position();
+    ShapeDecoder decoder = new ShapeDecoder(null, version, true);
+
+    // The first segment: the records of the chunks, each preceded by the distance to the position
+    // of the previous shape of its chunk, followed by the chunk index.
+    int segmentStart = buffer.position();
+    DrawableShape[] shapesByPosition;
+    try (SegmentInflater inflater = new SegmentInflater(buffer, segmentStart, decoder))
+    {
+      int numberOfShapesInFirstSegment = inflater.read(ShapeDecoder::readVarInt);
+      if (numberOfShapesInFirstSegment < 0 || numberOfShapesInFirstSegment > inflater.getInflatedLength())
+      {
+        throw new StreamCorruptedException("Invalid number of shapes: " + numberOfShapesInFirstSegment);
+      }
+
+      DrawableShape[] shapesInRecordOrder = new DrawableShape[numberOfShapesInFirstSegment];
+      int[] distances = new int[numberOfShapesInFirstSegment];
+      for (int i = 0; i < numberOfShapesInFirstSegment; i++)
+      {
+        long recordStart = inflater.getPosition();
+        distances[i] = inflater.read(ShapeDecoder::readVarInt);
+        shapesInRecordOrder[i] = inflater.read(FileHandler::readShapeRecord);
+        savedDocument.shapePut(shapesInRecordOrder[i].getShapeId(), (int)(inflater.getPosition() - recordStart));
+      }
+
+      long indexPosition = inflater.getPosition();
+      int numberOfChunks = inflater.read(ShapeDecoder::readVarInt);
+      shapesByPosition = new DrawableShape[numberOfShapesInFirstSegment];
+      int numberOfShapesPlaced = 0;
+      for (int i = 0; i < numberOfChunks; i++)
+      {
+        // The position and the bounds of the chunk are of no use when the shapes are decoded in order.
+        inflater.read(ShapeDecoder::readVarInt);
+        int numberOfShapesInChunk = inflater.read(ShapeDecoder::readVarInt);
+        for (int j = 0; j < 4; j++)
+        {
+          inflater.read(ShapeDecoder::readSignedVarInt);
+        }
+        if (numberOfShapesInChunk < 0 || numberOfShapesInChunk > numberOfShapesInFirstSegment - numberOfShapesPlaced)
+        {
+          throw new StreamCorruptedException("Invalid chunk in index");
+        }
+
+        int position = -1;
+        for (int j = 0; j < numberOfShapesInChunk; j++)
+        {
+          position += 1 + distances[numberOfShapesPlaced];
+          if (position < 0 || position >= numberOfShapesInFirstSegment || shapesByPosition[position] != null)
+          {
+            throw new StreamCorruptedException("Invalid position of shape: " + position);
+          }
+          shapesByPosition[position] = shapesInRecordOrder[numberOfShapesPlaced++];
+        }
+      }
+      if (numberOfShapesPlaced != numberOfShapesInFirstSegment || inflater.read(ShapeDecoder::readInt) != indexPosition)
+      {
+        throw new StreamCorruptedException("Malformed segment");
+      }
+      inflater.finish();
+      uncompressedSize += SEGMENT_HEADER_SIZE + inflater.getInflatedLength();
+    }
+
+    // The appended segments: records that put or remove shapes, by ID.
+    List<DrawableShape> shapesBySlot = new ArrayList<>(Arrays.asList(shapesByPosition));
+    int numberOfShapes = shapesByPosition.length;
+    Map<Integer, Integer> slotsByShapeId = new HashMap<>();
+    segmentStart += SEGMENT_HEADER_SIZE + buffer.getInt(segmentStart);
+    if (segmentStart < end)
+    {
+      for (int slot = 0; slot < shapesByPosition.length; slot++)
+      {
+        slotsByShapeId.put(shapesByPosition[slot].getShapeId(), slot);
+      }
+    }
+    for (; segmentStart < end; segmentStart += SEGMENT_HEADER_SIZE + buffer.getInt(segmentStart))
+    {
+      try (SegmentInflater inflater = new SegmentInflater(buffer, segmentStart, decoder))
+      {
+        int numberOfRecords = inflater.read(ShapeDecoder::readVarInt);
+        for (int i = 0; i < numberOfRecords; i++)
+        {
+          long recordStart = inflater.getPosition();
+          byte recordType = inflater.read(ShapeDecoder::readByte);
+          int shapeId = inflater.read(FileHandler::readShapeId);
+          Integer slot = slotsByShapeId.get(shapeId);
+          if (recordType == RECORD_PUT)
+          {
+            DrawableShape shape = inflater.read(ShapeDecoder::readShape);
+            shape.setShapeId(shapeId);
+            savedDocument.shapePut(shapeId, (int)(inflater.getPosition() - recordStart));
+            if (slot == null)
+            {
+              slotsByShapeId.put(shapeId, shapesBySlot.size());
+              shapesBySlot.add(shape);
+              numberOfShapes++;
+            }
+            else
+            {
+              shapesBySlot.set(slot, shape);
+            }
+          }
+          else if (recordType == RECORD_REMOVE)
+          {
+            if (slot != null)
+            {
+              slotsByShapeId.remove(shapeId);
+              shapesBySlot.set(slot, null);
+              numberOfShapes--;
+            }
+            savedDocument.shapeRemoved(shapeId);
+          }
+          else
+          {
+            throw new StreamCorruptedException("Unknown record type: " + recordType);
+          }
+        }
+        inflater.finish();
+        uncompressedSize += SEGMENT_HEADER_SIZE + inflater.getInflatedLength();
+      }
+    }
+
+    int numberOfShapesLoaded = 0;
+    List<DrawableShape> batch = new ArrayList<>(Math.min(batchSize, numberOfShapes));
+    for (DrawableShape shape : shapesBySlot)
+    {
+      if (shape == null)
+      {
+        continue;
+      }
+
+      batch.add(shape);
+      if (batch.size() == batchSize || numberOfShapesLoaded + batch.size() == numberOfShapes)
+      {
+        numberOfShapesLoaded += batch.size();
+        if (!listener.shapesLoaded(batch, null, numberOfShapesLoaded, numberOfShapes))
+        {
+          return null;
+        }
+        batch = new ArrayList<>(Math.min(batchSize, numberOfShapes - numberOfShapesLoaded));
+      }
+    }
+
+    savedDocument.documentWritten(end, uncompressedSize);
+    return savedDocument;
+  }
+
+  /**
+   * Decodes a record that puts a shape.
+   *
+   * @param decoder Decoder positioned at the record.
+   * @return The shape, with the ID of the record.
+   */
+  private static DrawableShape readShapeRecord(ShapeDecoder decoder)
+    throws StreamCorruptedException
+  {
+    if (decoder.readByte() != RECORD_PUT)
+    {
+      throw new StreamCorruptedException("Malformed segment");
+    }
+    int shapeId = readShapeId(decoder);
+    DrawableShape shape = decoder.readShape();
+    shape.setShapeId(shapeId);
+
+    return shape;
+  }
+
+  /**
+   * Decodes the shape ID of a record.
+   *
+   * @param decoder Decoder positioned at the shape ID.
+   * @return The shape ID.
+   */
+  private static int readShapeId(ShapeDecoder decoder)
+    throws StreamCorruptedException
+  {
+    int shapeId = decoder.readVarInt();
+    if (shapeId <= 0 || shapeId > MAX_SHAPE_ID)
+    {
+      throw new StreamCorruptedException("Invalid shape ID: " + shapeId);
+    }
+
+    return shapeId;
+  }
+
+  /**
+   * Decodes the records of a chunk with a decoder of its own, so that chunks can be decoded
+   * concurrently.
+   *
+   * @param buffer The content of the document. Not modified.
+   * @param version The format version of the document.
+   * @param chunk The chunk to decode. Its shapes, their positions and the lengths of their
+   *              records are set.
+   * @param numberOfShapes The number of shapes in the first segment.
+   * @return chunk.
+   */
+  private static Chunk decodeChunk(ByteBuffer buffer, int version, Chunk chunk, int numberOfShapes)
+    throws StreamCorruptedException
+  {
+    ByteBuffer chunkBuffer = buffer.duplicate();
+    chunkBuffer.position(chunk.position);
+    ShapeDecoder decoder = new ShapeDecoder(chunkBuffer, version);
+    chunk.shapes = new ArrayList<>(chunk.numberOfShapes);
+    chunk.shapePositions = new int[chunk.numberOfShapes];
+    chunk.recordLengths = new int[chunk.numberOfShapes];
+    int position = -1;
+    for (int i = 0; i < chunk.numberOfShapes; i++)
+    {
+      int recordStart = chunkBuffer.position();
+      position += 1 + decoder.readVarInt();
+      if (position < 0 || position >= numberOfShapes)
+      {
+        throw new StreamCorruptedException("Invalid position of shape: " + position);
+      }
+      chunk.shapes.add(readShapeRecord(decoder));
+      chunk.shapePositions[i] = position;
+      chunk.recordLengths[i] = chunkBuffer.position() - recordStart;
+    }
+
+    return chunk;
+  }
+
+  /**
+   * Decodes records that put shapes with a decoder of its own, so that records can be decoded
+   * concurrently.
+   *
+   * @param buffer The content of the document. Not modified.
+   * @param version The format version of the document.
+   * @param recordPositions The positions of the records. Negative positions are skipped.
+   * @return The shapes.
+   */
+  private static List<DrawableShape> decodeRecords(ByteBuffer buffer, int version, int[] recordPositions)
+    throws StreamCorruptedException
+  {
+    ByteBuffer recordBuffer = buffer.duplicate();
+    ShapeDecoder decoder = new ShapeDecoder(recordBuffer, version);
+    List<DrawableShape> shapes = new ArrayList<>(recordPositions.length);
+    for (int recordPosition : recordPositions)
+    {
+      if (recordPosition >= 0)
+      {
+        recordBuffer.position(recordPosition);
+        shapes.add(readShapeRecord(decoder));
+      }
+    }
+
+    return shapes;
+  }
+
+  /**
+   * Commits a flight recorder event of a completed load or save, if it is being recorded.
+   */
+  private static void commitDocumentEvent(FlightRecorderEvents.DocumentEvent event, String operation, File file,
+                                          long bytes, int numberOfShapes, boolean compressed)
+  {
+    if (event.shouldCommit())
+    {
+      event.operation = operation;
+      event.path = file.getPath();
+      event.bytes = bytes;
+      event.numberOfShapes = numberOfShapes;
+      event.compressed = compressed;
+      event.commit();
+    }
+  }
+
+  /**
+   * Waits for a decoding task to complete.
+   *
+   * @param task The task.
+   * @return The result of the task.
+   * @throws IOException If the task failed with an IOException, or the wait was interrupted.
+   */
+  private static <T> T join(Future<T> task)
+    throws IOException
+  {
+    try
+    {
+      return task.get();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("The load was interrupted");
+    }
+    catch (ExecutionException e)
+    {
+      // Rethrow what the task threw, so that it is handled as if the task had been run here.
+      // A fork/join pool wraps the checked exceptions of a Callable in plain RuntimeExceptions.
+      Throwable cause = e.getCause();
+      while (cause != null && cause.getClass() == RuntimeException.class && cause.getCause() != null)
+      {
+        cause = cause.getCause();
+      }
+      if (cause instanceof IOException)
+      {
+        throw (IOException)cause;
+      }
+      if (cause instanceof RuntimeException)
+      {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error)
+      {
+        throw (Error)cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Records the size of a loaded document that is not compressed.
+   *
+   * @param savedDocument The document.
+   * @param end The position after the last complete segment.
+   */
+  private static void documentRead(SavedDocument savedDocument, int end)
+    throws IOException
+  {
+    savedDocument.documentWritten(end, end);
+  }
+
+  /**
+   * Finds the end of the last complete segment of a document.
+   *
+   * @param buffer The content of the document, positioned at the first segment.
+   * @return The position after the last complete segment.
+   */
+  private static int findEndOfSegments(ByteBuffer buffer)
+    throws EOFException
+  {
+    int end = findEndOfSegment(buffer, buffer.position(), false);
+    if (end < 0)
+    {
+      throw new EOFException("Unexpected end of file");
+    }
+
+    for (int segmentEnd = end; segmentEnd >= 0; segmentEnd = findEndOfSegment(buffer, end, true))
+    {
+      end = segmentEnd;
+    }
+
+    return end;
+  }
+
+  private static int inflatedLength(ByteBuffer buffer, int segmentStart)
+    throws StreamCorruptedException
+  {
+    int inflatedLength = buffer.getInt(segmentStart) >= 4 ? buffer.getInt(segmentStart + SEGMENT_HEADER_SIZE) : -1;
+    if (inflatedLength < 0)
+    {
+      throw new StreamCorruptedException("Invalid compressed segment");
+    }
+
+    return inflatedLength;
+  }
+
+  /**
+   * Groups shapes that are close to each other into chunks. The shapes are grouped by the
+   * square their center is in, and the shapes of a square are divided into chunks of at
+   * most MAX_NUMBER_OF_SHAPES_PER_CHUNK shapes, in order.
+   *
+   * @param shapes The shapes to group.
+   * @return The chunks, with the positions of their shapes.
+   */
+  private static List<Chunk> divideIntoChunks(List<DrawableShape> shapes)
+  {
+    Map<Long, Integer> squareNumbers = new HashMap<>();
+    int[] squareNumberByShape = new int[shapes.size()];
+    for (int i = 0; i < shapes.size(); i++)
+    {
+      Rectangle bounds = shapes.get(i).getBounds();
+      long key = ((long)Math.floorDiv(bounds.x + bounds.width / 2, CHUNK_SIZE) << 32) |
+        (Math.floorDiv(bounds.y + bounds.height / 2, CHUNK_SIZE) & 0xffffffffL);
+      Integer squareNumber = squareNumbers.get(key);
+      if (squareNumber == null)
+      {
+        squareNumber = squareNumbers.size();
+        squareNumbers.put(key, squareNumber);
+      }
+      squareNumberByShape[i] = squareNumber;
+    }
+
+    // Sort the positions of the shapes by square, keeping them in order within each square.
+    int[] squareStarts = new int[squareNumbers.size() + 1];
+    for (int squareNumber : squareNumberByShape)
+    {
+      squareStarts[squareNumber + 1]++;
+    }
+    for (int i = 1; i < squareStarts.length; i++)
+    {
+      squareStarts[i] += squareStarts[i - 1];
+    }
+    int[] positionsBySquare = new int[shapes.size()];
+    int[] nextPositionInSquare = Arrays.copyOf(squareStarts, squareNumbers.size());
+    for (int i = 0; i < shapes.size(); i++)
+    {
+      positionsBySquare[nextPositionInSquare[squareNumberByShape[i]]++] = i;
+    }
+
+    List<Chunk> chunks = new ArrayList<>();
+    for (int squareNumber = 0; squareNumber < squareNumbers.size(); squareNumber++)
+    {
+      for (int start = squareStarts[squareNumber]; start < squareStarts[squareNumber + 1];
+           start += MAX_NUMBER_OF_SHAPES_PER_CHUNK)
+      {
+        Chunk chunk = new Chunk();
+        chunk.shapePositions = Arrays.copyOfRange(positionsBySquare, start,
+          Math.min(start + MAX_NUMBER_OF_SHAPES_PER_CHUNK, squareStarts[squareNumber + 1]));
+        chunk.numberOfShapes = chunk.shapePositions.length;
+        chunks.add(chunk);
+      }
+    }
+
+    return chunks;
+  }
+
+  /**
+   * Writes the index of the chunks at the end of the first segment.
+   *
+   * @param encoder The encoder the segment is written with.
+   * @param indexPosition The position of the index in the data of the segment.
+   * @param chunks The chunks of the segment.
+   */
+  private static void writeChunkIndex(ShapeEncoder encoder, int indexPosition, List<Chunk> chunks)
+  {
+    encoder.writeVarInt(chunks.size());
+    for (Chunk chunk : chunks)
+    {
+      encoder.writeVarInt(chunk.position);
+      encoder.writeVarInt(chunk.numberOfShapes);
+      encoder.writeSignedVarInt(chunk.bounds.x);
+      encoder.writeSignedVarInt(chunk.bounds.y);
+      encoder.writeSignedVarInt(chunk.bounds.width);
+      encoder.writeSignedVarInt(chunk.bounds.height);
+    }
+    encoder.writeInt(indexPosition);
+  }
+
+  /**
+   * Reads the index of the chunks at the end of the first segment.
+   *
+   * @param buffer The content of the document.
+   * @param decoder Decoder reading from buffer.
+   * @param payloadStart The position of the data of the segment, which positions are relative to.
+   * @param segmentEnd The position after the segment.
+   * @param numberOfShapes The number of shapes in the segment, which the chunks must add up to.
+   * @return The chunks, with their positions made absolute. The position of buffer is restored.
+   */
+  private static List<Chunk> readChunkIndex(ByteBuffer buffer, ShapeDecoder decoder, int payloadStart, int segmentEnd,
+                                            int numberOfShapes)
+    throws StreamCorruptedException
+  {
+    int indexPosition = buffer.getInt(segmentEnd - 4);
+    if (indexPosition < 0 || indexPosition > segmentEnd - 4 - payloadStart)
+    {
+      throw new StreamCorruptedException("Invalid position of chunk index: " + indexPosition);
+    }
+
+    int position = buffer.position();
+    buffer.position(payloadStart + indexPosition);
+    int numberOfChunks = decoder.readVarInt();
+    List<Chunk> chunks = new ArrayList<>(Math.min(numberOfChunks, buffer.remaining()));
+    long numberOfShapesInChunks = 0;
+    for (int i = 0; i < numberOfChunks; i++)
+    {
+      Chunk chunk = new Chunk();
+      chunk.position = payloadStart + decoder.readVarInt();
+      chunk.numberOfShapes = decoder.readVarInt();
+      if (chunk.position < payloadStart || chunk.position > segmentEnd ||
+          chunk.numberOfShapes < 0 || chunk.numberOfShapes > segmentEnd - chunk.position)
+      {
+        throw new StreamCorruptedException("Invalid chunk in index");
+      }
+      chunk.bounds = new Rectangle(decoder.readSignedVarInt(), decoder.readSignedVarInt(),
+        decoder.readSignedVarInt(), decoder.readSignedVarInt());
+      chunks.add(chunk);
+      numberOfShapesInChunks += chunk.numberOfShapes;
+    }
+    if (numberOfShapesInChunks != numberOfShapes)
+    {
+      throw new StreamCorruptedException("Invalid chunk index");
+    }
+    buffer.position(position);
+
+    return chunks;
+  }
+
+  /**
+   * Finds the end of the segment that starts at a position.
+   *
+   * @param buffer The content of the document.
+   * @param segmentStart The position of the segment.
+   * @param verifyChecksum true if the checksum of the segment should be verified. The first
+   *                       segment is written along with the rest of the file, so it is only
+   *                       incomplete if the file is corrupt.
+   * @return The position after the segment, or -1 if there is no complete segment at segmentStart.
+   */
+  private static int findEndOfSegment(ByteBuffer buffer, int segmentStart, boolean verifyChecksum)
+  {
+    if (buffer.limit() - segmentStart < SEGMENT_HEADER_SIZE)
+    {
+      return -1;
+    }
+
+    int length = buffer.getInt(segmentStart);
+    int payloadStart = segmentStart + SEGMENT_HEADER_SIZE;
+    if (length < 0 || length > buffer.limit() - payloadStart)
+    {
+      return -1;
+    }
+
+    if (verifyChecksum)
+    {
+      ByteBuffer payload = buffer.duplicate();
+      payload.limit(payloadStart + length).position(payloadStart);
+      CRC32 checksum = new CRC32();
+      checksum.update(payload);
+      if ((int)checksum.getValue() != buffer.getInt(segmentStart + 4))
+      {
+        return -1;
+      }
+    }
+
+    return payloadStart + length;
+  }
+
+  private static boolean hasShapeIdsAbove(ShapeChanges changes, int maxShapeId)
+  {
+    for (int i = 0; i < changes.size(); i++)
+    {
+      if (changes.getShapeId(i) > maxShapeId)
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static boolean haveUniqueShapeIds(List<DrawableShape> shapes)
+  {
+    BitSet shapeIds = new BitSet();
+    for (DrawableShape shape : shapes)
+    {
+      if (shape.getShapeId() <= 0 || shape.getShapeId() > MAX_SHAPE_ID || shapeIds.get(shape.getShapeId()))
+      {
+        return false;
+      }
+      shapeIds.set(shape.getShapeId());
+    }
+
+    return true;
+  }
+
+  /**
+   * Appends a segment to a file and forces it to disk.
+   *
+   * @param file The file to write.
+   * @param position The position to write at, normally the end of the file.
+   * @param payload The data of the segment.
+   * @param compressionLevel NO_COMPRESSION, or the level to compress the segment at.
+   * @return The number of bytes written.
+   */
+  private static long append(Path file, long position, ByteBuffer payload, int compressionLevel)
+    throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+         SegmentWriter segment = new SegmentWriter(channel, position, compressionLevel))
+    {
+      segment.write(payload);
+      long segmentSize = segment.finish();
+      // The size of the file changes, so its metadata must be forced too.
+      channel.force(true);
+      return segmentSize;
+    }
+  }
+
+  /**
+   * Writes a document to a temporary file, forces it to disk and renames it to the specified file.
+   *
+   * @param file The file to write.
+   * @param writer Writes the document to the temporary file.
+   * @return The size of the file.
+   */
+  private static long writeAtomically(Path file, DocumentWriter writer)
+    throws IOException
+  {
+    Path directory = file.toAbsolutePath().getParent();
+    Path temporaryFile = createTemporaryFile(directory, file.getFileName().toString());
+    long size;
+    try
+    {
+      copyPermissions(file, temporaryFile);
+      try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.READ, StandardOpenOption.WRITE))
+      {
+        writer.write(channel);
+        channel.force(true);
+        size = channel.size();
+      }
+
+      try
+      {
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (AtomicMoveNotSupportedException e)
+      {
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    finally
+    {
+      Files.deleteIfExists(temporaryFile);
+    }
+
+    forceDirectory(directory);
+    return size;
+  }
+
+  /**
+   * Writes the remaining bytes of a buffer at a position of a file.
+   *
+   * @return The number of bytes written.
+   */
+  private static int writeFully(FileChannel channel, long position, ByteBuffer content)
+    throws IOException
+  {
+    int numberOfBytes = content.remaining();
+    while (content.hasRemaining())
+    {
+      position += channel.write(content, position);
+    }
+
+    return numberOfBytes;
+  }
+
+  /**
+   * Creates an empty temporary file with the permissions a new file gets, unlike
+   * Files.createTempFile, which makes it readable by its owner only.
+   *
+   * @param directory The directory to create the file in.
+   * @param prefix The start of the name of the file.
+   * @return The file.
+   */
+  private static Path createTemporaryFile(Path directory, String prefix)
+    throws IOException
+  {
+    Random random = new Random();
+    while (true)
+    {
+      try
+      {
+        return Files.createFile(directory.resolve(prefix + Long.toUnsignedString(random.nextLong()) + ".tmp"));
+      }
+      catch (FileAlreadyExistsException e)
+      {
+        // Try another name.
+      }
+    }
+  }
+
+  /**
+   * Gives a file the permissions of another, POSIX permissions or DOS attributes, depending on
+   * the file system. Nothing is done if the other file does not exist.
+   *
+   * @param source The file whose permissions to copy.
+   * @param target The file to give them.
+   */
+  private static void copyPermissions(Path source, Path target)
+    throws IOException
+  {
+    PosixFileAttributes posixAttributes;
+    DosFileAttributes dosAttributes;
+    try
+    {
+      if (Files.getFileStore(target).supportsFileAttributeView(PosixFileAttributeView.class))
+      {
+        posixAttributes = Files.readAttributes(source, PosixFileAttributes.class);
+        dosAttributes = null;
+      }
+      else if (Files.getFileStore(target).supportsFileAttributeView(DosFileAttributeView.class))
+      {
+        posixAttributes = null;
+        dosAttributes = Files.readAttributes(source, DosFileAttributes.class);
+      }
+      else
+      {
+        return;
+      }
+    }
+    catch (NoSuchFileException e)
+    {
+      return;
+    }
+
+    if (posixAttributes != null)
+    {
+      Files.setPosixFilePermissions(target, posixAttributes.permissions());
+    }
+    else
+    {
+      // The temporary file is still written, so it is made read-only only if the document is.
+      DosFileAttributeView view = Files.getFileAttributeView(target, DosFileAttributeView.class);
+      view.setHidden(dosAttributes.isHidden());
+      view.setSystem(dosAttributes.isSystem());
+      view.setArchive(dosAttributes.isArchive());
+    }
+  }
+
+  /**
+   * Reads the whole of a file into memory.
+   *
+   * @param channel The file.
+   * @return The content of the file, from position 0 to the limit.
+   */
+  private static ByteBuffer readFully(FileChannel channel)
+    throws IOException
+  {
+    long size = channel.size();
+    if (size > Integer.MAX_VALUE)
+    {
+      throw new IOException("Document too large: " + size + " bytes");
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate((int)size);
+    while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0)
+    {
+      // Keep reading.
+    }
+    return buffer.flip();
+  }
+
+  /**
+   * Forces a directory to disk, so that a rename in it survives a crash. Not all platforms
+   * allow a directory to be opened, so failures are ignored.
+   *
+   * @param directory The directory to force.
+   */
+  private static void forceDirectory(Path directory)
+  {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ))
+    {
+      channel.force(true);
+    }
+    catch (IOException e)
+    {
+      // Best effort only.
+    }
+  }
+
+  /**
+   * Loads shapes from a file written with Java serialization.
+   *
+   * @param is The stream to read the file from.
+   * @return The loaded shapes.
+   */
+  @SuppressWarnings("unchecked")
+  private static List<DrawableShape> loadSerialized(InputStream is)
+    throws IOException,ClassNotFoundException
+  {
     List<DrawableShape> shapes;
-    try(ObjectInputStream ois = new ObjectInputStream(new FileInputStream(fileToLoadFrom)))
+    try(ObjectInputStream ois = new ObjectInputStream(is))
     {
       shapes = (List<DrawableShape>)ois.readObject();
     }
 
     return shapes;
   }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  //
+  // INNER CLASS
+  //
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+
+  /**
+   * A group of shapes that are close to each other in the first segment of a document.
+   */
+  private static class Chunk
+  {
+    /** The position of the first record of the chunk. */
+    private int position;
+    private int numberOfShapes;
+    /** The union of the bounds of the shapes of the chunk. */
+    private Rectangle bounds;
+    /** The positions of the shapes of the chunk among all shapes. */
+    private int[] shapePositions;
+    /** The decoded shapes of the chunk. Only used when loading. */
+    private List<DrawableShape> shapes;
+    /** The lengths of the records of the shapes. Only used when loading. */
+    private int[] recordLengths;
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  //
+  // INNER CLASS
+  //
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+
+  /**
+   * Writes a segment at a position of a file while its data is being encoded, so that writing a
+   * segment takes no memory in proportion to its size. A compressed segment is deflated as it is
+   * written, through a buffer of a fixed size. The header of the segment, and the inflated length
+   * of a compressed segment, are written when the segment is finished.
+   */
+  private static class SegmentWriter implements AutoCloseable
+  {
+    private final FileChannel channel;
+    private final long payloadStart;
+
+    /** Null if the segment is not compressed. */
+    private final Deflater deflater;
+    private final ByteBuffer output;
+    private final CRC32 checksum = new CRC32();
+
+    /** The number of bytes written after the header of the segment. */
+    private long payloadSize;
+    private long uncompressedSize;
+
+    /**
+     * Constructor
+     *
+     * @param channel The file to write.
+     * @param segmentStart The position to write the segment at.
+     * @param compressionLevel NO_COMPRESSION, or the level to compress the segment at.
+     */
+    private SegmentWriter(FileChannel channel, long segmentStart, int compressionLevel)
+    {
+      this.channel = channel;
+      this.payloadStart = segmentStart + SEGMENT_HEADER_SIZE;
+      if (compressionLevel == NO_COMPRESSION)
+      {
+        deflater = null;
+        output = null;
+      }
+      else
+      {
+        deflater = new Deflater(compressionLevel);
+        output = ByteBuffer.allocate(COMPRESSION_BUFFER_SIZE);
+        // Room for the inflated length, which is known when the segment is finished.
+        payloadSize = 4;
+      }
+    }
+
+    /**
+     * Writes the next part of the data of the segment.
+     *
+     * @param data The data, uncompressed. Its position is moved to its limit.
+     */
+    private void write(ByteBuffer data)
+      throws IOException
+    {
+      uncompressedSize += data.remaining();
+      if (deflater == null)
+      {
+        checksum.update(data.duplicate());
+        payloadSize += writeFully(channel, payloadStart + payloadSize, data);
+        return;
+      }
+
+      deflater.setInput(data);
+      while (!deflater.needsInput())
+      {
+        deflater.deflate(output);
+        writeOutput();
+      }
+    }
+
+    /**
+     * Writes what remains to be deflated, and the header of the segment.
+     *
+     * @return The size of the segment.
+     */
+    private long finish()
+      throws IOException
+    {
+      if (uncompressedSize > Integer.MAX_VALUE)
+      {
+        throw new IOException("Document too large");
+      }
+
+      if (deflater != null)
+      {
+        deflater.finish();
+        while (!deflater.finished())
+        {
+          deflater.deflate(output);
+          writeOutput();
+        }
+        output.putInt((int)uncompressedSize).flip();
+        writeFully(channel, payloadStart, output);
+
+        // The checksum covers the inflated length, which was not known until now, so the
+        // compressed data is read back to compute it.
+        checksum.reset();
+        for (long position = 0; position < payloadSize; )
+        {
+          output.clear().limit((int)Math.min(output.capacity(), payloadSize - position));
+          int numberOfBytes = channel.read(output, payloadStart + position);
+          if (numberOfBytes < 0)
+          {
+            throw new EOFException("Unexpected end of file");
+          }
+          position += numberOfBytes;
+          checksum.update(output.flip());
+        }
+        if (payloadSize > Integer.MAX_VALUE)
+        {
+          throw new IOException("Document too large");
+        }
+      }
+
+      ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+      header.putInt((int)payloadSize).putInt((int)checksum.getValue()).flip();
+      writeFully(channel, payloadStart - SEGMENT_HEADER_SIZE, header);
+      return SEGMENT_HEADER_SIZE + payloadSize;
+    }
+
+    /**
+     * Returns the number of bytes of data written so far, uncompressed.
+     */
+    private long getUncompressedSize()
+    {
+      return uncompressedSize;
+    }
+
+    @Override
+    public void close()
+    {
+      if (deflater != null)
+      {
+        deflater.end();
+      }
+    }
+
+    private void writeOutput()
+      throws IOException
+    {
+      output.flip();
+      payloadSize += writeFully(channel, payloadStart + payloadSize, output);
+      output.clear();
+    }
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  //
+  // INNER CLASS
+  //
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+
+  /**
+   * Inflates a compressed segment through a window, a piece at a time, while its data is being
+   * decoded. The window is reused as the data is consumed, so the decoder must copy the points of
+   * freehand shapes out of it. It only grows when a single value, such as a large freehand shape,
+   * does not fit in it.
+   */
+  private static class SegmentInflater implements AutoCloseable
+  {
+    private final Inflater inflater = new Inflater();
+    private final ShapeDecoder decoder;
+    private final int inflatedLength;
+
+    /** The inflated data not yet decoded, from its position to its limit. */
+    private ByteBuffer window = ByteBuffer.allocate(STREAMING_BUFFER_SIZE).limit(0);
+
+    /** The position in the inflated data of the start of the window. */
+    private long windowStart;
+
+    /**
+     * Constructor
+     *
+     * @param buffer The content of the document.
+     * @param segmentStart The position of the segment, which must be complete.
+     * @param decoder The decoder to decode the segment with. Must copy the points of freehand
+     *                shapes. May be shared by the segments of a document.
+     */
+    private SegmentInflater(ByteBuffer buffer, int segmentStart, ShapeDecoder decoder)
+      throws StreamCorruptedException
+    {
+      this.decoder = decoder;
+      this.inflatedLength = inflatedLength(buffer, segmentStart);
+      int payloadStart = segmentStart + SEGMENT_HEADER_SIZE;
+      inflater.setInput(buffer.duplicate().position(payloadStart + 4).limit(payloadStart + buffer.getInt(segmentStart)));
+      decoder.setBuffer(window);
+    }
+
+    /**
+     * Decodes the next value, inflating more of the segment until the value is in the window.
+     *
+     * @param reader Decodes the value with a decoder positioned at it.
+     * @return The value.
+     */
+    private <T> T read(ValueReader<T> reader)
+      throws StreamCorruptedException
+    {
+      while (true)
+      {
+        int start = window.position();
+        try
+        {
+          return reader.read(decoder);
+        }
+        catch (BufferUnderflowException | IndexOutOfBoundsException | StreamCorruptedException e)
+        {
+          // The value may be cut off at the end of the window. Decode it anew when more of the
+          // segment has been inflated, or fail if there is nothing more to inflate.
+          window.position(start);
+          if (!inflateMore())
+          {
+            throw e;
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns the position in the inflated data of the next value to decode.
+     */
+    private long getPosition()
+    {
+      return windowStart + window.position();
+    }
+
+    private int getInflatedLength()
+    {
+      return inflatedLength;
+    }
+
+    /**
+     * Verifies that all data of the segment has been decoded.
+     */
+    private void finish()
+      throws StreamCorruptedException
+    {
+      if (window.hasRemaining() || inflateMore() && window.hasRemaining() || getPosition() != inflatedLength)
+      {
+        throw new StreamCorruptedException("Malformed segment");
+      }
+    }
+
+    @Override
+    public void close()
+    {
+      inflater.end();
+    }
+
+    /**
+     * Inflates more of the segment into the window, after the data not yet decoded. The window
+     * is doubled if that data fills it.
+     *
+     * @return false if the whole segment has already been inflated.
+     */
+    private boolean inflateMore()
+      throws StreamCorruptedException
+    {
+      if (inflater.finished())
+      {
+        return false;
+      }
+
+      windowStart += window.position();
+      window.compact();
+      if (!window.hasRemaining())
+      {
+        window = ByteBuffer.allocate(2 * window.capacity()).put(window.flip());
+        decoder.setBuffer(window);
+      }
+
+      try
+      {
+        while (inflater.inflate(window) == 0 && !inflater.finished())
+        {
+          if (inflater.needsInput() || inflater.needsDictionary())
+          {
+            throw new StreamCorruptedException("Invalid compressed segment");
+          }
+        }
+      }
+      catch (DataFormatException e)
+      {
+        throw new StreamCorruptedException("Invalid compressed segment: " + e.getMessage());
+      }
+      window.flip();
+
+      return true;
+    }
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  //
+  // INNER INTERFACE
+  //
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+
+  /**
+   * Receives shapes while a file is being loaded.
+   */
+  interface LoadListener
+  {
+    /**
+     * Called with each batch of loaded shapes. Called on the thread that loads the file.
+     *
+     * @param shapes The shapes of the batch, in the order they have among all shapes.
+     * @param positions The positions the shapes have among all shapes, in ascending order, or null
+     *                  if the shapes come after all shapes loaded before them. Only documents
+     *                  that consist of chunks are loaded out of order.
+     * @param numberOfShapesLoaded The number of shapes loaded so far, including this batch.
+     * @param numberOfShapes The total number of shapes in the file.
+     * @return true to continue loading, false to stop.
+     */
+    boolean shapesLoaded(List<DrawableShape> shapes, int[] positions, int numberOfShapesLoaded, int numberOfShapes);
+  }
+
+  /**
+   * Writes the content of a document to a file.
+   */
+  private interface DocumentWriter
+  {
+    void write(FileChannel channel)
+      throws IOException;
+  }
+
+  /**
+   * Decodes a value, such as a shape or a number, with a decoder positioned at it.
+   */
+  private interface ValueReader<T>
+  {
+    T read(ShapeDecoder decoder)
+      throws StreamCorruptedException;
+  }
+
+  /**
+   * Receives progress reports while a file is being saved.
+   */
+  interface SaveListener
+  {
+    /**
+     * Called now and then while the shapes are encoded. Called on the thread that saves the file.
+     *
+     * @param numberOfShapesSaved The number of shapes encoded so far.
+     * @param numberOfShapes The total number of shapes to save.
+     * @return true to continue saving, false to cancel the save.
+     */
+    boolean shapesSaved(int numberOfShapesSaved, int numberOfShapes);
+  }
 }
@@ -0,0 +1,140 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Custom JDK Flight Recorder events emitted from the hot paths of the application, so that lag
+ * reported by users can be looked into with a recording, for example one started with
+ * -XX:StartFlightRecording.
+ *
+ * An event is created, begun before the work and committed after it. When no recording is
+ * active, or the event is disabled in it, that costs next to nothing: the fields are only set
+ * if shouldCommit() returns true.
+ */
+class FlightRecorderEvents
+{
+  private static final String CATEGORY = "AlmaPaint";
+
+  private FlightRecorderEvents()
+  {
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  //
+  // INNER CLASS
+  //
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+
+  @Name("se.nohle.almapaint.Paint")
+  @Label("Paint")
+  @Description("The shapes were painted")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  static class PaintEvent extends Event
+  {
+    @Label("Shapes")
+    int numberOfShapes;
+
+    @Label("Culled Shapes")
+    @Description("Shapes outside of the area to paint, which were not drawn")
+    int numberOfCulledShapes;
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  //
+  // INNER CLASS
+  //
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+
+  @Name("se.nohle.almapaint.HitTest")
+  @Label("Hit Test")
+  @Description("The topmost shape at a point was looked for")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  static class HitTestEvent extends Event
+  {
+    @Label("Shapes Tested")
+    int numberOfShapesTested;
+
+    @Label("Hit")
+    boolean hit;
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  //
+  // INNER CLASS
+  //
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+
+  @Name("se.nohle.almapaint.Undo")
+  @Label("Undo")
+  @Description("An operation was undone or redone")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  static class UndoEvent extends Event
+  {
+    @Label("Operation")
+    @Description("undo, redo or switch branch")
+    String operation;
+
+    @Label("Shapes")
+    @Description("The number of shapes after the operation")
+    int numberOfShapes;
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  //
+  // INNER CLASS
+  //
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+
+  @Name("se.nohle.almapaint.Document")
+  @Label("Document I/O")
+  @Description("A document was loaded, saved or had changes appended")
+  @Category(CATEGORY)
+  static class DocumentEvent extends Event
+  {
+    @Label("Operation")
+    @Description("load, save or append")
+    String operation;
+
+    @Label("Path")
+    String path;
+
+    @Label("Bytes")
+    @Description("The size of the file after a load or save, the bytes appended after an append")
+    @DataAmount
+    long bytes;
+
+    @Label("Shapes")
+    @Description("The shapes loaded or saved, or the changes appended")
+    int numberOfShapes;
+
+    @Label("Compressed")
+    boolean compressed;
+  }
+}
@@ -19,8 +19,11 @@
 package se.nohle.almapaint;
 
 import java.awt.*;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
 
 import static se.nohle.almapaint.Utilities.pointInRectangle;
 
@@ -29,12 +32,17 @@ import static se.nohle.almapaint.Utilities.pointInRectangle;
  */
 class FreehandShape extends AbstractDrawableShape
 {
+  private final static long serialVersionUID = -5149282261899395353L;
+
   private enum FreehandResizeArea
   {
     BEFORE, AFTER
   }
 
-  /** The coordinates making up this shape.  */
+  /**
+   * The coordinates making up this shape. For a shape loaded from a file this is an
+   * EncodedPointList until the shape is edited.
+   */
   private List<CoordinatePair> coordinatePoints = new ArrayList<>();
 
   /** Fields containing data used when resizing this shape. */
@@ -43,6 +51,9 @@ class FreehandShape extends AbstractDrawableShape
   private CoordinatePair resizeStartPoint;
   private CoordinatePair latestResizePosition;
 
+  /** Cached bounds of the points. Null if not calculated since the points last changed. */
+  private transient Rectangle bounds;
+
   /**
    * Constructor
    *
@@ -54,6 +65,20 @@ class FreehandShape extends AbstractDrawableShape
     super(strokeWidth, color);
   }
 
+  /**
+   * Constructor
+   *
+   * @param color The color to use.
+   * @param strokeWidth The width of the pen.
+   * @param coordinatePoints The points making up the shape. The list is used as is, not copied.
+   *                         It is copied before it is modified unless it is an ArrayList.
+   */
+  FreehandShape(Color color, int strokeWidth, List<CoordinatePair> coordinatePoints)
+  {
+    super(strokeWidth, color);
+    this.coordinatePoints = coordinatePoints;
+  }
+
   /**
    * Copy constructor
    *
@@ -62,10 +87,15 @@ class FreehandShape extends AbstractDrawableShape
   FreehandShape(FreehandShape that)
   {
     super(that.strokeWidth, that.color, that.selected);
-    
-    for (CoordinatePair point : that.coordinatePoints)
+
+    if (that.coordinatePoints instanceof EncodedPointList)
+    {
+      // Immutable, so it can be shared until one of the shapes is edited.
+      coordinatePoints = that.coordinatePoints;
+    }
+    else
     {
-      coordinatePoints.add(new CoordinatePair(point));
+      coordinatePoints.addAll(that.coordinatePoints);
     }
 
     copyTranslationAndResizeVectors(that);
@@ -78,7 +108,9 @@ class FreehandShape extends AbstractDrawableShape
    */
   void addPoint(CoordinatePair point)
   {
+    makeCoordinatePointsModifiable();
     coordinatePoints.add(point);  
+    bounds = null;
   }
 
   @Override
@@ -88,24 +120,23 @@ class FreehandShape extends AbstractDrawableShape
 
     Graphics2D g2 = (Graphics2D)g;
 
-    // In this list we store the point between which we will draw lines.
-    List<CoordinatePair> coordinatePointsToDraw = new ArrayList<>();
-
-    // Start with adding all "permanent" points.
-    coordinatePointsToDraw.addAll(coordinatePoints);
+    // In this list we store the point between which we will draw lines. Unless the shape is
+    // moving or being resized, the "permanent" points are drawn as they are.
+    List<CoordinatePair> coordinatePointsToDraw = coordinatePoints;
 
     // Is the shape moving?
     if (translationVector != null)
     {
-      for (int i = 0; i < coordinatePointsToDraw.size(); i++)
+      coordinatePointsToDraw = new ArrayList<>(coordinatePoints.size());
+      for (CoordinatePair point : coordinatePoints)
       {
-        CoordinatePair translatedPoint = coordinatePointsToDraw.get(i).add(translationVector);
-        coordinatePointsToDraw.set(i, translatedPoint);
+        coordinatePointsToDraw.add(point.add(translationVector));
       }
     }
     else if (coordinatePointsWhenResizing.size() > 0)
     {
-      // Is the shape moving?
+      // Is the shape being resized?
+      coordinatePointsToDraw = new ArrayList<>(coordinatePoints);
 
       // Adding in the beginning or the end?
       if (selectedResizePoint == FreehandResizeArea.BEFORE)
@@ -154,14 +185,14 @@ class FreehandShape extends AbstractDrawableShape
   @Override
   public boolean isPointIncluded(CoordinatePair point)
   {
-    for (int i = 0; i < coordinatePoints.size() - 1; i++)
+    CoordinatePair startPoint = null;
+    for (CoordinatePair endPoint : coordinatePoints)
     {
-      CoordinatePair startPoint = coordinatePoints.get(i);
-      CoordinatePair endPoint = coordinatePoints.get(i + 1);
-      if (isPointOnLine(startPoint, endPoint, point)) 
+      if (startPoint != null && isPointOnLine(startPoint, endPoint, point)) 
       {
         return true;
       }
+      startPoint = endPoint;
     }
 
     return false;
@@ -236,6 +267,7 @@ class FreehandShape extends AbstractDrawableShape
       }
       
       coordinatePoints = translatedCoordinatePoints;
+      bounds = null;
     }
 
     super.incorporateTranslationVector();
@@ -248,6 +280,7 @@ class FreehandShape extends AbstractDrawableShape
   public void incorporateResizeVector()
   {
     // Add the points that have been created since while resizing.
+    makeCoordinatePointsModifiable();
     if (selectedResizePoint == FreehandResizeArea.BEFORE)
     {
       // Add first to make the make the latest point the first one in the shape.
@@ -260,6 +293,7 @@ class FreehandShape extends AbstractDrawableShape
     }
 
     // Clear the fields we use while resizing.
+    bounds = null;
     super.incorporateResizeVector();
     resizeStartPoint = null;
     selectedResizePoint = null;
@@ -267,6 +301,77 @@ class FreehandShape extends AbstractDrawableShape
     coordinatePointsWhenResizing.clear();
   }
 
+  /**
+   * Returns a rectangle that encloses this shape. The bounds are calculated once and then
+   * cached until the points change.
+   *
+   * @return The bounds of this shape.
+   */
+  @Override
+  public Rectangle getBounds()
+  {
+    if (bounds != null)
+    {
+      EditorMetrics.BOUNDS_CACHE.hit();
+    }
+    else
+    {
+      EditorMetrics.BOUNDS_CACHE.miss();
+    }
+
+    if (bounds == null && coordinatePoints instanceof EncodedPointList)
+    {
+      EncodedPointList encodedPoints = (EncodedPointList)coordinatePoints;
+      bounds = createPaddedBounds(encodedPoints.getMinX(), encodedPoints.getMinY(),
+        encodedPoints.getMaxX(), encodedPoints.getMaxY());
+    }
+    else if (bounds == null)
+    {
+      int minX = Integer.MAX_VALUE;
+      int minY = Integer.MAX_VALUE;
+      int maxX = Integer.MIN_VALUE;
+      int maxY = Integer.MIN_VALUE;
+      for (CoordinatePair point : coordinatePoints)
+      {
+        minX = Math.min(minX, point.x);
+        minY = Math.min(minY, point.y);
+        maxX = Math.max(maxX, point.x);
+        maxY = Math.max(maxY, point.y);
+      }
+
+      bounds = coordinatePoints.isEmpty() ? new Rectangle() : createPaddedBounds(minX, minY, maxX, maxY);
+    }
+
+    return new Rectangle(bounds);
+  }
+
+  /**
+   * Returns the points making up this shape.
+   *
+   * @return An unmodifiable view of the points. Points that are still encoded are returned as
+   *         the EncodedPointList itself, which is unmodifiable, so that they can be written
+   *         without being decoded.
+   */
+  List<CoordinatePair> getCoordinatePoints()
+  {
+    if (coordinatePoints instanceof EncodedPointList)
+    {
+      return coordinatePoints;
+    }
+
+    return Collections.unmodifiableList(coordinatePoints);
+  }
+
+  /**
+   * Returns the number of points making up this shape.
+   *
+   * @return The number of points.
+   */
+  int getNumberOfPoints()
+  {
+    return coordinatePoints.size();
+  }
+
   /**
    * Creates a clone of this shape.
    *
@@ -300,12 +405,35 @@ class FreehandShape extends AbstractDrawableShape
    */
   private void drawLines(Graphics g2, List<CoordinatePair> coordinatePointsToDraw)
   {
-    for (int i = 0; i < coordinatePointsToDraw.size() - 1; i++)
+    CoordinatePair startPoint = null;
+    for (CoordinatePair endPoint : coordinatePointsToDraw)
     {
-      CoordinatePair startPoint = coordinatePointsToDraw.get(i);
-      CoordinatePair endPoint = coordinatePointsToDraw.get(i + 1);
+      if (startPoint != null)
+      {
+        g2.drawLine(startPoint.x, startPoint.y, endPoint.x, endPoint.y);
+      }
+      startPoint = endPoint;
+    }
+  }
 
-      g2.drawLine(startPoint.x, startPoint.y, endPoint.x, endPoint.y);
+  /**
+   * Decodes the points before the shape is serialized, as the encoded form is not serializable.
+   */
+  private void writeObject(ObjectOutputStream oos)
+    throws IOException
+  {
+    makeCoordinatePointsModifiable();
+    oos.defaultWriteObject();
+  }
+
+  /**
+   * Replaces the points with a modifiable copy if they still are encoded.
+   */
+  private void makeCoordinatePointsModifiable()
+  {
+    if (!(coordinatePoints instanceof ArrayList))
+    {
+      coordinatePoints = new ArrayList<>(coordinatePoints);
     }
   }
 
@@ -0,0 +1,693 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the changes made to a document since it was last saved. The journal
+ * is kept next to the document, in a file with the same name and the suffix ".journal". If the
+ * application dies, the changes can be recovered by replaying the journal on top of the document.
+ *
+ * The journal listens to the ShapeManager. Each change is encoded into a record on the calling
+ * thread, which is cheap, and handed over to a writer thread. The writer thread writes all records
+ * that have queued up since its last write in one go and then forces them to disk once (group commit).
+ *
+ * The file starts with the magic number "AARJ", a format version byte and the size and
+ * modification time of the document the journal applies to. Then follow the records: the length of
+ * the record as a variable length quantity, a CRC32 of the record and the record. A record starts
+ * with its type, followed by data encoded as in the document format. Replay stops at the first
+ * incomplete or damaged record, which is where the application died.
+ *
+ * A journal of a document that has not been saved yet does not write anything.
+ */
+class Journal implements ShapeChangeListener
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  /** "AARJ" in ASCII. */
+  private static final int MAGIC_NUMBER = 0x4141524a;
+  private static final int FORMAT_VERSION = 1;
+
+  private static final byte RECORD_ADD = 1;
+  private static final byte RECORD_REMOVE = 2;
+  private static final byte RECORD_REPLACE = 3;
+  private static final byte RECORD_REMOVE_ALL = 4;
+  private static final byte RECORD_INSERT = 5;
+
+  private static final String JOURNAL_SUFFIX = ".journal";
+
+  /** Holds the path of the document whose journal is active, so that it can be found at startup. */
+  private static final Path RECOVERY_FILE = Paths.get(System.getProperty("user.home"), ".almapaint-recovery");
+
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  /** Encoded records (ByteBuffer) and commands (Runnable) to the writer thread. */
+  private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+  private final Thread writerThread;
+
+  // Fields below are only accessed by the writer thread.
+
+  /** The document the journal applies to. Null if the document has not been saved. */
+  private File document;
+  private FileChannel channel;
+
+  /** The records since a snapshot of the document was taken for a save. Null if no save is ongoing. */
+  private List<ByteBuffer> recordsSinceSnapshot;
+
+  private final ShapeEncoder frameEncoder = new ShapeEncoder(64 * 1024);
+  private final CRC32 crc = new CRC32();
+  private boolean running = true;
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  // 
+  // CONSTRUCTOR
+  // 
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP 
+
+  /**
+   * Creates a journal for a document that has not been saved.
+   */
+  Journal()
+  {
+    writerThread = new Thread(this::writeRecords, "Journal writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Creates a journal for a document that has just been saved or opened. An existing
+   * journal of the document is replaced.
+   *
+   * @param document The document.
+   */
+  Journal(File document)
+  {
+    this();
+    queue.add((Runnable)() -> createJournalFile(document, Collections.emptyList()));
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PUBLIC METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  @Override
+  public void shapesAdded(List<DrawableShape> shapes)
+  {
+    ShapeEncoder encoder = new ShapeEncoder(32 * shapes.size());
+    encoder.writeByte(RECORD_ADD);
+    encoder.writeVarInt(shapes.size());
+    try
+    {
+      for (DrawableShape shape : shapes)
+      {
+        encoder.writeShape(shape);
+      }
+    }
+    catch (NotSerializableException e)
+    {
+      fail(e);
+      return;
+    }
+
+    queue.add(encoder.toByteBuffer());
+  }
+
+  @Override
+  public void shapesInserted(int[] indices, List<DrawableShape> shapes)
+  {
+    ShapeEncoder encoder = new ShapeEncoder(32 * indices.length);
+    encoder.writeByte(RECORD_INSERT);
+    encoder.writeVarInt(indices.length);
+    try
+    {
+      for (int i = 0; i < indices.length; i++)
+      {
+        encoder.writeVarInt(indices[i]);
+        encoder.writeShape(shapes.get(i));
+      }
+    }
+    catch (NotSerializableException e)
+    {
+      fail(e);
+      return;
+    }
+
+    queue.add(encoder.toByteBuffer());
+  }
+
+  @Override
+  public void shapesRemoved(int[] indices)
+  {
+    ShapeEncoder encoder = new ShapeEncoder(8 + 2 * indices.length);
+    encoder.writeByte(RECORD_REMOVE);
+    encoder.writeVarInt(indices.length);
+    for (int index : indices)
+    {
+      encoder.writeVarInt(index);
+    }
+
+    queue.add(encoder.toByteBuffer());
+  }
+
+  @Override
+  public void shapesReplaced(int[] indices, List<DrawableShape> replacements)
+  {
+    ShapeEncoder encoder = new ShapeEncoder(32 * indices.length);
+    encoder.writeByte(RECORD_REPLACE);
+    encoder.writeVarInt(indices.length);
+    try
+    {
+      for (int i = 0; i < indices.length; i++)
+      {
+        encoder.writeVarInt(indices[i]);
+        encoder.writeShape(replacements.get(i));
+      }
+    }
+    catch (NotSerializableException e)
+    {
+      fail(e);
+      return;
+    }
+
+    queue.add(encoder.toByteBuffer());
+  }
+
+  @Override
+  public void allShapesRemoved()
+  {
+    ShapeEncoder encoder = new ShapeEncoder(1);
+    encoder.writeByte(RECORD_REMOVE_ALL);
+
+    queue.add(encoder.toByteBuffer());
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Should be called when a snapshot of the document is taken to be saved. The changes made
+   * after this call are kept, so that they can start the journal of the saved document.
+   */
+  void snapshotTaken()
+  {
+    queue.add((Runnable)() -> recordsSinceSnapshot = new ArrayList<>());
+  }
+
+  /**
+   * Should be called when the snapshot has been saved. The journal is replaced by one that
+   * applies to the saved document and only holds the changes made since the snapshot.
+   *
+   * @param savedDocument The file the snapshot was saved in.
+   */
+  void saveCompleted(File savedDocument)
+  {
+    queue.add((Runnable)() ->
+      {
+        List<ByteBuffer> records = recordsSinceSnapshot;
+        recordsSinceSnapshot = null;
+        File previousDocument = document;
+        createJournalFile(savedDocument, records);
+        if (previousDocument != null && !previousDocument.equals(savedDocument))
+        {
+          deleteJournalFile(previousDocument);
+        }
+      });
+  }
+
+  /**
+   * Should be called when a save after snapshotTaken has failed or been cancelled.
+   */
+  void saveFailed()
+  {
+    queue.add((Runnable)() -> recordsSinceSnapshot = null);
+  }
+
+  /**
+   * Stops journaling and deletes the journal. Waits for the writer thread to finish.
+   */
+  void discard()
+  {
+    queue.add((Runnable)() ->
+      {
+        closeChannel();
+        if (document != null)
+        {
+          deleteJournalFile(document);
+        }
+        running = false;
+      });
+
+    try
+    {
+      writerThread.join();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns true if there is a journal for the specified document.
+   *
+   * @param document The document.
+   * @return true if there is a journal for the document.
+   */
+  static boolean hasJournal(File document)
+  {
+    return getJournalFile(document).isFile();
+  }
+
+  /**
+   * Returns the document whose journal was left behind when the application last died.
+   *
+   * @return The document, or null if there is no such document.
+   */
+  static File findDocumentToRecover()
+  {
+    File document = readRecoveryFile();
+    if (document != null && document.isFile() && hasJournal(document))
+    {
+      return document;
+    }
+
+    return null;
+  }
+
+  /**
+   * Replays the journal of a document on top of the shapes saved in the document.
+   *
+   * @param document The document.
+   * @param savedShapes The shapes loaded from the document.
+   * @return The shapes as they were when the last complete record was written.
+   * @throws IOException If the journal cannot be read or does not apply to the saved document.
+   */
+  static List<DrawableShape> recover(File document, List<DrawableShape> savedShapes)
+    throws IOException
+  {
+    ByteBuffer buffer;
+    try (FileChannel journalChannel = FileChannel.open(getJournalFile(document).toPath(), StandardOpenOption.READ))
+    {
+      buffer = journalChannel.map(FileChannel.MapMode.READ_ONLY, 0, journalChannel.size());
+    }
+
+    try
+    {
+      if (buffer.getInt() != MAGIC_NUMBER || buffer.get() != FORMAT_VERSION)
+      {
+        throw new StreamCorruptedException("Not an AlmaPaint journal");
+      }
+
+      if (buffer.getLong() != Files.size(document.toPath()) ||
+          buffer.getLong() != Files.getLastModifiedTime(document.toPath()).toMillis())
+      {
+        throw new IOException("The journal does not apply to the saved document");
+      }
+    }
+    catch (BufferUnderflowException e)
+    {
+      throw new EOFException("Unexpected end of journal");
+    }
+
+    List<DrawableShape> shapes = new ArrayList<>(savedShapes);
+    CRC32 recordCrc = new CRC32();
+    ShapeDecoder frameDecoder = new ShapeDecoder(buffer, FileHandler.FORMAT_VERSION);
+    try
+    {
+      while (buffer.hasRemaining())
+      {
+        int length = frameDecoder.readVarInt();
+        long expectedCrc = buffer.getInt() & 0xffffffffL;
+        if (length < 1 || length > buffer.remaining())
+        {
+          break; // Incomplete record.
+        }
+
+        ByteBuffer record = buffer.slice();
+        record.limit(length);
+        buffer.position(buffer.position() + length);
+
+        recordCrc.reset();
+        recordCrc.update(record.duplicate());
+        if (recordCrc.getValue() != expectedCrc)
+        {
+          break; // Damaged record.
+        }
+
+        replayRecord(record, shapes);
+      }
+    }
+    catch (BufferUnderflowException e)
+    {
+      // Incomplete record.
+    }
+
+    return shapes;
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PRIVATE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * The loop of the writer thread.
+   */
+  private void writeRecords()
+  {
+    List<Object> items = new ArrayList<>();
+    while (running)
+    {
+      try
+      {
+        items.add(queue.take());
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+      queue.drainTo(items);
+
+      for (Object item : items)
+      {
+        if (item instanceof ByteBuffer)
+        {
+          ByteBuffer record = (ByteBuffer)item;
+          appendFrame(record);
+          if (recordsSinceSnapshot != null)
+          {
+            recordsSinceSnapshot.add(record);
+          }
+        }
+        else
+        {
+          flush();
+          ((Runnable)item).run();
+        }
+      }
+      flush();
+      items.clear();
+    }
+  }
+
+  /**
+   * Adds a record, preceded by its length and CRC, to the bytes to write on the next flush.
+   */
+  private void appendFrame(ByteBuffer record)
+  {
+    crc.reset();
+    crc.update(record.duplicate());
+    frameEncoder.writeVarInt(record.remaining());
+    frameEncoder.writeInt((int)crc.getValue());
+    frameEncoder.writeBytes(record.duplicate());
+  }
+
+  /**
+   * Writes the frames added since the last flush and forces them to disk.
+   */
+  private void flush()
+  {
+    try
+    {
+      if (channel != null && frameEncoder.size() > 0)
+      {
+        ByteBuffer bytes = frameEncoder.toByteBuffer();
+        while (bytes.hasRemaining())
+        {
+          channel.write(bytes);
+        }
+        channel.force(false);
+      }
+    }
+    catch (IOException e)
+    {
+      fail(e);
+    }
+    finally
+    {
+      frameEncoder.clear();
+    }
+  }
+
+  /**
+   * Writes a new journal file for a document, holding the specified records. The file is written
+   * to a temporary file first and then renamed, so that the previous journal is intact until the
+   * new one is complete. Further records are appended to the new journal.
+   *
+   * @param newDocument The document the journal applies to.
+   * @param records The records to start the journal with.
+   */
+  private void createJournalFile(File newDocument, List<ByteBuffer> records)
+  {
+    closeChannel();
+    document = newDocument;
+
+    Path journalFile = getJournalFile(newDocument).toPath();
+    try
+    {
+      Path temporaryFile = Files.createTempFile(journalFile.toAbsolutePath().getParent(),
+        journalFile.getFileName().toString(), ".tmp");
+      try (FileChannel temporaryChannel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE))
+      {
+        frameEncoder.clear();
+        frameEncoder.writeInt(MAGIC_NUMBER);
+        frameEncoder.writeByte(FORMAT_VERSION);
+        writeLong(frameEncoder, Files.size(newDocument.toPath()));
+        writeLong(frameEncoder, Files.getLastModifiedTime(newDocument.toPath()).toMillis());
+        for (ByteBuffer record : records)
+        {
+          appendFrame(record);
+        }
+
+        ByteBuffer bytes = frameEncoder.toByteBuffer();
+        while (bytes.hasRemaining())
+        {
+          temporaryChannel.write(bytes);
+        }
+        temporaryChannel.force(false);
+      }
+      finally
+      {
+        frameEncoder.clear();
+      }
+
+      try
+      {
+        Files.move(temporaryFile, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      finally
+      {
+        Files.deleteIfExists(temporaryFile);
+      }
+
+      channel = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      Files.write(RECOVERY_FILE, newDocument.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+    }
+    catch (IOException e)
+    {
+      fail(e);
+    }
+  }
+
+  private void deleteJournalFile(File journaledDocument)
+  {
+    try
+    {
+      Files.deleteIfExists(getJournalFile(journaledDocument).toPath());
+      if (journaledDocument.getAbsoluteFile().equals(readRecoveryFile()))
+      {
+        Files.deleteIfExists(RECOVERY_FILE);
+      }
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+    }
+  }
+
+  private void closeChannel()
+  {
+    if (channel != null)
+    {
+      try
+      {
+        channel.close();
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+      }
+      channel = null;
+    }
+  }
+
+  /**
+   * Stops writing the journal and deletes it, as it no longer describes the document. Better
+   * to recover nothing than to recover something else than what the user had.
+   */
+  private void fail(Exception e)
+  {
+    e.printStackTrace();
+    queue.add((Runnable)() ->
+      {
+        closeChannel();
+        if (document != null)
+        {
+          deleteJournalFile(document);
+        }
+        document = null;
+      });
+  }
+
+  /**
+   * Returns the document named in the recovery file, or null if there is none.
+   */
+  private static File readRecoveryFile()
+  {
+    try
+    {
+      if (Files.isRegularFile(RECOVERY_FILE))
+      {
+        String path = new String(Files.readAllBytes(RECOVERY_FILE), StandardCharsets.UTF_8).trim();
+        if (!path.isEmpty())
+        {
+          return new File(path);
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+    }
+
+    return null;
+  }
+
+  private static void writeLong(ShapeEncoder encoder, long value)
+  {
+    encoder.writeInt((int)(value >>> 32));
+    encoder.writeInt((int)value);
+  }
+
+  private static File getJournalFile(File document)
+  {
+    return new File(document.getPath() + JOURNAL_SUFFIX);
+  }
+
+  /**
+   * Applies a record to a list of shapes.
+   */
+  private static void replayRecord(ByteBuffer record, List<DrawableShape> shapes)
+    throws StreamCorruptedException
+  {
+    ShapeDecoder decoder = new ShapeDecoder(record, FileHandler.FORMAT_VERSION);
+    byte type = decoder.readByte();
+    switch (type)
+    {
+      case RECORD_ADD:
+      {
+        int numberOfShapes = decoder.readVarInt();
+        for (int i = 0; i < numberOfShapes; i++)
+        {
+          shapes.add(decoder.readShape());
+        }
+        break;
+      }
+      case RECORD_REMOVE:
+      {
+        int numberOfShapes = decoder.readVarInt();
+        BitSet indicesToRemove = new BitSet();
+        for (int i = 0; i < numberOfShapes; i++)
+        {
+          indicesToRemove.set(readIndex(decoder, shapes));
+        }
+
+        int remaining = 0;
+        for (int i = 0; i < shapes.size(); i++)
+        {
+          if (!indicesToRemove.get(i))
+          {
+            shapes.set(remaining++, shapes.get(i));
+          }
+        }
+        shapes.subList(remaining, shapes.size()).clear();
+        break;
+      }
+      case RECORD_REPLACE:
+      {
+        int numberOfShapes = decoder.readVarInt();
+        for (int i = 0; i < numberOfShapes; i++)
+        {
+          int index = readIndex(decoder, shapes);
+          shapes.set(index, decoder.readShape());
+        }
+        break;
+      }
+      case RECORD_REMOVE_ALL:
+        shapes.clear();
+        break;
+      case RECORD_INSERT:
+      {
+        int numberOfShapes = decoder.readVarInt();
+        for (int i = 0; i < numberOfShapes; i++)
+        {
+          int index = decoder.readVarInt();
+          if (index < 0 || index > shapes.size())
+          {
+            throw new StreamCorruptedException("Invalid index in journal: " + index);
+          }
+          shapes.add(index, decoder.readShape());
+        }
+        break;
+      }
+      default:
+        throw new StreamCorruptedException("Unknown journal record: " + type);
+    }
+  }
+
+  private static int readIndex(ShapeDecoder decoder, List<DrawableShape> shapes)
+    throws StreamCorruptedException
+  {
+    int index = decoder.readVarInt();
+    if (index < 0 || index >= shapes.size())
+    {
+      throw new StreamCorruptedException("Invalid index in journal: " + index);
+    }
+
+    return index;
+  }
+}
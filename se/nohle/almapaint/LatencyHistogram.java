@@ -0,0 +1,166 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies that may be recorded by several threads at once without locking.
+ *
+ * The latencies are counted in buckets of microseconds. Below 8 microseconds each one has its
+ * own bucket; above, each power of two is split into 8 buckets, so a percentile is reported
+ * with an error of at most 12.5 %. Recording a latency is a single atomic increment. Reading a
+ * percentile walks the buckets without stopping the threads that record, so latencies recorded
+ * meanwhile may or may not be included.
+ */
+class LatencyHistogram
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int NUMBER_OF_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  private final AtomicLongArray counts = new AtomicLongArray(NUMBER_OF_BUCKETS);
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Records a latency.
+   *
+   * @param nanos The latency in nanoseconds. Negative values are counted as zero.
+   */
+  void record(long nanos)
+  {
+    counts.incrementAndGet(getBucket(Math.max(nanos, 0) / 1000));
+  }
+
+  /**
+   * Returns the number of recorded latencies.
+   *
+   * @return The number of latencies recorded since the histogram was created or last reset.
+   */
+  long getCount()
+  {
+    long count = 0;
+    for (int i = 0; i < NUMBER_OF_BUCKETS; i++)
+    {
+      count += counts.get(i);
+    }
+
+    return count;
+  }
+
+  /**
+   * Returns a percentile of the recorded latencies.
+   *
+   * @param percentile The percentile, from 0 to 100.
+   * @return The largest latency of the bucket holding the percentile, in nanoseconds, or 0 if
+   *         no latency has been recorded.
+   */
+  long getPercentile(double percentile)
+  {
+    long[] snapshot = new long[NUMBER_OF_BUCKETS];
+    long count = 0;
+    for (int i = 0; i < NUMBER_OF_BUCKETS; i++)
+    {
+      snapshot[i] = counts.get(i);
+      count += snapshot[i];
+    }
+
+    if (count == 0)
+    {
+      return 0;
+    }
+
+    long rank = Math.max((long)Math.ceil(percentile / 100 * count), 1);
+    long seen = 0;
+    for (int i = 0; i < NUMBER_OF_BUCKETS; i++)
+    {
+      seen += snapshot[i];
+      if (seen >= rank)
+      {
+        return toNanos(getLargestMicros(i));
+      }
+    }
+
+    // Not reached, as the snapshot adds up to count.
+    return Long.MAX_VALUE;
+  }
+
+  /**
+   * Discards the recorded latencies. Latencies recorded while the histogram is reset may or may
+   * not be discarded.
+   */
+  void reset()
+  {
+    for (int i = 0; i < NUMBER_OF_BUCKETS; i++)
+    {
+      counts.set(i, 0);
+    }
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PRIVATE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  private static int getBucket(long micros)
+  {
+    if (micros < SUB_BUCKET_COUNT)
+    {
+      return (int)micros;
+    }
+
+    // The highest bit picks the power of two and the next three bits the bucket within it.
+    int highestBit = 63 - Long.numberOfLeadingZeros(micros);
+    int subBucket = (int)(micros >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+    return (highestBit - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  private static long toNanos(long micros)
+  {
+    return micros < Long.MAX_VALUE / 1000 ? micros * 1000 : Long.MAX_VALUE;
+  }
+
+  /**
+   * Returns the largest number of microseconds counted in a bucket.
+   */
+  private static long getLargestMicros(int bucket)
+  {
+    if (bucket < SUB_BUCKET_COUNT)
+    {
+      return bucket;
+    }
+
+    int highestBit = bucket / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+    long subBucket = bucket % SUB_BUCKET_COUNT;
+    long smallest = (SUB_BUCKET_COUNT + subBucket) << (highestBit - SUB_BUCKET_BITS);
+    return smallest + (1L << (highestBit - SUB_BUCKET_BITS)) - 1;
+  }
+}
@@ -26,6 +26,8 @@ import static se.nohle.almapaint.Utilities.pointInRectangle;
  */
 class LineShape extends AbstractDrawableShape
 {
+  private final static long serialVersionUID = -8465861468823768790L;
+
   private enum LineResizeArea
   {
     FIRST_POINT, SECOND_POINT
@@ -74,7 +76,7 @@ class LineShape extends AbstractDrawableShape
    * @param strokeWidth The width of the pen.
    * @param selected true if the line is selected.
    */
-   private LineShape(Color color, int startX, int startY, int endX, int endY, 
+  LineShape(Color color, int startX, int startY, int endX, int endY,
             int strokeWidth, boolean selected)
   {
     super(strokeWidth, color, selected);
@@ -222,6 +224,38 @@ class LineShape extends AbstractDrawableShape
     super.incorporateResizeVector();
   }
 
+  /**
+   * Returns a rectangle that encloses this shape.
+   *
+   * @return The bounds of this shape.
+   */
+  @Override
+  public Rectangle getBounds()
+  {
+    return createPaddedBounds(Math.min(startX, endX), Math.min(startY, endY),
+      Math.max(startX, endX), Math.max(startY, endY));
+  }
+
+  int getStartX()
+  {
+    return startX;
+  }
+
+  int getStartY()
+  {
+    return startY;
+  }
+
+  int getEndX()
+  {
+    return endX;
+  }
+
+  int getEndY()
+  {
+    return endY;
+  }
+
   /**
    * Creates a clone of this shape.
    *
@@ -22,8 +22,12 @@ import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.io.*;
+import java.nio.file.Path;
 import javax.swing.filechooser.*;
+import javax.imageio.ImageIO;
 
 /**
  * The class containing the JFrame of this application.
@@ -71,14 +75,25 @@ public class MainFrame extends JFrame
   private JLabel toolLabel;
 
   private JCheckBoxMenuItem optionFillMenuItem;
+  private JCheckBoxMenuItem optionUndoTreeMenuItem;
+  private JCheckBoxMenuItem optionCompressMenuItem;
+  private JCheckBoxMenuItem optionPerformanceHudMenuItem;
+  private JMenu openRecentMenu;
 
   private Action newAction;
   private Action undoAction;
   private Action redoAction;
+  private Action previousBranchAction;
+  private Action nextBranchAction;
   private Action deleteAction;
+  private Action selectAllAction;
+  private Action invertSelectionAction;
   private Action saveAction;
   private Action saveAsAction;
   private Action openAction;
+  private Action importSvgAction;
+  private Action exportSvgAction;
+  private Action exportPngAction;
   private Action exitAction;
 
   private Action freehandAction;
@@ -88,6 +103,8 @@ public class MainFrame extends JFrame
   private Action moveAction;
 
   private Action optionFillAction;
+  private Action optionUndoTreeAction;
+  private Action optionPerformanceHudAction;
 
   private Action aboutAction;
 
@@ -97,8 +114,36 @@ public class MainFrame extends JFrame
 
   private File saveFile;
   private int hashCodeOfShapesLastOpen;
+
+  /** Loads the document being opened. Null if no document is being opened. */
+  private DocumentLoader documentLoader;
+
+  /** Saves the document in the background. Null if no save is ongoing. */
+  private DocumentSaver documentSaver;
+
+  /** Imports an SVG image into the document. Null if no import is ongoing. */
+  private DocumentImporter documentImporter;
+
+  /** Journal of the changes made since the document was last saved. */
+  private Journal journal = new Journal();
+
+  /** Needed to append changes to saveFile. Null if saveFile must be saved anew. */
+  private SavedDocument savedDocument;
   private final static FileNameExtensionFilter AAR_FILE_FILTER = 
   new FileNameExtensionFilter("AAR", "aar");
+  private final static FileNameExtensionFilter SVG_FILE_FILTER =
+  new FileNameExtensionFilter("SVG", "svg");
+  private final static FileNameExtensionFilter PNG_FILE_FILTER =
+  new FileNameExtensionFilter("PNG", "png");
+
+  /** The largest width or height of a thumbnail in the open recent menu. */
+  private final static int RECENT_FILE_ICON_SIZE = 64;
+
+  /** The largest width or height of the thumbnail previewed in the file chooser. */
+  private final static int PREVIEW_SIZE = 160;
+
+  /** The scales a document can be exported as a PNG image in. */
+  private final static Integer[] PNG_SCALES = {1, 2, 4, 8, 16, 32};
 
   private static Properties languageBundle;
 
@@ -108,6 +153,7 @@ public class MainFrame extends JFrame
   static
   {
     loadBundle();
+    StartupTimer.mark("bundle loaded");
   }
 
   //----------------------------------------------------------
@@ -134,6 +180,7 @@ public class MainFrame extends JFrame
     setEnabledStateOfActions();
     customizeComponents();
     addListeners();
+    shapePanel.setShapeChangeListener(journal);
   }
 
   //----------------------------------------------------------
@@ -292,6 +339,23 @@ public class MainFrame extends JFrame
         }
       };
 
+    previousBranchAction = new AbstractAction(getString("PREVIOUS_BRANCH"))
+      {
+        public void actionPerformed(ActionEvent ae)
+        {
+          shapePanel.switchToAdjacentUndoBranch(-1);
+          setEnabledStateOfActions();
+        }
+      };
+
+    nextBranchAction = new AbstractAction(getString("NEXT_BRANCH"))
+      {
+        public void actionPerformed(ActionEvent ae)
+        {
+          shapePanel.switchToAdjacentUndoBranch(1);
+          setEnabledStateOfActions();
+        }
+      };
 
     deleteAction = new AbstractAction(getString("DELETE"))
     {
@@ -302,6 +366,24 @@ public class MainFrame extends JFrame
       }
     };
 
+    selectAllAction = new AbstractAction(getString("SELECT_ALL"))
+    {
+      public void actionPerformed(ActionEvent ae)
+      {
+        shapePanel.selectAllShapes();
+        setEnabledStateOfActions();
+      }
+    };
+
+    invertSelectionAction = new AbstractAction(getString("INVERT_SELECTION"))
+    {
+      public void actionPerformed(ActionEvent ae)
+      {
+        shapePanel.invertSelection();
+        setEnabledStateOfActions();
+      }
+    };
+
     saveAction = new AbstractAction(getString("SAVE"))
       {
         public void actionPerformed(ActionEvent ae)
@@ -329,6 +411,30 @@ public class MainFrame extends JFrame
         }
       };
 
+    importSvgAction = new AbstractAction(getString("IMPORT_SVG"))
+      {
+        public void actionPerformed(ActionEvent ae)
+        {
+          importSvgInvoked();
+        }
+      };
+
+    exportSvgAction = new AbstractAction(getString("EXPORT_SVG"))
+      {
+        public void actionPerformed(ActionEvent ae)
+        {
+          exportSvgInvoked();
+        }
+      };
+
+    exportPngAction = new AbstractAction(getString("EXPORT_PNG"))
+      {
+        public void actionPerformed(ActionEvent ae)
+        {
+          exportPngInvoked();
+        }
+      };
+
     exitAction = new AbstractAction(getString("EXIT"))
       {
         public void actionPerformed(ActionEvent ae)
@@ -356,6 +462,23 @@ public class MainFrame extends JFrame
         }
       };
 
+    optionUndoTreeAction = new AbstractAction(getString("UNDO_TREE"))
+      {
+        public void actionPerformed(ActionEvent ae)
+        {
+          shapePanel.setUndoTreeEnabled(optionUndoTreeMenuItem.getState());
+          setEnabledStateOfActions();
+        }
+      };
+
+    optionPerformanceHudAction = new AbstractAction(getString("PERFORMANCE_HUD"))
+      {
+        public void actionPerformed(ActionEvent ae)
+        {
+          shapePanel.setPerformanceHudVisible(optionPerformanceHudMenuItem.getState());
+        }
+      };
+
     freehandAction = new AbstractAction(getString("FREE_HAND"))
     {
       public void actionPerformed(ActionEvent ae)
@@ -436,6 +559,21 @@ JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
 
     if (answer == JOptionPane.YES_OPTION)
     {
+      // Let an ongoing save complete.
+      if (documentSaver != null)
+      {
+        try
+        {
+          documentSaver.get();
+        }
+        catch (Exception e)
+        {
+          e.printStackTrace();
+        }
+      }
+
+      // The user has chosen to discard the unsaved changes.
+      journal.discard();
       System.exit(0);
     }
   }
@@ -482,11 +620,14 @@ JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
     KeyStroke acceleratorUndo = KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_MASK);
     KeyStroke acceleratorRedo = KeyStroke.getKeyStroke(KeyEvent.VK_R, InputEvent.CTRL_MASK);
     KeyStroke acceleratorDelete = KeyStroke.getKeyStroke(KeyEvent.VK_D, InputEvent.CTRL_MASK);
+    KeyStroke acceleratorSelectAll = KeyStroke.getKeyStroke(KeyEvent.VK_A, InputEvent.CTRL_MASK);
+    KeyStroke acceleratorInvertSelection = KeyStroke.getKeyStroke(KeyEvent.VK_I, InputEvent.CTRL_MASK);
     KeyStroke acceleratorSave = KeyStroke.getKeyStroke(KeyEvent.VK_S, InputEvent.CTRL_MASK);
     KeyStroke acceleratorSaveAs = KeyStroke.getKeyStroke(KeyEvent.VK_W, InputEvent.CTRL_MASK);
     KeyStroke acceleratorOpen = KeyStroke.getKeyStroke(KeyEvent.VK_O, InputEvent.CTRL_MASK);
     KeyStroke acceleratorExit = KeyStroke.getKeyStroke(KeyEvent.VK_E, InputEvent.CTRL_MASK);
     KeyStroke acceleratorFill = KeyStroke.getKeyStroke(KeyEvent.VK_F, InputEvent.CTRL_MASK);
+    KeyStroke acceleratorPerformanceHud = KeyStroke.getKeyStroke(KeyEvent.VK_F12, 0);
     KeyStroke acceleratorFreeHand = KeyStroke.getKeyStroke(KeyEvent.VK_H, InputEvent.CTRL_MASK);
     KeyStroke acceleratorLine = KeyStroke.getKeyStroke(KeyEvent.VK_L, InputEvent.CTRL_MASK);
     KeyStroke acceleratorCircle = KeyStroke.getKeyStroke(KeyEvent.VK_P, InputEvent.CTRL_MASK);
@@ -522,6 +663,16 @@ JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
     menuItem.setMnemonic(KeyEvent.VK_O);
     menuItem.setAccelerator(acceleratorOpen);
 
+    // Filled once the window has been painted.
+    openRecentMenu = new JMenu(getString("OPEN_RECENT"));
+    fileMenu.add(openRecentMenu);
+
+    fileMenu.addSeparator();
+
+    fileMenu.add(importSvgAction);
+    fileMenu.add(exportSvgAction);
+    fileMenu.add(exportPngAction);
+
     fileMenu.addSeparator();
 
     menuItem = fileMenu.add(exitAction);
@@ -539,10 +690,21 @@ JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
     menuItem = editMenu.add(redoAction);
     menuItem.setMnemonic(KeyEvent.VK_R);
     menuItem.setAccelerator(acceleratorRedo);
+    menuItem = editMenu.add(previousBranchAction);
+    menuItem.setMnemonic(KeyEvent.VK_P);
+    menuItem = editMenu.add(nextBranchAction);
+    menuItem.setMnemonic(KeyEvent.VK_N);
     editMenu.addSeparator();
     menuItem = editMenu.add(deleteAction);
     menuItem.setMnemonic(KeyEvent.VK_D);
     menuItem.setAccelerator(acceleratorDelete);
+    editMenu.addSeparator();
+    menuItem = editMenu.add(selectAllAction);
+    menuItem.setMnemonic(KeyEvent.VK_A);
+    menuItem.setAccelerator(acceleratorSelectAll);
+    menuItem = editMenu.add(invertSelectionAction);
+    menuItem.setMnemonic(KeyEvent.VK_I);
+    menuItem.setAccelerator(acceleratorInvertSelection);
 
     JMenu toolsMenu = new JMenu(getString("TOOLS"));
     toolsMenu.setMnemonic(KeyEvent.VK_T);
@@ -626,6 +788,14 @@ JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
     optionFillMenuItem = new JCheckBoxMenuItem(optionFillAction);
     optionFillMenuItem.setAccelerator(acceleratorFill);
     optionsMenu.add(optionFillMenuItem);
+    optionUndoTreeMenuItem = new JCheckBoxMenuItem(optionUndoTreeAction);
+    optionsMenu.add(optionUndoTreeMenuItem);
+    // Read when a save is started.
+    optionCompressMenuItem = new JCheckBoxMenuItem(getString("COMPRESS"));
+    optionsMenu.add(optionCompressMenuItem);
+    optionPerformanceHudMenuItem = new JCheckBoxMenuItem(optionPerformanceHudAction);
+    optionPerformanceHudMenuItem.setAccelerator(acceleratorPerformanceHud);
+    optionsMenu.add(optionPerformanceHudMenuItem);
 
     optionsMenu.add(strokeWidthMenu);
 
@@ -815,10 +985,46 @@ JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
   {
     undoAction.setEnabled(shapePanel.hasAtLeastOneShapeInUndoStack());
     redoAction.setEnabled(shapePanel.hasAtLeastOneShapeInRedoList());
+    previousBranchAction.setEnabled(shapePanel.hasOtherUndoBranches());
+    nextBranchAction.setEnabled(shapePanel.hasOtherUndoBranches());
     deleteAction.setEnabled(shapePanel.isAShapeSelected());
     saveAction.setEnabled(saveFile != null && 
       hashCodeOfShapesLastOpen != shapePanel.hashCodeOfShapes()); 
     saveAsAction.setEnabled(shapePanel.hasAtLeastOneShapeInUndoStack()); // TODO: improve
+
+    // The document must not be replaced or saved while it is being loaded, imported into or saved.
+    if (documentLoader != null || documentImporter != null || documentSaver != null)
+    {
+      newAction.setEnabled(false);
+      openAction.setEnabled(false);
+      saveAction.setEnabled(false);
+      saveAsAction.setEnabled(false);
+    }
+    else
+    {
+      newAction.setEnabled(true);
+      openAction.setEnabled(true);
+    }
+    openRecentMenu.setEnabled(openAction.isEnabled() && openRecentMenu.getItemCount() > 0);
+
+    // Changes made while a document is loaded could neither be journaled, since the journal is
+    // started when the load has completed, nor be kept if the load fails. Changes made during an
+    // import would end up in the middle of it, and could not be kept apart if the import fails.
+    if (documentLoader != null || documentImporter != null)
+    {
+      undoAction.setEnabled(false);
+      redoAction.setEnabled(false);
+      previousBranchAction.setEnabled(false);
+      nextBranchAction.setEnabled(false);
+      deleteAction.setEnabled(false);
+    }
+    shapePanel.setEditable(documentLoader == null && documentImporter == null);
+
+    // Only the loaded or imported part of a document could be exported, and imported shapes
+    // would end up among the loaded ones.
+    importSvgAction.setEnabled(documentLoader == null && documentImporter == null);
+    exportSvgAction.setEnabled(documentLoader == null && documentImporter == null);
+    exportPngAction.setEnabled(documentLoader == null && documentImporter == null);
   }
 
   /**
@@ -924,18 +1130,8 @@ JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
    */
   private void saveInvoked()
   {    
-    try
-    {      
-      FileHandler.save(saveFile, shapePanel.getShapes());
-      storeSaveFile(saveFile); // To update the hash code of the shapes.
-    }
-    catch (Exception e)
-    {
-      e.printStackTrace();
-      JOptionPane.showMessageDialog(this, 
-                                    getString("SAVE_ERROR"),
-                                    getString("ERROR"), JOptionPane.ERROR_MESSAGE);
-    }       
+    documentSaver = new DocumentSaver(saveFile);
+    documentSaver.execute();
   }
 
   /**
@@ -955,21 +1151,65 @@ JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
     if (option == JFileChooser.APPROVE_OPTION) {      
       File file = fileChooser.getSelectedFile();
       // Save the content in the file.
-      try
-      {
-        FileHandler.save(file, shapePanel.getShapes());
-        storeSaveFile(file);
-      }
-      catch (Exception e)
-      {
-        e.printStackTrace();
-        JOptionPane.showMessageDialog(this, 
-         getString("SAVE_ERROR"), 
-         getString("ERROR"), JOptionPane.ERROR_MESSAGE);
-      }       
+      documentSaver = new DocumentSaver(file);
+      documentSaver.execute();
     }    
   }
 
+  /**
+   * Called when the import SVG action has been triggered.
+   */
+  private void importSvgInvoked()
+  {
+    JFileChooser fileChooser = new JFileChooser();
+    fileChooser.setAcceptAllFileFilterUsed(false);
+    fileChooser.setFileFilter(SVG_FILE_FILTER);
+
+    if (fileChooser.showOpenDialog(MainFrame.this) == JFileChooser.APPROVE_OPTION)
+    {
+      documentImporter = new DocumentImporter(fileChooser.getSelectedFile());
+      documentImporter.execute();
+      setEnabledStateOfActions();
+    }
+  }
+
+  /**
+   * Called when the export SVG action has been triggered.
+   */
+  private void exportSvgInvoked()
+  {
+    JFileChooser fileChooser = new JFileChooser();
+    fileChooser.setAcceptAllFileFilterUsed(false);
+    fileChooser.setFileFilter(SVG_FILE_FILTER);
+
+    if (fileChooser.showSaveDialog(MainFrame.this) == JFileChooser.APPROVE_OPTION)
+    {
+      new DocumentExporter(fileChooser.getSelectedFile(), 0).execute();
+    }
+  }
+
+  /**
+   * Called when the export PNG action has been triggered.
+   */
+  private void exportPngInvoked()
+  {
+    Integer scale = (Integer)JOptionPane.showInputDialog(MainFrame.this, getString("PNG_SCALE"),
+      getString("EXPORT_PNG"), JOptionPane.QUESTION_MESSAGE, null, PNG_SCALES, PNG_SCALES[0]);
+    if (scale == null)
+    {
+      return;
+    }
+
+    JFileChooser fileChooser = new JFileChooser();
+    fileChooser.setAcceptAllFileFilterUsed(false);
+    fileChooser.setFileFilter(PNG_FILE_FILTER);
+
+    if (fileChooser.showSaveDialog(MainFrame.this) == JFileChooser.APPROVE_OPTION)
+    {
+      new DocumentExporter(fileChooser.getSelectedFile(), scale).execute();
+    }
+  }
+
   /**
    * Called when the open action has been triggered.
    */
@@ -980,26 +1220,139 @@ JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
     fileChooser.setAcceptAllFileFilterUsed(false);
     fileChooser.setFileFilter(AAR_FILE_FILTER);
 
+    // Preview the thumbnail of the selected file, if it is in the cache.
+    JLabel preview = new JLabel();
+    preview.setHorizontalAlignment(SwingConstants.CENTER);
+    preview.setPreferredSize(new Dimension(PREVIEW_SIZE, PREVIEW_SIZE));
+    fileChooser.setAccessory(preview);
+    fileChooser.addPropertyChangeListener(JFileChooser.SELECTED_FILE_CHANGED_PROPERTY, event ->
+      {
+        File file = (File)event.getNewValue();
+        preview.setIcon(null);
+        if (file != null)
+        {
+          ThumbnailCache.load(file, PREVIEW_SIZE, false, thumbnail ->
+            {
+              // The selection may have moved on while the thumbnail was read.
+              if (thumbnail != null && file.equals(fileChooser.getSelectedFile()))
+              {
+                preview.setIcon(new ImageIcon(thumbnail));
+              }
+            });
+        }
+      });
+
     // Display it.
     int option = fileChooser.showOpenDialog(MainFrame.this);
 
     // Any file selected?
     if (option == JFileChooser.APPROVE_OPTION) {      
       File file = fileChooser.getSelectedFile();
-      // Open the content in the file.
+      openDocument(file);
+    }    
+  }
+
+  /**
+   * Opens a document. The shapes are displayed as they are loaded. If a journal was left
+   * behind for the document, the user is asked whether to recover the changes in it.
+   *
+   * @param file The document to open.
+   */
+  private void openDocument(File file)
+  {
+    boolean recover = false;
+    if (Journal.hasJournal(file))
+    {
+      int answer = JOptionPane.showConfirmDialog(this,
+        getString("RECOVER_DIALOG_MESSAGE") + " " + file.getName() + "?",
+        getString("RECOVER_DIALOG_TITLE"),
+        JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
+      recover = answer == JOptionPane.YES_OPTION;
+    }
+
+    DocumentLoader loader = new DocumentLoader(file, recover);
+    documentLoader = loader;
+
+    // Shown until the shapes have been loaded, if the thumbnail is read before that.
+    ThumbnailCache.load(file, 0, true, thumbnail ->
+      {
+        if (thumbnail != null && documentLoader == loader)
+        {
+          shapePanel.setPlaceholder(thumbnail, ThumbnailCache.SCALE);
+        }
+      });
+
+    loader.execute();
+    setEnabledStateOfActions();
+  }
+
+  /**
+   * Makes a document that has just been opened or saved the most recent one, and makes a
+   * thumbnail of it in the background unless it has one already.
+   *
+   * @param file The document.
+   * @param shapes The shapes saved in the document, or null if the document should get no thumbnail.
+   */
+  private void addRecentFile(File file, List<DrawableShape> shapes)
+  {
+    RecentFiles.add(file);
+    if (shapes != null)
+    {
       try
       {
-        shapePanel.setShapes(FileHandler.load(file));
-        storeSaveFile(file);
+        // Looked up now, while the document is as the shapes were saved.
+        Path thumbnail = ThumbnailCache.getThumbnailFile(file);
+        ThumbnailCache.generate(thumbnail, shapes, shapePanel.getSize(), this::updateOpenRecentMenu);
       }
-      catch (Exception e)
+      catch (IOException e)
       {
         e.printStackTrace();
-        JOptionPane.showMessageDialog(this, 
-         "Caught exception when loading file", 
-         "Error", JOptionPane.ERROR_MESSAGE);
-      }       
-    }    
+      }
+    }
+    updateOpenRecentMenu();
+  }
+
+  /**
+   * Fills the open recent menu with the recent documents. Their thumbnails are read in the
+   * background and added to the menu items as they arrive.
+   */
+  private void updateOpenRecentMenu()
+  {
+    openRecentMenu.removeAll();
+    for (File file : RecentFiles.read())
+    {
+      JMenuItem menuItem = new JMenuItem(file.getName());
+      menuItem.setToolTipText(file.getPath());
+      menuItem.addActionListener(event ->
+        {
+          if (documentLoader == null && documentSaver == null)
+          {
+            openDocument(file);
+          }
+        });
+      openRecentMenu.add(menuItem);
+      ThumbnailCache.load(file, RECENT_FILE_ICON_SIZE, false, thumbnail ->
+        {
+          if (thumbnail != null)
+          {
+            menuItem.setIcon(new ImageIcon(thumbnail));
+          }
+        });
+    }
+    openRecentMenu.setEnabled(openAction.isEnabled() && openRecentMenu.getItemCount() > 0);
+  }
+
+  /**
+   * Offers to recover the changes made to the document that was open when the application
+   * last died, if any.
+   */
+  private void recoverUnsavedChanges()
+  {
+    File document = Journal.findDocumentToRecover();
+    if (document != null)
+    {
+      openDocument(document);
+    }
   }
 
   /**
@@ -1008,10 +1361,21 @@ JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
    * @param file The file to use to store in.
    */
   private void storeSaveFile(File file)
+  {
+    storeSaveFile(file, shapePanel.hashCodeOfShapes());
+  }
+
+  /**
+   *
+   *
+   * @param file The file to use to store in.
+   * @param hashCodeOfShapes The hash code of the shapes stored in the file.
+   */
+  private void storeSaveFile(File file, int hashCodeOfShapes)
   {
     saveFile = file;
 
-    hashCodeOfShapesLastOpen = shapePanel.hashCodeOfShapes();
+    hashCodeOfShapesLastOpen = hashCodeOfShapes;
     
     String title = getString("FRAME_TITLE");
     if (saveFile != null)
@@ -1027,10 +1391,51 @@ JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
    */
   public static void main(String[] args)
   {
+    StartupTimer.mark("main");
     MainFrame mf = new MainFrame(getString("FRAME_TITLE"));
+    StartupTimer.mark("frame built");
+    StartupTimer.setFirstPaintCallback(mf::finishStartup);
     mf.setVisible(true);
+    StartupTimer.mark("frame shown");
+    SwingUtilities.invokeLater(mf::recoverUnsavedChanges);
   } 
 
+  /**
+   * Does the work that is not needed to show the window, once the window has been painted.
+   * The parts of the first file chooser that are slow and may run off the EDT are warmed up on a
+   * background thread: the file system view is created and the shell folders of the home directory
+   * are looked up. No file chooser is created, as that would block the EDT just as the window
+   * becomes usable. Then the open recent menu is filled.
+   *
+   * If the system property almapaint.exitAfterStartup is true, the application exits when this
+   * is done. That is used to record the classes loaded at startup in a class data sharing archive.
+   */
+  private void finishStartup()
+  {
+    Thread preWarmer = new Thread(() ->
+      {
+        FileSystemView fileSystemView = FileSystemView.getFileSystemView();
+        File homeDirectory = fileSystemView.getHomeDirectory();
+        fileSystemView.getRoots();
+        fileSystemView.getFiles(homeDirectory, true);
+        ImageIO.getImageReadersByFormatName("png");
+        EditorMetrics.register(shapePanel);
+        SwingUtilities.invokeLater(() ->
+          {
+            updateOpenRecentMenu();
+            setEnabledStateOfActions();
+            StartupTimer.mark("pre-warmed");
+            StartupTimer.print();
+            if (Boolean.getBoolean("almapaint.exitAfterStartup"))
+            {
+              System.exit(0);
+            }
+          });
+      }, "Startup pre-warmer");
+    preWarmer.setDaemon(true);
+    preWarmer.start();
+  }
+
   //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
   // 
   // INNER CLASS
@@ -1101,6 +1506,542 @@ JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
   // 
   //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH 
 
+  /**
+   * Loads a document on a background thread and adds the shapes to the shape panel in batches,
+   * so that they are displayed while the rest of the document is being loaded. A progress
+   * monitor is displayed if the load takes a while. The document is loaded into a shape manager
+   * of its own, and the user cannot change it until it has been loaded. If the load is cancelled
+   * or fails, the manager of the document that was displayed before is put back, with its undo
+   * history, selection, unsaved changes and journal as they were.
+   *
+   * When recovering, the journal of the document is replayed on top of the loaded shapes
+   * before the shapes are displayed.
+   *
+   * Documents that consist of chunks are loaded starting with the chunks that are visible in
+   * the shape panel. The shapes of later chunks are inserted among the ones already loaded.
+   */
+  private class DocumentLoader extends SwingWorker<Void, LoadedShapes>
+  {
+    private static final int BATCH_SIZE = 1024;
+
+    private final File file;
+    private final Rectangle viewport;
+    private final boolean recover;
+    private final ShapeManager previousShapeManager;
+    private final Journal previousJournal;
+    private final ProgressMonitor progressMonitor;
+
+    /** The hash code of the shapes saved in the document. Only set when recovering. */
+    private int hashCodeOfSavedShapes;
+
+    /** Set on the loading thread. Read after get() has returned. Null when recovering. */
+    private SavedDocument loadedDocument;
+
+    /** The positions in the document of the shapes that have been published. Loading thread only. */
+    private final BitSet loadedPositions = new BitSet();
+
+    /** Loaded shapes not yet published, and their positions in the document. Loading thread only. */
+    private final List<DrawableShape> pendingShapes = new ArrayList<>();
+    private int[] pendingPositions = new int[BATCH_SIZE];
+    private int numberOfPendingShapes;
+
+    private DocumentLoader(File file, boolean recover)
+    {
+      this.file = file;
+      this.viewport = shapePanel.getVisibleRect();
+      this.recover = recover;
+      this.previousJournal = journal;
+      this.progressMonitor = new ProgressMonitor(MainFrame.this, getString("OPENING") + " " + file.getName(),
+        null, 0, 100);
+
+      // The new manager has no change listener, since the loaded shapes are not changes to journal.
+      this.previousShapeManager = shapePanel.replaceShapeManager(new ShapeManager());
+      shapePanel.markShapesAsSaved();
+    }
+
+    @Override
+    protected Void doInBackground()
+      throws Exception
+    {
+      if (recover)
+      {
+        // The recovered changes are not saved, so the next save saves all shapes anyway.
+        List<DrawableShape> savedShapes = FileHandler.load(file);
+        hashCodeOfSavedShapes = ShapePanel.hashCodeOfShapes(savedShapes);
+        publish(new LoadedShapes(Journal.recover(file, savedShapes), null));
+        return null;
+      }
+
+      loadedDocument = FileHandler.load(file, viewport, BATCH_SIZE, (shapes, positions, numberOfShapesLoaded, numberOfShapes) ->
+        {
+          if (positions == null)
+          {
+            publish(new LoadedShapes(shapes, null));
+          }
+          else
+          {
+            pendingShapes.addAll(shapes);
+            for (int position : positions)
+            {
+              pendingPositions = appendPosition(pendingPositions, numberOfPendingShapes++, position);
+            }
+            // Every insertion copies all shapes shown so far, so let the insertions grow with them.
+            if (numberOfPendingShapes >= Math.max(BATCH_SIZE, loadedPositions.cardinality()))
+            {
+              publishPendingShapes();
+            }
+          }
+          setProgress((int)(100L * numberOfShapesLoaded / Math.max(numberOfShapes, 1)));
+          return !isCancelled();
+        });
+      publishPendingShapes();
+
+      return null;
+    }
+
+    @Override
+    protected void process(List<LoadedShapes> batches)
+    {
+      if (progressMonitor.isCanceled())
+      {
+        cancel(false);
+      }
+
+      if (isCancelled())
+      {
+        return;
+      }
+
+      for (LoadedShapes batch : batches)
+      {
+        if (batch.indices == null)
+        {
+          shapePanel.addLoadedShapes(batch.shapes);
+        }
+        else
+        {
+          shapePanel.insertLoadedShapes(batch.shapes, batch.indices);
+        }
+      }
+      progressMonitor.setProgress(getProgress());
+    }
+
+    @Override
+    protected void done()
+    {
+      progressMonitor.close();
+      documentLoader = null;
+      shapePanel.setPlaceholder(null, 0);
+
+      try
+      {
+        if (isCancelled())
+        {
+          restorePreviousDocument();
+        }
+        else
+        {
+          get();
+          savedDocument = loadedDocument;
+          shapePanel.repaint();
+          previousJournal.discard();
+          journal = new Journal(file);
+          shapePanel.setShapeChangeListener(journal);
+          if (recover)
+          {
+            // The recovered changes are not saved, so they start the new journal.
+            storeSaveFile(file, hashCodeOfSavedShapes);
+            shapePanel.markAllShapesAsChanged();
+            journal.allShapesRemoved();
+            journal.shapesAdded(shapePanel.getShapes());
+            addRecentFile(file, null);
+          }
+          else
+          {
+            storeSaveFile(file);
+            addRecentFile(file, shapePanel.takeSnapshotOfShapes());
+          }
+        }
+      }
+      catch (InterruptedException | ExecutionException e)
+      {
+        e.printStackTrace();
+        restorePreviousDocument();
+        JOptionPane.showMessageDialog(MainFrame.this, 
+         getString("LOAD_ERROR"), 
+         getString("ERROR"), JOptionPane.ERROR_MESSAGE);
+      }
+
+      setEnabledStateOfActions();
+    }
+
+    /**
+     * Displays the document that was displayed before the load as it was. Its journal is
+     * still the change listener of its manager.
+     */
+    private void restorePreviousDocument()
+    {
+      shapePanel.replaceShapeManager(previousShapeManager);
+    }
+
+    /**
+     * Publishes the pending shapes in document order, each with the index in the list of shapes
+     * at which it should be inserted: after the published shapes that come before it in the document.
+     */
+    private void publishPendingShapes()
+    {
+      if (numberOfPendingShapes == 0)
+      {
+        return;
+      }
+
+      long[] positionsAndShapes = new long[numberOfPendingShapes];
+      for (int i = 0; i < numberOfPendingShapes; i++)
+      {
+        positionsAndShapes[i] = ((long)pendingPositions[i] << 32) | i;
+      }
+      Arrays.sort(positionsAndShapes);
+
+      List<DrawableShape> shapes = new ArrayList<>(numberOfPendingShapes);
+      int[] indices = new int[numberOfPendingShapes];
+      int numberOfLoadedShapesBefore = 0;
+      int previousPosition = 0;
+      for (int i = 0; i < numberOfPendingShapes; i++)
+      {
+        int position = (int)(positionsAndShapes[i] >>> 32);
+        shapes.add(pendingShapes.get((int)positionsAndShapes[i]));
+        numberOfLoadedShapesBefore += loadedPositions.get(previousPosition, position).cardinality();
+        indices[i] = numberOfLoadedShapesBefore + i;
+        previousPosition = position;
+      }
+      for (int i = 0; i < numberOfPendingShapes; i++)
+      {
+        loadedPositions.set(pendingPositions[i]);
+      }
+
+      pendingShapes.clear();
+      numberOfPendingShapes = 0;
+      publish(new LoadedShapes(shapes, indices));
+    }
+
+    private int[] appendPosition(int[] positions, int index, int position)
+    {
+      if (index == positions.length)
+      {
+        positions = Arrays.copyOf(positions, index * 2);
+      }
+      positions[index] = position;
+      return positions;
+    }
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  // 
+  // INNER CLASS.
+  // 
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH 
+
+  /**
+   * A batch of shapes loaded by a DocumentLoader.
+   */
+  private static class LoadedShapes
+  {
+    private final List<DrawableShape> shapes;
+    /** The positions the shapes should be inserted at, or null if they should be added last. */
+    private final int[] indices;
+
+    private LoadedShapes(List<DrawableShape> shapes, int[] indices)
+    {
+      this.shapes = shapes;
+      this.indices = indices;
+    }
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  // 
+  // INNER CLASS.
+  // 
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH 
+
+  /**
+   * Saves a snapshot of the document on a background thread, so that the user can keep on
+   * drawing during the save. The document is considered saved in the state of the snapshot,
+   * so edits made during the save leave it modified, and remain in the journal.
+   *
+   * Only the changes made since the document was last saved or loaded are saved, if they are
+   * known. If that leaves too much of the document occupied by replaced and removed shapes,
+   * the whole snapshot is saved after that, to compact the document.
+   */
+  private class DocumentSaver extends SwingWorker<Integer, Void>
+  {
+    private final File file;
+    private final List<DrawableShape> snapshot;
+    private final ShapeChanges changes;
+    private final int compressionLevel;
+    private final ProgressMonitor progressMonitor;
+
+    /** Set on the saving thread. Read after get() has returned. */
+    private SavedDocument documentAfterSave;
+
+    /** Set on the EDT when the user has cancelled the save in the progress monitor. */
+    private volatile boolean cancelRequested;
+
+    private DocumentSaver(File file)
+    {
+      this.file = file;
+      this.snapshot = shapePanel.takeSnapshotOfShapes();
+      this.changes = shapePanel.takeChanges();
+      this.compressionLevel = optionCompressMenuItem.getState() ?
+        FileHandler.DEFAULT_COMPRESSION_LEVEL : FileHandler.NO_COMPRESSION;
+      this.documentAfterSave = savedDocument;
+      journal.snapshotTaken();
+      this.progressMonitor = new ProgressMonitor(MainFrame.this, getString("SAVING") + " " + file.getName(),
+        null, 0, 100);
+
+      addPropertyChangeListener(event ->
+        {
+          if ("progress".equals(event.getPropertyName()))
+          {
+            progressMonitor.setProgress(getProgress());
+            cancelRequested = progressMonitor.isCanceled();
+          }
+        });
+    }
+
+    /**
+     * Saves the snapshot.
+     *
+     * @return The hash code of the saved shapes.
+     */
+    @Override
+    protected Integer doInBackground()
+      throws Exception
+    {
+      FileHandler.SaveListener listener = (numberOfShapesSaved, numberOfShapes) ->
+        {
+          setProgress((int)(100L * numberOfShapesSaved / numberOfShapes));
+          return !cancelRequested;
+        };
+      documentAfterSave = FileHandler.save(file, snapshot, changes, documentAfterSave, compressionLevel, listener);
+
+      if (documentAfterSave != null && documentAfterSave.needsCompaction())
+      {
+        try
+        {
+          documentAfterSave = FileHandler.save(file, snapshot, compressionLevel, listener);
+        }
+        catch (InterruptedIOException e)
+        {
+          // The changes are saved already, so the compaction can wait until the next save.
+        }
+      }
+
+      return ShapePanel.hashCodeOfShapes(snapshot);
+    }
+
+    @Override
+    protected void done()
+    {
+      progressMonitor.close();
+      documentSaver = null;
+
+      try
+      {
+        storeSaveFile(file, get());
+        savedDocument = documentAfterSave;
+        journal.saveCompleted(file);
+        addRecentFile(file, snapshot);
+      }
+      catch (ExecutionException e)
+      {
+        savedDocumentLost();
+        journal.saveFailed();
+        if (!(e.getCause() instanceof InterruptedIOException)) // Not cancelled by the user.
+        {
+          e.printStackTrace();
+          JOptionPane.showMessageDialog(MainFrame.this, 
+           getString("SAVE_ERROR"), 
+           getString("ERROR"), JOptionPane.ERROR_MESSAGE);
+        }
+      }
+      catch (InterruptedException e)
+      {
+        savedDocumentLost();
+        journal.saveFailed();
+        e.printStackTrace();
+      }
+
+      setEnabledStateOfActions();
+    }
+
+    /**
+     * The changes taken when the save started are not saved, and the document may have been
+     * partly written, so the next save has to save all shapes anew.
+     */
+    private void savedDocumentLost()
+    {
+      savedDocument = null;
+      shapePanel.markAllShapesAsChanged();
+    }
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  // 
+  // INNER CLASS.
+  // 
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH 
+
+  /**
+   * Imports the shapes of an SVG image on a background thread and adds them to the document
+   * in one go, so that the import is undone as one operation.
+   */
+  private class DocumentImporter extends SwingWorker<Void, List<DrawableShape>>
+  {
+    private static final int BATCH_SIZE = 1024;
+
+    private final File file;
+    private final ProgressMonitor progressMonitor;
+
+    private DocumentImporter(File file)
+    {
+      this.file = file;
+      this.progressMonitor = new ProgressMonitor(MainFrame.this, getString("IMPORTING") + " " + file.getName(),
+        null, 0, 100);
+    }
+
+    @Override
+    protected Void doInBackground()
+      throws Exception
+    {
+      SvgImporter.load(file, BATCH_SIZE, (shapes, numberOfShapesImported, numberOfBytesRead, numberOfBytes) ->
+        {
+          publish(shapes);
+          setProgress((int)(100 * numberOfBytesRead / Math.max(numberOfBytes, 1)));
+          return !isCancelled();
+        });
+
+      return null;
+    }
+
+    @Override
+    protected void process(List<List<DrawableShape>> batches)
+    {
+      if (progressMonitor.isCanceled())
+      {
+        cancel(false);
+      }
+
+      if (isCancelled())
+      {
+        return;
+      }
+
+      for (List<DrawableShape> batch : batches)
+      {
+        shapePanel.addImportedShapes(batch);
+      }
+      progressMonitor.setProgress(getProgress());
+    }
+
+    @Override
+    protected void done()
+    {
+      progressMonitor.close();
+      documentImporter = null;
+
+      try
+      {
+        if (isCancelled())
+        {
+          shapePanel.importAborted();
+        }
+        else
+        {
+          get();
+          shapePanel.importCompleted();
+        }
+      }
+      catch (InterruptedException | ExecutionException e)
+      {
+        e.printStackTrace();
+        shapePanel.importAborted();
+        JOptionPane.showMessageDialog(MainFrame.this, 
+         getString("IMPORT_ERROR"), 
+         getString("ERROR"), JOptionPane.ERROR_MESSAGE);
+      }
+
+      setEnabledStateOfActions();
+    }
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  // 
+  // INNER CLASS.
+  // 
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH 
+
+  /**
+   * Exports a snapshot of the document as an SVG or PNG image on a background thread.
+   */
+  private class DocumentExporter extends SwingWorker<Void, Void>
+  {
+    private final File file;
+    private final int pngScale;
+    private final List<DrawableShape> snapshot;
+    private final Dimension size;
+
+    /**
+     * Constructor
+     *
+     * @param file The file to export to.
+     * @param pngScale The scale to export a PNG image in, or 0 to export an SVG image.
+     */
+    private DocumentExporter(File file, int pngScale)
+    {
+      this.file = file;
+      this.pngScale = pngScale;
+      this.snapshot = shapePanel.takeSnapshotOfShapes();
+      this.size = shapePanel.getSize();
+    }
+
+    @Override
+    protected Void doInBackground()
+      throws Exception
+    {
+      if (pngScale > 0)
+      {
+        PngExporter.export(file, snapshot, size, pngScale);
+      }
+      else
+      {
+        SvgExporter.export(file, snapshot, size);
+      }
+      return null;
+    }
+
+    @Override
+    protected void done()
+    {
+      try
+      {
+        get();
+      }
+      catch (InterruptedException | ExecutionException e)
+      {
+        e.printStackTrace();
+        JOptionPane.showMessageDialog(MainFrame.this, 
+         getString("EXPORT_ERROR"), 
+         getString("ERROR"), JOptionPane.ERROR_MESSAGE);
+      }
+    }
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  // 
+  // INNER CLASS.
+  // 
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH 
+
   private class StrokeWidthSetterAction extends AbstractAction
   {
     private int width;
@@ -20,5 +20,5 @@ package se.nohle.almapaint;
 
 enum OperationType
 {
-    ADD, REPLACE, REMOVE, RESIZE
+    ADD, REPLACE, REMOVE, RESIZE, COMPOUND
 }
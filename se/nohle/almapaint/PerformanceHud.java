@@ -0,0 +1,352 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * An overlay drawn on top of the shapes that shows how well the panel performs: frames per
+ * second, a histogram of the paint times, the number of shapes drawn and culled, the total
+ * number of freehand points, heap usage, garbage collections, the size of the undo history and
+ * the latency of the last hit test.
+ *
+ * The overlay is drawn on every paint, so it does not allocate. The text is built in a reused
+ * char array and the numbers are formatted into it by hand. The background is opaque, as Java2D
+ * allocates buffers to blend a translucent one.
+ */
+class PerformanceHud
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  private static final int MARGIN = 8;
+  private static final int PADDING = 6;
+  private static final int WIDTH = 230;
+  private static final int HISTOGRAM_HEIGHT = 30;
+  private static final int BAR_WIDTH = 18;
+
+  /** The number of paint times kept to compute the frame rate. */
+  private static final int NUMBER_OF_FRAME_TIMES = 128;
+
+  /** The upper bounds of the buckets of the paint time histogram, in milliseconds. */
+  private static final int[] BUCKET_LIMITS = {1, 2, 4, 8, 16, 32, 64, Integer.MAX_VALUE};
+  private static final char[][] BUCKET_LABELS = {
+    "1".toCharArray(), "2".toCharArray(), "4".toCharArray(), "8".toCharArray(),
+    "16".toCharArray(), "32".toCharArray(), "64".toCharArray(), "+".toCharArray()};
+
+  private static final Font FONT = new Font(Font.MONOSPACED, Font.PLAIN, 11);
+  private static final Color BACKGROUND_COLOR = new Color(32, 32, 32);
+  private static final Color TEXT_COLOR = Color.WHITE;
+  private static final Color BAR_COLOR = new Color(120, 200, 255);
+
+  private static final char[] FPS = "fps ".toCharArray();
+  private static final char[] PAINT = "  paint ".toCharArray();
+  private static final char[] PAINT_TIMES = "paint times (ms)".toCharArray();
+  private static final char[] DRAWN = "drawn ".toCharArray();
+  private static final char[] CULLED = "  culled ".toCharArray();
+  private static final char[] FREEHAND_POINTS = "freehand points ".toCharArray();
+  private static final char[] HEAP = "heap ".toCharArray();
+  private static final char[] MEGABYTES = " MB".toCharArray();
+  private static final char[] GC = "gc ".toCharArray();
+  private static final char[] COLLECTIONS = " collections, ".toCharArray();
+  private static final char[] MILLISECONDS = " ms".toCharArray();
+  private static final char[] UNDO_HISTORY = "undo history ".toCharArray();
+  private static final char[] HIT_TEST = "last hit test ".toCharArray();
+  private static final char[] NONE = "-".toCharArray();
+
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  /** The times at which the last paints ended, as a ring buffer. */
+  private final long[] frameTimes = new long[NUMBER_OF_FRAME_TIMES];
+  private int nextFrameTimeIndex;
+
+  private final int[] paintTimeCounts = new int[BUCKET_LIMITS.length];
+  private long lastPaintNanos;
+  private int numberOfShapesDrawn;
+  private int numberOfCulledShapes;
+  private long numberOfFreehandPoints;
+
+  private final GarbageCollectorMXBean[] garbageCollectors =
+    ManagementFactory.getGarbageCollectorMXBeans().toArray(new GarbageCollectorMXBean[0]);
+
+  /** The area covered by the overlay, in the coordinates of the panel. */
+  private final Rectangle bounds = new Rectangle(MARGIN, MARGIN, WIDTH, 0);
+
+  /** The text of the line being drawn. */
+  private final char[] line = new char[80];
+  private int lineLength;
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Returns the area covered by the overlay. Its height is known once the overlay has been drawn.
+   *
+   * @return The area, which must not be modified.
+   */
+  Rectangle getBounds()
+  {
+    return bounds;
+  }
+
+  /**
+   * Records a paint of the shapes.
+   *
+   * @param paintNanos The time it took to paint the shapes, in nanoseconds.
+   * @param numberOfShapesDrawn The number of shapes that were drawn.
+   * @param numberOfCulledShapes The number of shapes that were skipped as they were outside the area to paint.
+   * @param numberOfFreehandPoints The total number of points of the freehand shapes.
+   */
+  void paintCompleted(long paintNanos, int numberOfShapesDrawn, int numberOfCulledShapes,
+                      long numberOfFreehandPoints)
+  {
+    frameTimes[nextFrameTimeIndex] = System.nanoTime();
+    nextFrameTimeIndex = (nextFrameTimeIndex + 1) % NUMBER_OF_FRAME_TIMES;
+
+    long paintMillis = paintNanos / 1_000_000;
+    int bucket = 0;
+    while (paintMillis >= BUCKET_LIMITS[bucket])
+    {
+      bucket++;
+    }
+    paintTimeCounts[bucket]++;
+
+    this.lastPaintNanos = paintNanos;
+    this.numberOfShapesDrawn = numberOfShapesDrawn;
+    this.numberOfCulledShapes = numberOfCulledShapes;
+    this.numberOfFreehandPoints = numberOfFreehandPoints;
+  }
+
+  /**
+   * Draws the overlay.
+   *
+   * @param g The Graphics object to draw on.
+   * @param undoHistorySize The number of operations in the undo history.
+   * @param lastHitTestNanos The time the last hit test took, in nanoseconds, or -1 if there has been none.
+   */
+  void draw(Graphics g, int undoHistorySize, long lastHitTestNanos)
+  {
+    g.setFont(FONT);
+    FontMetrics fontMetrics = g.getFontMetrics();
+    int lineHeight = fontMetrics.getHeight();
+    bounds.height = 2 * PADDING + 8 * lineHeight + HISTOGRAM_HEIGHT;
+
+    g.setColor(BACKGROUND_COLOR);
+    g.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
+
+    int x = bounds.x + PADDING;
+    int y = bounds.y + PADDING + fontMetrics.getAscent();
+    g.setColor(TEXT_COLOR);
+
+    clearLine();
+    append(FPS);
+    append(getFramesPerSecond());
+    append(PAINT);
+    appendFixedPoint(lastPaintNanos / 100_000, 1);
+    append(MILLISECONDS);
+    drawLine(g, x, y);
+    y += lineHeight;
+
+    clearLine();
+    append(PAINT_TIMES);
+    drawLine(g, x, y);
+    drawHistogram(g, x, y + fontMetrics.getDescent());
+    y += HISTOGRAM_HEIGHT + lineHeight;
+
+    clearLine();
+    append(DRAWN);
+    append(numberOfShapesDrawn);
+    append(CULLED);
+    append(numberOfCulledShapes);
+    drawLine(g, x, y);
+    y += lineHeight;
+
+    clearLine();
+    append(FREEHAND_POINTS);
+    append(numberOfFreehandPoints);
+    drawLine(g, x, y);
+    y += lineHeight;
+
+    Runtime runtime = Runtime.getRuntime();
+    clearLine();
+    append(HEAP);
+    append((runtime.totalMemory() - runtime.freeMemory()) >> 20);
+    line[lineLength++] = '/';
+    append(runtime.maxMemory() >> 20);
+    append(MEGABYTES);
+    drawLine(g, x, y);
+    y += lineHeight;
+
+    long numberOfCollections = 0;
+    long collectionMillis = 0;
+    for (GarbageCollectorMXBean garbageCollector : garbageCollectors)
+    {
+      numberOfCollections += Math.max(garbageCollector.getCollectionCount(), 0);
+      collectionMillis += Math.max(garbageCollector.getCollectionTime(), 0);
+    }
+    clearLine();
+    append(GC);
+    append(numberOfCollections);
+    append(COLLECTIONS);
+    append(collectionMillis);
+    append(MILLISECONDS);
+    drawLine(g, x, y);
+    y += lineHeight;
+
+    clearLine();
+    append(UNDO_HISTORY);
+    append(undoHistorySize);
+    drawLine(g, x, y);
+    y += lineHeight;
+
+    clearLine();
+    append(HIT_TEST);
+    if (lastHitTestNanos < 0)
+    {
+      append(NONE);
+    }
+    else
+    {
+      appendFixedPoint(lastHitTestNanos / 10_000, 2);
+      append(MILLISECONDS);
+    }
+    drawLine(g, x, y);
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PRIVATE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Returns the number of paints that ended during the last second.
+   */
+  private int getFramesPerSecond()
+  {
+    long oneSecondAgo = System.nanoTime() - 1_000_000_000L;
+    int numberOfFrames = 0;
+    for (long frameTime : frameTimes)
+    {
+      if (frameTime != 0 && frameTime - oneSecondAgo > 0)
+      {
+        numberOfFrames++;
+      }
+    }
+
+    return numberOfFrames;
+  }
+
+  /**
+   * Draws the paint time histogram as one bar per bucket, scaled to the largest bucket.
+   *
+   * @param y The top of the histogram.
+   */
+  private void drawHistogram(Graphics g, int x, int y)
+  {
+    int largestCount = 1;
+    for (int count : paintTimeCounts)
+    {
+      largestCount = Math.max(largestCount, count);
+    }
+
+    int barAreaHeight = HISTOGRAM_HEIGHT - g.getFontMetrics().getHeight();
+    int labelY = y + HISTOGRAM_HEIGHT - g.getFontMetrics().getDescent();
+    for (int i = 0; i < paintTimeCounts.length; i++)
+    {
+      int barX = x + i * (BAR_WIDTH + 8);
+      int barHeight = (int)((long)paintTimeCounts[i] * barAreaHeight / largestCount);
+      g.setColor(BAR_COLOR);
+      g.fillRect(barX, y + barAreaHeight - barHeight, BAR_WIDTH, barHeight);
+      g.setColor(TEXT_COLOR);
+      g.drawChars(BUCKET_LABELS[i], 0, BUCKET_LABELS[i].length, barX, labelY);
+    }
+  }
+
+  private void clearLine()
+  {
+    lineLength = 0;
+  }
+
+  private void drawLine(Graphics g, int x, int y)
+  {
+    g.drawChars(line, 0, lineLength, x, y);
+  }
+
+  private void append(char[] text)
+  {
+    System.arraycopy(text, 0, line, lineLength, text.length);
+    lineLength += text.length;
+  }
+
+  /**
+   * Appends a non-negative number in decimal.
+   */
+  private void append(long value)
+  {
+    int start = lineLength;
+    do
+    {
+      line[lineLength++] = (char)('0' + value % 10);
+      value /= 10;
+    }
+    while (value > 0);
+
+    // The digits were appended least significant first.
+    for (int i = start, j = lineLength - 1; i < j; i++, j--)
+    {
+      char digit = line[i];
+      line[i] = line[j];
+      line[j] = digit;
+    }
+  }
+
+  /**
+   * Appends a non-negative fixed-point number.
+   *
+   * @param value The number multiplied by ten to the power of decimals.
+   * @param decimals The number of decimals.
+   */
+  private void appendFixedPoint(long value, int decimals)
+  {
+    long scale = 1;
+    for (int i = 0; i < decimals; i++)
+    {
+      scale *= 10;
+    }
+
+    append(value / scale);
+    line[lineLength++] = '.';
+    long fraction = value % scale;
+    for (long digitScale = scale / 10; digitScale > 0; digitScale /= 10)
+    {
+      line[lineLength++] = (char)('0' + fraction / digitScale % 10);
+    }
+  }
+}
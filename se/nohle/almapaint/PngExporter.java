@@ -0,0 +1,432 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Exports shapes as a PNG image, possibly scaled up to a size far larger than the image of the
+ * whole document could be in memory.
+ *
+ * The image is rendered in horizontal bands of about a million pixels each, in parallel, with the
+ * draw methods of the shapes. A band only draws the shapes whose bounds intersect it. The bands
+ * are encoded in order as they complete and are then dropped, and only a few more bands than
+ * there are threads are rendered ahead of the encoding, so the memory used is a few bands rather
+ * than the whole image. A band is turned into filtered PNG scanlines by the thread that renders
+ * it, which leaves only the compression to be done one band at a time.
+ */
+class PngExporter
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  private static final int PIXELS_PER_BAND = 1024 * 1024;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+  /** The color of the drawing area of the application. */
+  private static final Color BACKGROUND_COLOR = Color.WHITE;
+
+  /** The number of pixels by which the bounds of a shape are widened, to allow for rounding. */
+  private static final int MARGIN = 1;
+
+  private static final byte[] SIGNATURE = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+  private static final byte BIT_DEPTH = 8;
+  private static final byte COLOR_TYPE_RGB = 2;
+  private static final byte FILTER_TYPE_SUB = 1;
+
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  private final DrawableShape[] shapes;
+  private final double scale;
+  private final int width;
+  private final int height;
+  private final int bandHeight;
+  private final int numberOfBands;
+
+  /** The indices of the shapes that intersect each band, in drawing order. */
+  private final int[][] shapesOfBands;
+
+  private PngExporter(List<DrawableShape> shapes, Dimension size, double scale)
+  {
+    this.shapes = new DrawableShape[shapes.size()];
+    this.scale = scale;
+    width = (int)Math.ceil(size.width * scale);
+    height = (int)Math.ceil(size.height * scale);
+    if (width <= 0 || height <= 0)
+    {
+      throw new IllegalArgumentException("Empty image: " + width + "x" + height);
+    }
+    bandHeight = Math.max(1, Math.min(height, PIXELS_PER_BAND / width));
+    numberOfBands = (height + bandHeight - 1) / bandHeight;
+
+    int index = 0;
+    for (DrawableShape shape : shapes)
+    {
+      if (shape instanceof AbstractDrawableShape && ((AbstractDrawableShape)shape).isSelected())
+      {
+        // The selection markers should not be part of the image.
+        shape = shape.createClone();
+        shape.unselect();
+      }
+      this.shapes[index++] = shape;
+    }
+    shapesOfBands = assignShapesToBands();
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Exports shapes to a PNG file, rendering on the common fork/join pool.
+   *
+   * @param file The file to export to.
+   * @param shapes The shapes to export, in the order they are drawn.
+   * @param size The size of the document. Shapes outside of it are clipped.
+   * @param scale The number of pixels of the image per pixel of the document.
+   */
+  static void export(File file, List<DrawableShape> shapes, Dimension size, double scale)
+    throws IOException
+  {
+    export(file, shapes, size, scale, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Exports shapes to a PNG file.
+   *
+   * @param file The file to export to.
+   * @param shapes The shapes to export, in the order they are drawn.
+   * @param size The size of the document. Shapes outside of it are clipped.
+   * @param scale The number of pixels of the image per pixel of the document.
+   * @param pool The pool to render the bands on.
+   */
+  static void export(File file, List<DrawableShape> shapes, Dimension size, double scale, ForkJoinPool pool)
+    throws IOException
+  {
+    PngExporter exporter = new PngExporter(shapes, size, scale);
+    try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(file.toPath()), BUFFER_SIZE))
+    {
+      exporter.writeImage(os, pool);
+    }
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PRIVATE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Finds the bands that each shape intersects.
+   *
+   * @return The indices of the shapes of each band, in drawing order.
+   */
+  private int[][] assignShapesToBands()
+  {
+    // First pass: the bands of each shape, and the number of shapes of each band.
+    int[] firstBands = new int[shapes.length];
+    int[] lastBands = new int[shapes.length];
+    int[] numbersOfShapes = new int[numberOfBands];
+    for (int i = 0; i < shapes.length; i++)
+    {
+      Rectangle bounds = shapes[i].getBounds();
+      long top = (long)Math.floor(bounds.y * scale) - MARGIN;
+      long bottom = (long)Math.ceil((bounds.y + (long)bounds.height) * scale) + MARGIN;
+      long left = (long)Math.floor(bounds.x * scale) - MARGIN;
+      long right = (long)Math.ceil((bounds.x + (long)bounds.width) * scale) + MARGIN;
+      if (bottom < 0 || top >= height || right < 0 || left >= width)
+      {
+        firstBands[i] = 0;
+        lastBands[i] = -1;
+        continue;
+      }
+
+      firstBands[i] = (int)(Math.max(0, top) / bandHeight);
+      lastBands[i] = (int)(Math.min(height - 1, bottom) / bandHeight);
+      for (int band = firstBands[i]; band <= lastBands[i]; band++)
+      {
+        numbersOfShapes[band]++;
+      }
+    }
+
+    // Second pass: the shapes of each band.
+    int[][] shapesOfBands = new int[numberOfBands][];
+    for (int band = 0; band < numberOfBands; band++)
+    {
+      shapesOfBands[band] = new int[numbersOfShapes[band]];
+      numbersOfShapes[band] = 0;
+    }
+    for (int i = 0; i < shapes.length; i++)
+    {
+      for (int band = firstBands[i]; band <= lastBands[i]; band++)
+      {
+        shapesOfBands[band][numbersOfShapes[band]++] = i;
+      }
+    }
+
+    return shapesOfBands;
+  }
+
+  private void writeImage(OutputStream os, ForkJoinPool pool)
+    throws IOException
+  {
+    os.write(SIGNATURE);
+
+    ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+    DataOutputStream dos = new DataOutputStream(header);
+    dos.writeInt(width);
+    dos.writeInt(height);
+    dos.writeByte(BIT_DEPTH);
+    dos.writeByte(COLOR_TYPE_RGB);
+    // Compression method, filter method and interlace method.
+    dos.writeByte(0);
+    dos.writeByte(0);
+    dos.writeByte(0);
+    writeChunk(os, "IHDR", header.toByteArray(), header.size());
+
+    // Rendering more bands ahead than there are threads would only use memory.
+    int maxNumberOfBandsInProgress = pool.getParallelism() + 1;
+    Deque<Future<byte[]>> bandsInProgress = new ArrayDeque<>();
+    Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+    try
+    {
+      ChunkOutputStream imageData = new ChunkOutputStream(os, "IDAT");
+      DeflaterOutputStream compressedImageData = new DeflaterOutputStream(imageData, deflater, BUFFER_SIZE);
+      int nextBand = 0;
+      for (int band = 0; band < numberOfBands; band++)
+      {
+        while (nextBand < numberOfBands && bandsInProgress.size() < maxNumberOfBandsInProgress)
+        {
+          int bandToRender = nextBand++;
+          bandsInProgress.addLast(pool.submit(() -> renderBand(bandToRender)));
+        }
+        compressedImageData.write(join(bandsInProgress.removeFirst()));
+      }
+      compressedImageData.finish();
+      imageData.finish();
+    }
+    finally
+    {
+      for (Future<byte[]> bandInProgress : bandsInProgress)
+      {
+        bandInProgress.cancel(false);
+      }
+      deflater.end();
+    }
+
+    writeChunk(os, "IEND", new byte[0], 0);
+  }
+
+  /**
+   * Renders a band of the image. Run by a thread of the pool.
+   *
+   * @param band The index of the band.
+   * @return The rows of the band as filtered PNG scanlines.
+   */
+  private byte[] renderBand(int band)
+  {
+    int top = band * bandHeight;
+    int numberOfRows = Math.min(bandHeight, height - top);
+    BufferedImage image = new BufferedImage(width, numberOfRows, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+    try
+    {
+      g.setColor(BACKGROUND_COLOR);
+      g.fillRect(0, 0, width, numberOfRows);
+      g.translate(0, -top);
+      g.scale(scale, scale);
+      for (int index : shapesOfBands[band])
+      {
+        shapes[index].draw(g);
+      }
+    }
+    finally
+    {
+      g.dispose();
+    }
+
+    // Each byte is stored as the difference to the same byte of the pixel to the left, which
+    // turns areas of a single color into zeros that compress well.
+    int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+    byte[] scanlines = new byte[numberOfRows * (1 + 3 * width)];
+    int position = 0;
+    int pixelIndex = 0;
+    for (int row = 0; row < numberOfRows; row++)
+    {
+      scanlines[position++] = FILTER_TYPE_SUB;
+      int previousPixel = 0;
+      for (int x = 0; x < width; x++)
+      {
+        int pixel = pixels[pixelIndex++];
+        scanlines[position++] = (byte)((pixel >> 16) - (previousPixel >> 16));
+        scanlines[position++] = (byte)((pixel >> 8) - (previousPixel >> 8));
+        scanlines[position++] = (byte)(pixel - previousPixel);
+        previousPixel = pixel;
+      }
+    }
+
+    return scanlines;
+  }
+
+  /**
+   * Writes a PNG chunk: its length, its type, its data and the CRC of its type and data.
+   */
+  private static void writeChunk(OutputStream os, String type, byte[] data, int length)
+    throws IOException
+  {
+    byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+    CRC32 crc = new CRC32();
+    crc.update(typeBytes);
+    crc.update(data, 0, length);
+
+    DataOutputStream dos = new DataOutputStream(os);
+    dos.writeInt(length);
+    dos.write(typeBytes);
+    dos.write(data, 0, length);
+    dos.writeInt((int)crc.getValue());
+  }
+
+  /**
+   * Waits for a band to be rendered.
+   *
+   * @param task The rendering task.
+   * @return The rendered band.
+   * @throws IOException If the wait was interrupted.
+   */
+  private static byte[] join(Future<byte[]> task)
+    throws IOException
+  {
+    try
+    {
+      return task.get();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("The export was interrupted");
+    }
+    catch (ExecutionException e)
+    {
+      // Rethrow what the task threw, so that it is handled as if the task had been run here.
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException)
+      {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error)
+      {
+        throw (Error)cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  //
+  // INNER CLASS
+  //
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+
+  /**
+   * Splits the bytes written to it into chunks of a type.
+   */
+  private static class ChunkOutputStream extends OutputStream
+  {
+    private final OutputStream os;
+    private final String type;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int size;
+
+    private ChunkOutputStream(OutputStream os, String type)
+    {
+      this.os = os;
+      this.type = type;
+    }
+
+    @Override
+    public void write(int b)
+      throws IOException
+    {
+      if (size == buffer.length)
+      {
+        flushChunk();
+      }
+      buffer[size++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length)
+      throws IOException
+    {
+      while (length > 0)
+      {
+        if (size == buffer.length)
+        {
+          flushChunk();
+        }
+        int numberOfBytes = Math.min(length, buffer.length - size);
+        System.arraycopy(bytes, offset, buffer, size, numberOfBytes);
+        size += numberOfBytes;
+        offset += numberOfBytes;
+        length -= numberOfBytes;
+      }
+    }
+
+    /**
+     * Writes the bytes written since the last chunk as a chunk. The underlying stream is
+     * left open.
+     */
+    private void finish()
+      throws IOException
+    {
+      if (size > 0)
+      {
+        flushChunk();
+      }
+    }
+
+    private void flushChunk()
+      throws IOException
+    {
+      writeChunk(os, type, buffer, size);
+      size = 0;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The documents most recently opened or saved, most recent first. The paths of the documents are
+ * kept in a file in the home directory of the user, one per line.
+ */
+class RecentFiles
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  private static final Path RECENT_FILES_FILE = Paths.get(System.getProperty("user.home"), ".almapaint-recent");
+  private static final int MAX_NUMBER_OF_FILES = 8;
+
+  private RecentFiles()
+  {
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Returns the recent documents that still exist.
+   *
+   * @return The documents, most recent first.
+   */
+  static List<File> read()
+  {
+    List<File> files = new ArrayList<>();
+    try
+    {
+      if (Files.isRegularFile(RECENT_FILES_FILE))
+      {
+        for (String line : Files.readAllLines(RECENT_FILES_FILE, StandardCharsets.UTF_8))
+        {
+          File file = new File(line.trim());
+          if (!line.trim().isEmpty() && file.isFile())
+          {
+            files.add(file);
+          }
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+    }
+
+    return files;
+  }
+
+  /**
+   * Makes a document the most recent one.
+   *
+   * @param document The document.
+   */
+  static void add(File document)
+  {
+    List<File> files = read();
+    files.remove(document.getAbsoluteFile());
+    files.add(0, document.getAbsoluteFile());
+
+    List<String> lines = new ArrayList<>();
+    for (File file : files.subList(0, Math.min(files.size(), MAX_NUMBER_OF_FILES)))
+    {
+      lines.add(file.getPath());
+    }
+
+    try
+    {
+      Files.write(RECENT_FILES_FILE, lines, StandardCharsets.UTF_8);
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+    }
+  }
+}
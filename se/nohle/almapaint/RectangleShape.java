@@ -26,6 +26,8 @@ import static se.nohle.almapaint.Utilities.pointInRectangle;
  */
 class RectangleShape extends AbstractDrawableShape
 {
+  private final static long serialVersionUID = 6804232794159670114L;
+
   enum RectangleResizeArea
   {
     TOP_LEFT, TOP_RIGHT, BOTTOM_LEFT, BOTTOM_RIGHT
@@ -58,6 +60,28 @@ class RectangleShape extends AbstractDrawableShape
     height = Math.abs(startPoint.y - endPoint.y);
   }
 
+  /**
+   * Constructor
+   *
+   * @param color The color to use.
+   * @param topLeftX The x coordinate of the upper left corner.
+   * @param topLeftY The y coordinate of the upper left corner.
+   * @param width The width of the rectangle.
+   * @param height The height of the rectangle.
+   * @param fill true if the rectangle should be filled.
+   * @param strokeWidth The width of the pen.
+   */
+  RectangleShape(Color color, int topLeftX, int topLeftY, int width, int height,
+                 boolean fill, int strokeWidth)
+  {
+    super(strokeWidth, color);
+    this.fill = fill;
+    this.topLeftX = topLeftX;
+    this.topLeftY = topLeftY;
+    this.width = width;
+    this.height = height;
+  }
+
   /**
    * Copy constructor.
    */
@@ -252,6 +276,42 @@ class RectangleShape extends AbstractDrawableShape
     super.incorporateResizeVector();
   }
 
+  /**
+   * Returns a rectangle that encloses this shape.
+   *
+   * @return The bounds of this shape.
+   */
+  @Override
+  public Rectangle getBounds()
+  {
+    return createPaddedBounds(topLeftX, topLeftY, topLeftX + width, topLeftY + height);
+  }
+
+  int getTopLeftX()
+  {
+    return topLeftX;
+  }
+
+  int getTopLeftY()
+  {
+    return topLeftY;
+  }
+
+  int getWidth()
+  {
+    return width;
+  }
+
+  int getHeight()
+  {
+    return height;
+  }
+
+  boolean isFilled()
+  {
+    return fill;
+  }
+
   /**
    * Creates a clone of this shape.
    *
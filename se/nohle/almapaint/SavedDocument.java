@@ -0,0 +1,179 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * What is known about a document saved, or loaded, in the segmented format: the records that
+ * are live in it, keyed by shape ID, whether it is compressed, and the size and modification
+ * time it had afterwards.
+ * That is what is needed to append changes to the document instead of rewriting it, and to
+ * tell when rewriting it has become worthwhile.
+ */
+class SavedDocument
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  /** Smaller documents are never compacted, as rewriting them is cheap anyway. */
+  private static final long MIN_SIZE_TO_COMPACT = 64 * 1024;
+
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  private final Path file;
+  private final boolean compressed;
+  private long size;
+  private long lastModified;
+
+  /** The size the document would have had if it had not been compressed. */
+  private long uncompressedSize;
+
+  /** The total length of the live records, uncompressed. */
+  private long numberOfLiveBytes;
+
+  /** The length of the live record of each shape, indexed by shape ID. 0 if there is none. */
+  private int[] recordLengthsById = new int[16];
+
+  /**
+   * Constructor
+   *
+   * @param file The document.
+   * @param compressed true if the segments of the document are compressed.
+   */
+  SavedDocument(Path file, boolean compressed)
+  {
+    this.file = file.toAbsolutePath();
+    this.compressed = compressed;
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Determines if this object describes the current content of a file, that is, if the file is
+   * the document and has not been modified since it was saved or loaded.
+   *
+   * @param fileToCheck The file to check.
+   * @return true if this object describes fileToCheck.
+   */
+  boolean describes(File fileToCheck)
+  {
+    try
+    {
+      Path path = fileToCheck.toPath().toAbsolutePath();
+      return path.equals(file) && Files.size(path) == size &&
+        Files.getLastModifiedTime(path).toMillis() == lastModified;
+    }
+    catch (IOException e)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Determines if the document has a live record for a shape.
+   *
+   * @param shapeId The ID of the shape.
+   * @return true if the shape is in the document.
+   */
+  boolean contains(int shapeId)
+  {
+    return shapeId < recordLengthsById.length && recordLengthsById[shapeId] > 0;
+  }
+
+  /**
+   * Must be called when a record that puts a shape has been written, or read.
+   *
+   * @param shapeId The ID of the shape.
+   * @param recordLength The length of the record.
+   */
+  void shapePut(int shapeId, int recordLength)
+  {
+    if (shapeId >= recordLengthsById.length)
+    {
+      recordLengthsById = Arrays.copyOf(recordLengthsById, Math.max(recordLengthsById.length * 2, shapeId + 1));
+    }
+    numberOfLiveBytes += recordLength - recordLengthsById[shapeId];
+    recordLengthsById[shapeId] = recordLength;
+  }
+
+  /**
+   * Must be called when a record that removes a shape has been written, or read.
+   *
+   * @param shapeId The ID of the shape.
+   */
+  void shapeRemoved(int shapeId)
+  {
+    if (contains(shapeId))
+    {
+      numberOfLiveBytes -= recordLengthsById[shapeId];
+      recordLengthsById[shapeId] = 0;
+    }
+  }
+
+  /**
+   * Must be called when the document has been written, or read, to record its size and
+   * modification time.
+   *
+   * @param size The number of bytes of the document that were written or read.
+   * @param uncompressedSize The number of bytes they would have been if they had not been compressed.
+   */
+  void documentWritten(long size, long uncompressedSize)
+    throws IOException
+  {
+    this.size = size;
+    this.uncompressedSize = uncompressedSize;
+    this.lastModified = Files.getLastModifiedTime(file).toMillis();
+  }
+
+  long getSize()
+  {
+    return size;
+  }
+
+  long getUncompressedSize()
+  {
+    return uncompressedSize;
+  }
+
+  boolean isCompressed()
+  {
+    return compressed;
+  }
+
+  /**
+   * Determines if so much of the document is occupied by replaced and removed shapes that
+   * it should be rewritten.
+   *
+   * @return true if the document should be compacted.
+   */
+  boolean needsCompaction()
+  {
+    return size >= MIN_SIZE_TO_COMPACT && numberOfLiveBytes < uncompressedSize / 2;
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.awt.Color;
+import java.util.*;
+
+/**
+ * A set of operations that should be applied to the managed shapes in one go, resulting in
+ * a single undo entry. Removals are applied first, then recolorings and last additions.
+ */
+class ShapeBatch
+{
+  private final List<DrawableShape> shapesToAdd = new ArrayList<>();
+  private final List<DrawableShape> shapesToRemove = new ArrayList<>();
+  private final Map<DrawableShape, Color> shapesToRecolor = new IdentityHashMap<>();
+
+  /**
+   * Adds a shape on top of the managed shapes.
+   *
+   * @param shape The shape to add.
+   * @return this
+   */
+  ShapeBatch add(DrawableShape shape)
+  {
+    shapesToAdd.add(shape);
+    return this;
+  }
+
+  /**
+   * Adds shapes on top of the managed shapes, in the order they are returned by the collection.
+   *
+   * @param shapes The shapes to add.
+   * @return this
+   */
+  ShapeBatch addAll(Collection<? extends DrawableShape> shapes)
+  {
+    shapesToAdd.addAll(shapes);
+    return this;
+  }
+
+  /**
+   * Removes a managed shape.
+   *
+   * @param shape The shape to remove.
+   * @return this
+   */
+  ShapeBatch remove(DrawableShape shape)
+  {
+    shapesToRemove.add(shape);
+    return this;
+  }
+
+  /**
+   * Changes the color of a managed shape.
+   *
+   * @param shape The shape to recolor.
+   * @param color The new color.
+   * @return this
+   */
+  ShapeBatch recolor(DrawableShape shape, Color color)
+  {
+    shapesToRecolor.put(shape, color);
+    return this;
+  }
+
+  boolean isEmpty()
+  {
+    return shapesToAdd.isEmpty() && shapesToRemove.isEmpty() && shapesToRecolor.isEmpty();
+  }
+
+  List<DrawableShape> getShapesToAdd()
+  {
+    return shapesToAdd;
+  }
+
+  List<DrawableShape> getShapesToRemove()
+  {
+    return shapesToRemove;
+  }
+
+  Map<DrawableShape, Color> getShapesToRecolor()
+  {
+    return shapesToRecolor;
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.util.List;
+
+/**
+ * Listener notified by ShapeManager whenever the list of managed shapes changes. The changes
+ * are described by positions in the list, so that they can be applied to another copy of the list.
+ * All methods are called on the thread that modifies the shapes, after the change has been made.
+ */
+interface ShapeChangeListener
+{
+  /**
+   * Called when shapes have been added after the current ones.
+   *
+   * @param shapes The added shapes, in order.
+   */
+  public void shapesAdded(List<DrawableShape> shapes);
+
+  /**
+   * Called when shapes have been inserted among the current ones.
+   *
+   * @param indices The positions of the inserted shapes after the insertion, in ascending order.
+   * @param shapes The inserted shapes.
+   */
+  public void shapesInserted(int[] indices, List<DrawableShape> shapes);
+
+  /**
+   * Called when shapes have been removed.
+   *
+   * @param indices The positions the removed shapes had before the removal, in ascending order.
+   */
+  public void shapesRemoved(int[] indices);
+
+  /**
+   * Called when shapes have been replaced by other shapes at the same positions.
+   *
+   * @param indices The positions of the replaced shapes.
+   * @param replacements The shapes that now are at the positions.
+   */
+  public void shapesReplaced(int[] indices, List<DrawableShape> replacements);
+
+  /**
+   * Called when all shapes have been removed.
+   */
+  public void allShapesRemoved();
+}
@@ -0,0 +1,190 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntFunction;
+
+/**
+ * Keeps track of how the managed shapes have changed since the document was last saved, so that
+ * a save only has to write the changed shapes.
+ *
+ * A shape that replaces another one in place keeps its position, while a shape that is added,
+ * or added back, always ends up after all other shapes. The shapes added since the last save
+ * therefore come after all unchanged shapes, in the order they were last added, which is all
+ * that is needed to put the shapes of a document in the right order.
+ */
+class ShapeChangeTracker
+{
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  /** false if the changes are unknown, for instance after all shapes have been removed. */
+  private boolean changesKnown;
+
+  private final BitSet replacedShapeIds = new BitSet();
+  private final BitSet removedShapeIds = new BitSet();
+
+  /** The IDs of the added shapes, in the order they were added. An ID may occur more than once. */
+  private int[] addedShapeIds = new int[16];
+  private int numberOfAddedShapeIds;
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Must be called when a shape has been added after all other shapes.
+   */
+  void shapeAdded(int shapeId)
+  {
+    if (numberOfAddedShapeIds == addedShapeIds.length)
+    {
+      addedShapeIds = Arrays.copyOf(addedShapeIds, numberOfAddedShapeIds * 2);
+    }
+    addedShapeIds[numberOfAddedShapeIds++] = shapeId;
+  }
+
+  /**
+   * Must be called when a shape has been replaced in place, or modified.
+   *
+   * @param replacedShapeId The ID of the replaced shape.
+   * @param shapeId The ID of the shape that replaced it.
+   */
+  void shapeReplaced(int replacedShapeId, int shapeId)
+  {
+    if (replacedShapeId != shapeId)
+    {
+      // A shape with a new ID in the place of another one cannot be described.
+      forgetChanges();
+      return;
+    }
+    replacedShapeIds.set(shapeId);
+  }
+
+  void shapeRemoved(int shapeId)
+  {
+    removedShapeIds.set(shapeId);
+  }
+
+  /**
+   * Determines if the shapes are known to be unchanged.
+   *
+   * @return true if no changes have been made since the changes were cleared or taken.
+   */
+  boolean isUnchanged()
+  {
+    return changesKnown && numberOfAddedShapeIds == 0 && replacedShapeIds.isEmpty() &&
+      removedShapeIds.isEmpty();
+  }
+
+  /**
+   * Forgets the changes, and regards the current shapes as unchanged.
+   */
+  void clearChanges()
+  {
+    changesKnown = true;
+    replacedShapeIds.clear();
+    removedShapeIds.clear();
+    numberOfAddedShapeIds = 0;
+    if (addedShapeIds.length > 1024)
+    {
+      addedShapeIds = new int[16];
+    }
+  }
+
+  /**
+   * Forgets the changes, and regards all shapes as changed in an unknown way.
+   */
+  void forgetChanges()
+  {
+    clearChanges();
+    changesKnown = false;
+  }
+
+  /**
+   * Returns the changes and clears them.
+   *
+   * @param shapesById Returns the current shape with an ID, or null if there is none.
+   * @return The changes, or null if they are unknown.
+   */
+  ShapeChanges takeChanges(IntFunction<DrawableShape> shapesById)
+  {
+    if (!changesKnown)
+    {
+      clearChanges();
+      return null;
+    }
+
+    // The added shapes in the order they were last added.
+    BitSet displacedShapeIds = new BitSet();
+    int[] lastAddedShapeIds = new int[numberOfAddedShapeIds];
+    int numberOfLastAddedShapeIds = 0;
+    for (int i = numberOfAddedShapeIds - 1; i >= 0; i--)
+    {
+      if (!displacedShapeIds.get(addedShapeIds[i]))
+      {
+        displacedShapeIds.set(addedShapeIds[i]);
+        lastAddedShapeIds[numberOfLastAddedShapeIds++] = addedShapeIds[i];
+      }
+    }
+    displacedShapeIds.or(removedShapeIds);
+
+    BitSet shapeIdsReplacedInPlace = (BitSet)replacedShapeIds.clone();
+    shapeIdsReplacedInPlace.andNot(displacedShapeIds);
+
+    int maxNumberOfRecords = displacedShapeIds.cardinality() + shapeIdsReplacedInPlace.cardinality() +
+      numberOfLastAddedShapeIds;
+    int[] shapeIds = new int[maxNumberOfRecords];
+    DrawableShape[] shapes = new DrawableShape[maxNumberOfRecords];
+    int numberOfShapeIds = 0;
+
+    // Removed and added shapes lose their place...
+    for (int shapeId = displacedShapeIds.nextSetBit(0); shapeId >= 0;
+         shapeId = displacedShapeIds.nextSetBit(shapeId + 1))
+    {
+      shapeIds[numberOfShapeIds++] = shapeId;
+    }
+
+    // ...replaced ones keep theirs...
+    for (int shapeId = shapeIdsReplacedInPlace.nextSetBit(0); shapeId >= 0;
+         shapeId = shapeIdsReplacedInPlace.nextSetBit(shapeId + 1))
+    {
+      shapes[numberOfShapeIds] = shapesById.apply(shapeId);
+      shapeIds[numberOfShapeIds++] = shapeId;
+    }
+
+    // ...and added ones end up after all others.
+    for (int i = numberOfLastAddedShapeIds - 1; i >= 0; i--)
+    {
+      DrawableShape shape = shapesById.apply(lastAddedShapeIds[i]);
+      if (shape != null) // Not removed after it was added.
+      {
+        shapes[numberOfShapeIds] = shape;
+        shapeIds[numberOfShapeIds++] = lastAddedShapeIds[i];
+      }
+    }
+
+    clearChanges();
+    return new ShapeChanges(Arrays.copyOf(shapeIds, numberOfShapeIds), Arrays.copyOf(shapes, numberOfShapeIds));
+  }
+}
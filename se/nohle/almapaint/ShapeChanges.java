@@ -0,0 +1,75 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+/**
+ * The changes made to the shapes since a document was last saved, as a sequence of records
+ * keyed by shape ID. The records are applied in order: a record with a shape puts the shape
+ * in the place of the shape with the same ID, or after all shapes if there is none, and a
+ * record without a shape removes the shape with the ID.
+ *
+ * Immutable, so that it may be handed over to the thread that saves the document.
+ */
+class ShapeChanges
+{
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  private final int[] shapeIds;
+  private final DrawableShape[] shapes;
+
+  /**
+   * Constructor
+   *
+   * @param shapeIds The IDs of the records.
+   * @param shapes The shapes of the records, null for the records that remove a shape.
+   */
+  ShapeChanges(int[] shapeIds, DrawableShape[] shapes)
+  {
+    this.shapeIds = shapeIds;
+    this.shapes = shapes;
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  int size()
+  {
+    return shapeIds.length;
+  }
+
+  int getShapeId(int index)
+  {
+    return shapeIds[index];
+  }
+
+  /**
+   * Returns the shape of a record.
+   *
+   * @param index The index of the record.
+   * @return The shape to put, or null if the record removes the shape with its ID.
+   */
+  DrawableShape getShape(int index)
+  {
+    return shapes[index];
+  }
+}
@@ -0,0 +1,314 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.awt.Color;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Decodes shapes written by ShapeEncoder.
+ *
+ * The points of freehand shapes are not decoded. They are left in the buffer, wrapped in an
+ * EncodedPointList, which keeps both load time and heap usage low for large documents.
+ * Documents of format version 1 lack the information needed for that, so their points are decoded.
+ * When the buffer is going to be reused, the encoded points are copied out of it instead, into
+ * blocks that are shared by many shapes, so that the garbage collector need not move them around.
+ */
+class ShapeDecoder
+{
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  private static final int COPIED_POINTS_BLOCK_SIZE = 1024 * 1024;
+
+  private ByteBuffer buffer;
+  private final int formatVersion;
+
+  /** True if the encoded points of freehand shapes are copied out of the buffer. */
+  private final boolean copyFreehandPoints;
+
+  /** The block the encoded points are copied into, up to its position. Null if there is none yet. */
+  private ByteBuffer copiedPoints;
+
+  /** Colors already decoded, by ARGB value. Documents tend to use only a handful of colors. */
+  private final Map<Integer, Color> colors = new HashMap<>();
+
+  /**
+   * Constructor
+   *
+   * @param buffer The buffer to decode from, positioned at the first byte to decode.
+   *               The buffer must not be modified while any of the decoded shapes are in use.
+   * @param formatVersion The version of the format the buffer was written in.
+   */
+  ShapeDecoder(ByteBuffer buffer, int formatVersion)
+  {
+    this(buffer, formatVersion, false);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param buffer The buffer to decode from, positioned at the first byte to decode.
+   * @param formatVersion The version of the format the buffer was written in.
+   * @param copyFreehandPoints true if the encoded points of freehand shapes should be copied out
+   *                           of the buffer, so that it may be reused once the shapes are decoded.
+   */
+  ShapeDecoder(ByteBuffer buffer, int formatVersion, boolean copyFreehandPoints)
+  {
+    this.buffer = buffer;
+    this.formatVersion = formatVersion;
+    this.copyFreehandPoints = copyFreehandPoints;
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Decodes from another buffer from now on. Only allowed if the encoded points of freehand
+   * shapes are copied out of the buffer.
+   *
+   * @param buffer The buffer to decode from, positioned at the next byte to decode.
+   */
+  void setBuffer(ByteBuffer buffer)
+  {
+    if (!copyFreehandPoints)
+    {
+      throw new IllegalStateException("The decoded shapes may refer to the buffer");
+    }
+
+    this.buffer = buffer;
+  }
+
+  /**
+   * Decodes the next shape.
+   *
+   * @return The decoded shape.
+   * @throws StreamCorruptedException If the data does not describe a shape.
+   */
+  DrawableShape readShape()
+    throws StreamCorruptedException
+  {
+    byte type = buffer.get();
+    Color color = readColor();
+    int strokeWidth = readVarInt();
+
+    switch (type)
+    {
+      case ShapeEncoder.TYPE_RECTANGLE:
+        return new RectangleShape(color, readSignedVarInt(), readSignedVarInt(),
+          readSignedVarInt(), readSignedVarInt(), readBoolean(), strokeWidth);
+      case ShapeEncoder.TYPE_LINE:
+        return new LineShape(color, readSignedVarInt(), readSignedVarInt(),
+          readSignedVarInt(), readSignedVarInt(), strokeWidth, false);
+      case ShapeEncoder.TYPE_CIRCLE:
+        CoordinatePair centerPoint = new CoordinatePair(readSignedVarInt(), readSignedVarInt());
+        return new CircleShape(color, centerPoint, readSignedVarInt(), readBoolean(), strokeWidth, false);
+      case ShapeEncoder.TYPE_FREEHAND:
+        return new FreehandShape(color, strokeWidth, readFreehandPoints());
+      default:
+        throw new StreamCorruptedException("Unknown shape type: " + type);
+    }
+  }
+
+  /**
+   * Skips the next shape without decoding it.
+   *
+   * @throws StreamCorruptedException If the data does not describe a shape.
+   */
+  void skipShape()
+    throws StreamCorruptedException
+  {
+    byte type = buffer.get();
+    buffer.position(buffer.position() + 4); // The color.
+    readVarInt(); // The stroke width.
+
+    switch (type)
+    {
+      case ShapeEncoder.TYPE_RECTANGLE:
+        skipVarInts(4);
+        buffer.get();
+        break;
+      case ShapeEncoder.TYPE_LINE:
+        skipVarInts(4);
+        break;
+      case ShapeEncoder.TYPE_CIRCLE:
+        skipVarInts(3);
+        buffer.get();
+        break;
+      case ShapeEncoder.TYPE_FREEHAND:
+        int numberOfPoints = readVarInt();
+        if (formatVersion >= 2)
+        {
+          skipVarInts(4);
+          int length = readVarInt();
+          if (length < 0 || length > buffer.remaining())
+          {
+            throw new StreamCorruptedException("Invalid length of points: " + length);
+          }
+          buffer.position(buffer.position() + length);
+        }
+        else
+        {
+          skipVarInts(2 * numberOfPoints);
+        }
+        break;
+      default:
+        throw new StreamCorruptedException("Unknown shape type: " + type);
+    }
+  }
+
+  byte readByte()
+  {
+    return buffer.get();
+  }
+
+  boolean readBoolean()
+  {
+    return buffer.get() != 0;
+  }
+
+  int readInt()
+  {
+    return buffer.getInt();
+  }
+
+  /**
+   * Reads an int written by ShapeEncoder.writeVarInt.
+   *
+   * @throws StreamCorruptedException If the value is longer than five bytes.
+   */
+  int readVarInt()
+    throws StreamCorruptedException
+  {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7)
+    {
+      byte b = buffer.get();
+      value |= (b & 0x7f) << shift;
+      if (b >= 0)
+      {
+        return value;
+      }
+    }
+
+    throw new StreamCorruptedException("Malformed variable length integer");
+  }
+
+  /**
+   * Reads an int written by ShapeEncoder.writeSignedVarInt.
+   */
+  int readSignedVarInt()
+    throws StreamCorruptedException
+  {
+    int value = readVarInt();
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PRIVATE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  private void skipVarInts(int numberOfVarInts)
+  {
+    while (numberOfVarInts > 0)
+    {
+      if (buffer.get() >= 0)
+      {
+        numberOfVarInts--;
+      }
+    }
+  }
+
+  private Color readColor()
+  {
+    int argb = buffer.getInt();
+    Color color = colors.get(argb);
+    if (color == null)
+    {
+      color = new Color(argb, true);
+      colors.put(argb, color);
+    }
+
+    return color;
+  }
+
+  private List<CoordinatePair> readFreehandPoints()
+    throws StreamCorruptedException
+  {
+    int numberOfPoints = readVarInt();
+    if (numberOfPoints < 0 || numberOfPoints > buffer.remaining())
+    {
+      throw new StreamCorruptedException("Invalid number of points: " + numberOfPoints);
+    }
+
+    if (formatVersion >= 2)
+    {
+      int minX = readSignedVarInt();
+      int minY = readSignedVarInt();
+      int maxX = readSignedVarInt();
+      int maxY = readSignedVarInt();
+      int length = readVarInt();
+      if (length < 0 || length > buffer.remaining())
+      {
+        throw new StreamCorruptedException("Invalid length of points: " + length);
+      }
+
+      if (numberOfPoints > 0)
+      {
+        ByteBuffer encodedPoints = buffer.slice();
+        encodedPoints.limit(length);
+        buffer.position(buffer.position() + length);
+        if (copyFreehandPoints)
+        {
+          if (copiedPoints == null || copiedPoints.remaining() < length)
+          {
+            copiedPoints = ByteBuffer.allocate(Math.max(COPIED_POINTS_BLOCK_SIZE, length));
+          }
+          ByteBuffer copy = copiedPoints.slice(copiedPoints.position(), length).put(encodedPoints).flip();
+          copiedPoints.position(copiedPoints.position() + length);
+          encodedPoints = copy;
+        }
+
+        return new EncodedPointList(encodedPoints, numberOfPoints, minX, minY, maxX, maxY);
+      }
+    }
+
+    List<CoordinatePair> points = new ArrayList<>(numberOfPoints);
+    int x = 0;
+    int y = 0;
+    for (int i = 0; i < numberOfPoints; i++)
+    {
+      x += readSignedVarInt();
+      y += readSignedVarInt();
+      points.add(new CoordinatePair(x, y));
+    }
+
+    return points;
+  }
+}
@@ -0,0 +1,309 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes shapes in the binary .aar format. The encoded bytes are collected in a growable
+ * in-memory buffer.
+ *
+ * Every shape is written as a type tag, the packed ARGB value of its color, its stroke width and
+ * the data of the particular shape type. Integers are written as variable length quantities,
+ * signed ones zigzag encoded first, so that small values only take a byte or two. The points
+ * of a freehand shape are written as differences to the previous point, which keeps them small.
+ * They are preceded by their number, their extreme coordinates and their length in bytes, so that
+ * a reader can compute the bounds of the shape and skip the points without decoding them.
+ */
+class ShapeEncoder
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  static final byte TYPE_RECTANGLE = 1;
+  static final byte TYPE_LINE = 2;
+  static final byte TYPE_CIRCLE = 3;
+  static final byte TYPE_FREEHAND = 4;
+
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  private byte[] buffer;
+  private int size;
+
+  /**
+   * Constructor
+   *
+   * @param initialCapacity The initial size of the buffer.
+   */
+  ShapeEncoder(int initialCapacity)
+  {
+    buffer = new byte[Math.max(initialCapacity, 16)];
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Encodes a shape.
+   *
+   * @param shape The shape to encode.
+   * @throws NotSerializableException If the shape is of a type the format does not support.
+   */
+  void writeShape(DrawableShape shape)
+    throws NotSerializableException
+  {
+    if (shape instanceof RectangleShape)
+    {
+      RectangleShape rectangle = (RectangleShape)shape;
+      writeCommonData(TYPE_RECTANGLE, shape);
+      writeSignedVarInt(rectangle.getTopLeftX());
+      writeSignedVarInt(rectangle.getTopLeftY());
+      writeSignedVarInt(rectangle.getWidth());
+      writeSignedVarInt(rectangle.getHeight());
+      writeBoolean(rectangle.isFilled());
+    }
+    else if (shape instanceof LineShape)
+    {
+      LineShape line = (LineShape)shape;
+      writeCommonData(TYPE_LINE, shape);
+      writeSignedVarInt(line.getStartX());
+      writeSignedVarInt(line.getStartY());
+      writeSignedVarInt(line.getEndX());
+      writeSignedVarInt(line.getEndY());
+    }
+    else if (shape instanceof CircleShape)
+    {
+      CircleShape circle = (CircleShape)shape;
+      writeCommonData(TYPE_CIRCLE, shape);
+      writeSignedVarInt(circle.getCenterPoint().x);
+      writeSignedVarInt(circle.getCenterPoint().y);
+      writeSignedVarInt(circle.getRadius());
+      writeBoolean(circle.isFilled());
+    }
+    else if (shape instanceof FreehandShape)
+    {
+      writeCommonData(TYPE_FREEHAND, shape);
+      writeFreehandPoints(((FreehandShape)shape).getCoordinatePoints());
+    }
+    else
+    {
+      throw new NotSerializableException(shape.getClass().getName());
+    }
+  }
+
+  void writeByte(int value)
+  {
+    ensureCapacity(1);
+    buffer[size++] = (byte)value;
+  }
+
+  void writeBoolean(boolean value)
+  {
+    writeByte(value ? 1 : 0);
+  }
+
+  /**
+   * Writes an int as four bytes, most significant byte first.
+   */
+  void writeInt(int value)
+  {
+    ensureCapacity(4);
+    buffer[size++] = (byte)(value >>> 24);
+    buffer[size++] = (byte)(value >>> 16);
+    buffer[size++] = (byte)(value >>> 8);
+    buffer[size++] = (byte)value;
+  }
+
+  /**
+   * Overwrites four already encoded bytes with an int, most significant byte first.
+   *
+   * @param position The position of the first byte to overwrite.
+   */
+  void writeIntAt(int position, int value)
+  {
+    buffer[position] = (byte)(value >>> 24);
+    buffer[position + 1] = (byte)(value >>> 16);
+    buffer[position + 2] = (byte)(value >>> 8);
+    buffer[position + 3] = (byte)value;
+  }
+
+  /**
+   * Writes an int as a variable length quantity: seven bits per byte, least significant
+   * bits first, the high bit of a byte set if more bytes follow. Negative values take five bytes.
+   */
+  void writeVarInt(int value)
+  {
+    ensureCapacity(5);
+    while ((value & ~0x7f) != 0)
+    {
+      buffer[size++] = (byte)((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    buffer[size++] = (byte)value;
+  }
+
+  /**
+   * Writes a signed int as a variable length quantity. The value is zigzag encoded first
+   * (0, -1, 1, -2... become 0, 1, 2, 3...) so that values close to zero are short.
+   */
+  void writeSignedVarInt(int value)
+  {
+    writeVarInt((value << 1) ^ (value >> 31));
+  }
+
+  /**
+   * Writes the remaining bytes of a buffer as they are.
+   *
+   * @param bytes The bytes to write. Its position is moved to its limit.
+   */
+  void writeBytes(ByteBuffer bytes)
+  {
+    int length = bytes.remaining();
+    ensureCapacity(length);
+    bytes.get(buffer, size, length);
+    size += length;
+  }
+
+  int size()
+  {
+    return size;
+  }
+
+  /**
+   * Discards the encoded bytes, keeping the buffer for reuse.
+   */
+  void clear()
+  {
+    size = 0;
+  }
+
+  /**
+   * Returns a buffer wrapping the encoded bytes. No copy is made, so the buffer is only valid
+   * until more data is encoded.
+   *
+   * @return A buffer positioned at the first encoded byte, with its limit at the last.
+   */
+  ByteBuffer toByteBuffer()
+  {
+    return ByteBuffer.wrap(buffer, 0, size);
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PRIVATE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  private void writeCommonData(byte type, DrawableShape shape)
+  {
+    writeByte(type);
+    writeInt(shape.getColor().getRGB());
+    writeVarInt(shape.getStrokeWidth());
+  }
+
+  private void writeFreehandPoints(List<CoordinatePair> points)
+  {
+    writeVarInt(points.size());
+
+    if (points instanceof EncodedPointList)
+    {
+      // Not edited since it was loaded, so the encoded points can be copied as they are.
+      EncodedPointList encodedPoints = (EncodedPointList)points;
+      writeExtremes(encodedPoints.getMinX(), encodedPoints.getMinY(),
+        encodedPoints.getMaxX(), encodedPoints.getMaxY());
+      ByteBuffer bytes = encodedPoints.getEncodedPoints();
+      writeVarInt(bytes.remaining());
+      writeBytes(bytes);
+      return;
+    }
+
+    // First pass: the extremes and the length of the encoded points.
+    int minX = Integer.MAX_VALUE;
+    int minY = Integer.MAX_VALUE;
+    int maxX = Integer.MIN_VALUE;
+    int maxY = Integer.MIN_VALUE;
+    int length = 0;
+    int previousX = 0;
+    int previousY = 0;
+    for (CoordinatePair point : points)
+    {
+      minX = Math.min(minX, point.x);
+      minY = Math.min(minY, point.y);
+      maxX = Math.max(maxX, point.x);
+      maxY = Math.max(maxY, point.y);
+      length += signedVarIntLength(point.x - previousX) + signedVarIntLength(point.y - previousY);
+      previousX = point.x;
+      previousY = point.y;
+    }
+
+    if (points.isEmpty())
+    {
+      writeExtremes(0, 0, 0, 0);
+    }
+    else
+    {
+      writeExtremes(minX, minY, maxX, maxY);
+    }
+    writeVarInt(length);
+
+    // Second pass: the points.
+    previousX = 0;
+    previousY = 0;
+    for (CoordinatePair point : points)
+    {
+      writeSignedVarInt(point.x - previousX);
+      writeSignedVarInt(point.y - previousY);
+      previousX = point.x;
+      previousY = point.y;
+    }
+  }
+
+  private void writeExtremes(int minX, int minY, int maxX, int maxY)
+  {
+    writeSignedVarInt(minX);
+    writeSignedVarInt(minY);
+    writeSignedVarInt(maxX);
+    writeSignedVarInt(maxY);
+  }
+
+  /**
+   * Returns the number of bytes writeSignedVarInt uses for the specified value.
+   */
+  private static int signedVarIntLength(int value)
+  {
+    int zigzag = (value << 1) ^ (value >> 31);
+    int numberOfBits = 32 - Integer.numberOfLeadingZeros(zigzag | 1);
+    return (numberOfBits + 6) / 7;
+  }
+
+  private void ensureCapacity(int numberOfBytes)
+  {
+    if (size + numberOfBytes > buffer.length)
+    {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + numberOfBytes));
+    }
+  }
+}
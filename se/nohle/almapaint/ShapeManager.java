@@ -18,6 +18,8 @@
  */
 package se.nohle.almapaint;
 
+import java.awt.Color;
+import java.awt.Rectangle;
 import java.util.*;
 
 /**
@@ -25,6 +27,15 @@ import java.util.*;
  */
 class ShapeManager
 {
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  /** Rough sizes of objects on the heap, used to estimate the size of the undo history. */
+  private static final int REFERENCE_BYTES = 4;
+  private static final int COMMAND_BYTES = 96;
+  private static final int SHAPE_BYTES = 96;
+  private static final int DECODED_POINT_BYTES = 24;
+
   //----------------------------------------------------------
   // FIELDS
   //---------------------------------------------------------- 
@@ -34,15 +45,48 @@ class ShapeManager
   /** Unmodifiable version of shapes. Meant to be returned to clients. */
   private List<DrawableShape> shapesToReturn = Collections.emptyList();
 
+  /** True if shapes is shared with a snapshot, and therefore must be copied before it is modified. */
+  private boolean shapesShared;
+
   private Stack<UndoQueueCommand> undoStack = new Stack<>();
   private Stack<UndoQueueCommand> redoStack = new Stack<>();
 
+  /** Replaces undoStack and redoStack when undo branches should be kept. Null if not. */
+  private UndoTree<UndoQueueCommand> undoTree;
+
+  /** Undoes the shapes imported so far by an ongoing import. Null if no import is ongoing. */
+  private UndoQueueCommand importUndoCommand;
+
 
   private DragType ongoingDragOperation;
-  private ShapeTupleList movedShapes = new ShapeTupleList();
+  /** Translation shared by all selected shapes while they are moved. Null if no move is ongoing. */
+  private CoordinatePair moveTranslationVector;
   private DrawableShape shapeToDisplayWhenResizing;
   private DrawableShape originalShapeBeforeResizing;
-  private Set<DrawableShape> selectedShapes = new LinkedHashSet<>();
+
+  /** The selected shapes, keyed by shape ID. */
+  private final ShapeSelection selection = new ShapeSelection();
+
+  /** The IDs of the managed shapes. */
+  private final BitSet managedShapeIds = new BitSet();
+
+  /** The managed shapes, indexed by shape ID. */
+  private final List<DrawableShape> shapesById = new ArrayList<>();
+
+  /** Index over the bounds of the managed shapes. */
+  private final SpatialIndex spatialIndex = new SpatialIndex();
+
+  /** The ID to give the next shape that does not have one. */
+  private int nextShapeId = 1;
+
+  /** Notified when the list of shapes changes. Null if none. */
+  private ShapeChangeListener shapeChangeListener;
+
+  /** The changes made since the document was last saved. */
+  private final ShapeChangeTracker changeTracker = new ShapeChangeTracker();
+
+  /** The time the last hit test took, in nanoseconds. -1 if there has been none. */
+  private long lastHitTestNanos = -1;
 
   //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
   // 
@@ -65,7 +109,7 @@ class ShapeManager
   void addShape(DrawableShape shape)
   {
     addShapeDoNotAddToAnyStack(shape);
-    undoStack.push(new UndoQueueCommand(OperationType.REMOVE, shape));
+    pushUndoCommand(new UndoQueueCommand(OperationType.REMOVE, shape));
   }
 
   /**
@@ -76,8 +120,129 @@ class ShapeManager
   void setShapes(List<DrawableShape> shapes)
   {
     removeAllShapes();
-    this.shapes.addAll(shapes);
-    shapesToReturn = Collections.unmodifiableList(shapes);
+    addShapesDoNotAddToAnyStack(shapes);
+  }
+
+  /**
+   * Sets the listener to notify when the list of shapes changes.
+   *
+   * @param shapeChangeListener The listener, or null to notify none.
+   */
+  void setShapeChangeListener(ShapeChangeListener shapeChangeListener)
+  {
+    this.shapeChangeListener = shapeChangeListener;
+  }
+
+  /**
+   * Returns an immutable snapshot of the shapes in constant time. The list of shapes is
+   * shared with the snapshot until it is modified the next time, when it is copied.
+   * Managed shapes are never modified, apart from their selection marks, so the snapshot
+   * may be read by any thread. The only exception is the clone displayed during a resize,
+   * which is why the snapshot holds the original shape in its place while a resize is ongoing.
+   *
+   * @return The snapshot.
+   */
+  List<DrawableShape> takeSnapshotOfShapes()
+  {
+    if (shapeToDisplayWhenResizing != null)
+    {
+      List<DrawableShape> snapshot = new ArrayList<>(shapes);
+      snapshot.set(snapshot.lastIndexOf(shapeToDisplayWhenResizing), originalShapeBeforeResizing);
+      return Collections.unmodifiableList(snapshot);
+    }
+
+    shapesShared = true;
+    return shapesToReturn;
+  }
+
+  /**
+   * Adds shapes after the current ones without making the addition undoable. Used when a
+   * document is loaded in batches. The loaded shapes are saved in the document, so they
+   * are not regarded as changes, unless other changes have been made during the load.
+   *
+   * @param shapes The shapes to add.
+   */
+  void addLoadedShapes(List<DrawableShape> shapes)
+  {
+    boolean unchanged = changeTracker.isUnchanged();
+    addShapesDoNotAddToAnyStack(shapes);
+    loadedShapesAdded(unchanged);
+  }
+
+  /**
+   * Inserts shapes among the current ones without making the insertion undoable. Used when the
+   * parts of a document are not loaded in order. Like addLoadedShapes, the loaded shapes are not
+   * regarded as changes. All insertions are done in one pass over the list.
+   *
+   * @param shapes The shapes to insert.
+   * @param indices The positions the shapes should have after the insertion, in ascending order.
+   */
+  void insertLoadedShapes(List<DrawableShape> shapes, int[] indices)
+  {
+    if (shapes.isEmpty())
+    {
+      return;
+    }
+    if (indices[0] == this.shapes.size())
+    {
+      // Nothing to insert the shapes among.
+      addLoadedShapes(shapes);
+      return;
+    }
+
+    boolean unchanged = changeTracker.isUnchanged();
+    List<DrawableShape> mergedShapes = new ArrayList<>(this.shapes.size() + shapes.size());
+    int numberOfCurrentShapesMerged = 0;
+    for (int i = 0; i < shapes.size(); i++)
+    {
+      // indices[i] - i of the current shapes come before the shape.
+      mergedShapes.addAll(this.shapes.subList(numberOfCurrentShapesMerged, indices[i] - i));
+      numberOfCurrentShapesMerged = indices[i] - i;
+      mergedShapes.add(shapes.get(i));
+      shapeEntered(shapes.get(i));
+    }
+    mergedShapes.addAll(this.shapes.subList(numberOfCurrentShapesMerged, this.shapes.size()));
+    this.shapes = mergedShapes;
+    shapesShared = false;
+    shapesToReturn = Collections.unmodifiableList(this.shapes);
+
+    if (shapeChangeListener != null)
+    {
+      shapeChangeListener.shapesInserted(indices, shapes);
+    }
+    loadedShapesAdded(unchanged);
+  }
+
+  /**
+   * Returns the changes made to the shapes since they were last taken, or since the shapes
+   * were marked as saved, and then starts to track changes anew. Like takeSnapshotOfShapes,
+   * the changes refer to the original shape while a resize is ongoing.
+   *
+   * @return The changes, or null if they are unknown, in which case all shapes must be saved.
+   */
+  ShapeChanges takeChanges()
+  {
+    return changeTracker.takeChanges(shapeId ->
+      {
+        DrawableShape shape = shapeId < shapesById.size() ? shapesById.get(shapeId) : null;
+        return shape != null && shape == shapeToDisplayWhenResizing ? originalShapeBeforeResizing : shape;
+      });
+  }
+
+  /**
+   * Regards the current shapes as saved, so that only changes made from now on are tracked.
+   */
+  void markShapesAsSaved()
+  {
+    changeTracker.clearChanges();
+  }
+
+  /**
+   * Regards all shapes as changed, so that the next save has to save all of them.
+   */
+  void markAllShapesAsChanged()
+  {
+    changeTracker.forgetChanges();
   }
 
   /**
@@ -85,11 +250,111 @@ class ShapeManager
    */
   void removeSelectedShapes()
   {
-    if (!selectedShapes.isEmpty())
+    if (!selection.isEmpty())
+    {
+      removeShapes(getSelectedShapes());
+    }
+  }
+
+  /**
+   * Adds shapes on top of the current ones as part of an import that adds them in batches. All
+   * shapes added before the import is completed are undone and redone as one operation.
+   *
+   * @param shapes The shapes to add.
+   */
+  void addImportedShapes(List<DrawableShape> shapes)
+  {
+    addShapesDoNotAddToAnyStack(shapes);
+    if (importUndoCommand == null)
+    {
+      importUndoCommand = new UndoQueueCommand(OperationType.REMOVE, shapes);
+    }
+    else
+    {
+      importUndoCommand.shapes.addAll(shapes);
+    }
+  }
+
+  /**
+   * Makes the shapes added by an import undoable, as one operation.
+   */
+  void importCompleted()
+  {
+    if (importUndoCommand != null)
+    {
+      pushUndoCommand(importUndoCommand);
+      importUndoCommand = null;
+    }
+  }
+
+  /**
+   * Removes the shapes added by an import that has failed or been cancelled.
+   */
+  void importAborted()
+  {
+    if (importUndoCommand != null)
+    {
+      removeShapesDoNotAddToAnyStack(importUndoCommand.shapes);
+      importUndoCommand = null;
+    }
+  }
+
+  /**
+   * Applies all operations of a batch using bulk list operations. The whole batch is undone
+   * and redone as one operation.
+   *
+   * @param batch The operations to apply.
+   */
+  void applyBatch(ShapeBatch batch)
+  {
+    if (batch.isEmpty())
+    {
+      return;
+    }
+
+    List<UndoQueueCommand> undoCommands = new ArrayList<>(3);
+
+    //----------------------------------------------------------
+    // Removals.
+    //----------------------------------------------------------
+    if (!batch.getShapesToRemove().isEmpty())
+    {
+      List<DrawableShape> removedShapes = removeShapesDoNotAddToAnyStack(batch.getShapesToRemove());
+      undoCommands.add(new UndoQueueCommand(OperationType.ADD, removedShapes));
+    }
+
+    //----------------------------------------------------------
+    // Recolorings. Managed shapes are never modified in place, so
+    // each recolored shape is replaced by a recolored clone.
+    //----------------------------------------------------------
+    if (!batch.getShapesToRecolor().isEmpty())
+    {
+      ShapeTupleList replacements = new ShapeTupleList();
+      for (DrawableShape shape : shapes)
+      {
+        Color color = batch.getShapesToRecolor().get(shape);
+        if (color != null)
+        {
+          DrawableShape recoloredShape = cloneShape(shape);
+          recoloredShape.setColor(color);
+          replacements.add(new ShapeTuple(shape, recoloredShape));
+        }
+      }
+
+      replaceShapesDoNotAddToAnyStack(replacements);
+      undoCommands.add(new UndoQueueCommand(OperationType.REPLACE, replacements.swapItemsInTuples()));
+    }
+
+    //----------------------------------------------------------
+    // Additions.
+    //----------------------------------------------------------
+    if (!batch.getShapesToAdd().isEmpty())
     {
-      removeShapes(selectedShapes);
-      selectedShapes.clear();
+      addShapesDoNotAddToAnyStack(batch.getShapesToAdd());
+      undoCommands.add(new UndoQueueCommand(OperationType.REMOVE, batch.getShapesToAdd()));
     }
+
+    pushUndoCommand(new UndoQueueCommand(undoCommands));
   }
 
   boolean handleDragOfExistingShape(CoordinatePair point)
@@ -124,10 +389,7 @@ class ShapeManager
   {
     if (ongoingDragOperation == DragType.MOVE)
     {
-      for (ShapeTuple shapeTuple : movedShapes)
-      {
-        shapeTuple.getSecondShape().setTranslationVector(translationVector);
-      }
+      moveTranslationVector = translationVector;
     }
     else if (ongoingDragOperation == DragType.RESIZE)
     {
@@ -148,7 +410,8 @@ class ShapeManager
   }
 
   /**
-   * Starts a move operation.
+   * Starts a move operation. The selected shapes are not touched while they are moved; instead
+   * a translation shared by all of them is updated, which the panel applies when drawing them.
    *
    * @param movedShape The shape to move.
    */
@@ -157,7 +420,7 @@ class ShapeManager
     //----------------------------------------------------------
     // GUARD
     //----------------------------------------------------------
-    if (!shapes.contains(movedShape))
+    if (!isManaged(movedShape))
     {
       resetMoveCache();
       throw new IllegalArgumentException("The moved shape is not managed!");
@@ -166,334 +429,954 @@ class ShapeManager
     // We want the shape that is moved to be selected automatically.
     selectShape(movedShape, false);
 
-    //----------------------------------------------------------
-    //  Loop over a copy of the set containing the selected shapes.
-    // We us a copy as we want to modify the original sest.
-    //----------------------------------------------------------
-    Set<DrawableShape> currentLySelectedShapes = getCopyOfSelectedShapesSet();
-    for (DrawableShape shapeToMove : currentLySelectedShapes)
-    {
-      // Remove original shape. If UNDO is executed later the original objects should be unselected.
-      removeShapeDoNotAddToAnyStack(shapeToMove);
-      unselectSelectedShape(shapeToMove);
-
-      // Clone the shape so we have an object we can translate.
-      DrawableShape shapeToDisplayUnderMove = shapeToMove.createClone();
-
-      // Add the clone to the managed set, the selected set and the moved set.
-      addShapeDoNotAddToAnyStack(shapeToDisplayUnderMove);
-      selectShape(shapeToDisplayUnderMove, false);
-      movedShapes.add(new ShapeTuple(shapeToMove, shapeToDisplayUnderMove));
-    }
+    moveTranslationVector = new CoordinatePair(0, 0);
   }
 
+  /**
+   * Completes a move operation. Replaces every selected shape with a translated clone in a single pass
+   * over the managed shapes, so each shape keeps its place in the drawing order.
+   */
   private void moveOperationCompleted()
   {
-    if (movedShapes.size() == 0)
+    if (moveTranslationVector == null)
     {
       throw new IllegalStateException("No move operation is ongoing!");
     }
 
-    // Tell the shape to calculate its new coordinates based on the
-    // delta it has moved.
-    for (ShapeTuple shapeTuple : movedShapes)
+    if (moveTranslationVector.x == 0 && moveTranslationVector.y == 0)
+    {
+      resetMoveCache();
+      return;
+    }
+
+    ShapeTupleList movedShapes = new ShapeTupleList();
+    IndexList movedIndices = new IndexList();
+    List<DrawableShape> replacements = new ArrayList<>();
+    prepareShapesForModification();
+    ListIterator<DrawableShape> iterator = shapes.listIterator();
+    while (iterator.hasNext())
+    {
+      DrawableShape shape = iterator.next();
+      if (selection.contains(shape.getShapeId()))
+      {
+        DrawableShape movedShape = cloneShape(shape);
+
+        // Tell the shape to calculate its new coordinates based on the
+        // delta it has moved.
+        movedShape.setTranslationVector(moveTranslationVector);
+        movedShape.incorporateTranslationVector();
+
+        iterator.set(movedShape);
+        shapeLeft(shape, true);
+        shapeEntered(movedShape);
+        changeTracker.shapeReplaced(shape.getShapeId(), movedShape.getShapeId());
+        movedShapes.add(new ShapeTuple(movedShape, shape));
+        movedIndices.add(iterator.previousIndex());
+        replacements.add(movedShape);
+      }
+    }
+
+    shapesToReturn = Collections.unmodifiableList(shapes);
+    if (shapeChangeListener != null && !replacements.isEmpty())
     {
-      shapeTuple.getSecondShape().incorporateTranslationVector();
+      shapeChangeListener.shapesReplaced(movedIndices.toArray(), replacements);
     }
 
-    undoStack.push(new UndoQueueCommand(OperationType.REPLACE, movedShapes.swapItemsInTuples()));
+    pushUndoCommand(new UndoQueueCommand(OperationType.REPLACE, movedShapes));
     resetMoveCache();
   }
 
+  /**
+   * Returns the translation that should be applied when drawing the selected shapes, as they are being moved.
+   *
+   * @return The translation of the selected shapes, or null if no move is ongoing.
+   */
+  CoordinatePair getMoveTranslationVector()
+  {
+    return moveTranslationVector;
+  }
+
+  /**
+   * Determines if the specified shape is the one displayed while a shape is being resized. Its
+   * bounds do not include the resize.
+   *
+   * @param shape The shape to check.
+   * @return true if shape is being resized.
+   */
+  boolean isShapeBeingResized(DrawableShape shape)
+  {
+    return shape == shapeToDisplayWhenResizing;
+  }
+
+  /**
+   * Determines if the specified shape is selected.
+   *
+   * @param shape The shape to check.
+   * @return true if shape is selected.
+   */
+  boolean isShapeSelected(DrawableShape shape)
+  {
+    return selection.contains(shape.getShapeId());
+  }
+
   private void resizeOperationStarted(DrawableShape shapeToResize, CoordinatePair point)
   {
     //----------------------------------------------------------
     // GUARD
     //----------------------------------------------------------
-    if (!shapes.contains(shapeToResize))
+    if (!isManaged(shapeToResize))
     {
       resetResizeCache();
       throw new IllegalArgumentException("The shape is not managed!");
     }
 
     // Clone the shape so we have an object we can translate.
-    DrawableShape shapeToDisplayUnderResize = shapeToResize.createClone();
+    DrawableShape shapeToDisplayUnderResize = cloneShape(shapeToResize);
 
     // Tell the shape to determine which resize area that is used.
     shapeToDisplayUnderResize.setSelectedResizeArea(point);
 
-    // Remove original shape from the managed set and the set of selected shapes.
-    removeShapeDoNotAddToAnyStack(shapeToResize);
-    unselectSelectedShape(shapeToResize);
-
-    // Add the clone to the managed set, select it and remember that just it is the shape that is resized.
-    addShapeDoNotAddToAnyStack(shapeToDisplayUnderResize);
+    // Replace the original shape with the clone, select it and remember that just it is the shape that is resized.
+    ShapeTupleList replacement = new ShapeTupleList();
+    replacement.add(new ShapeTuple(shapeToResize, shapeToDisplayUnderResize));
+    replaceShapesDoNotAddToAnyStack(replacement);
     selectShape(shapeToDisplayUnderResize, false);
     shapeToDisplayWhenResizing = shapeToDisplayUnderResize;
     originalShapeBeforeResizing = shapeToResize;
   }
 
-  private void resizeOperationCompleted()
+  private void resizeOperationCompleted()
+  {
+    if (shapeToDisplayWhenResizing == null)
+    {
+      throw new IllegalStateException("No resize operation is ongoing!");
+    }
+
+    // Tell the shape to calculate its new coordinates based on the
+    // delta it has moved.
+    shapeToDisplayWhenResizing.incorporateResizeVector();
+
+    // The resize changed the bounds of the shape.
+    spatialIndex.remove(shapeToDisplayWhenResizing.getShapeId());
+    spatialIndex.add(shapeToDisplayWhenResizing.getShapeId(), shapeToDisplayWhenResizing.getBounds());
+    changeTracker.shapeReplaced(shapeToDisplayWhenResizing.getShapeId(), shapeToDisplayWhenResizing.getShapeId());
+    if (shapeChangeListener != null)
+    {
+      shapeChangeListener.shapesReplaced(new int[] {shapes.lastIndexOf(shapeToDisplayWhenResizing)},
+        Collections.singletonList(shapeToDisplayWhenResizing));
+    }
+
+    // Create UndoCommand so that we can undo the resize.
+    ShapeTupleList stl = new ShapeTupleList();
+    stl.add(new ShapeTuple(shapeToDisplayWhenResizing, originalShapeBeforeResizing));
+    pushUndoCommand(new UndoQueueCommand(OperationType.REPLACE, stl));
+    resetResizeCache();
+  }
+
+  /**
+   * Returns the topmost shape in which the specified point is included in either a resize area or in the
+   * actual shape.
+   *
+   * @param point The point to check.
+   * @param shouldIncludeResizeAreas true if resize areas should be included in the search.
+   * @return Tuple containing the topmost shape that includes point in either resize area or actual shape,
+   *         or null if point is not included in any shape. The dragType of the returned tuple indicates if the
+   *         point was included in a resize area or in the actual shape.
+   */
+  ShapeAndDragTypeTuple findTopmostShapeThatIncludesPoint(CoordinatePair point,
+                                                                  boolean shouldIncludeResizeAreas)
+  {
+    FlightRecorderEvents.HitTestEvent event = new FlightRecorderEvents.HitTestEvent();
+    event.begin();
+    long startTime = System.nanoTime();
+
+    ShapeAndDragTypeTuple hit = null;
+    int numberOfShapesTested = 0;
+    for (DrawableShape shape : getShapesInReverseOrder())
+    {
+      numberOfShapesTested++;
+      if (shouldIncludeResizeAreas && shape.isPointInResizeArea(point))
+      {
+        hit = new ShapeAndDragTypeTuple(shape, DragType.RESIZE);
+        break;
+      }
+
+      if (shape.isPointIncluded(point))
+      {
+        hit = new ShapeAndDragTypeTuple(shape, DragType.MOVE);
+        break;
+      }
+    }
+
+    if (event.shouldCommit())
+    {
+      event.numberOfShapesTested = numberOfShapesTested;
+      event.hit = hit != null;
+      event.commit();
+    }
+
+    lastHitTestNanos = System.nanoTime() - startTime;
+    EditorMetrics.HIT_TEST_LATENCY.record(lastHitTestNanos);
+    return hit;
+  }
+
+  /**
+   * Returns the time the last hit test took.
+   *
+   * @return The time in nanoseconds, or -1 if no hit test has been made.
+   */
+  long getLastHitTestNanos()
+  {
+    return lastHitTestNanos;
+  }
+
+  /**
+   * Selectes the specified shape.
+   *
+   * @param shapeToSelect The shape to select.
+   * @param unselectOtherSelectedShapes true if the currently selected shapes, if any, should be unselected.
+   */
+  void selectShape(DrawableShape shapeToSelect, boolean unselectOtherSelectedShapes)
+  {
+    //----------------------------------------------------------
+    // The shape to select must be managed.
+    //----------------------------------------------------------
+    if (!isManaged(shapeToSelect))
+    {
+      throw new IllegalArgumentException("The selected shape is not managed!");
+    }
+
+    //----------------------------------------------------------
+    // Unselect the currently selected shapes, if so indicated.
+    //----------------------------------------------------------
+    if (unselectOtherSelectedShapes)
+    {
+      unselectSelectedShapes();
+    }
+
+    //----------------------------------------------------------
+    // Select the shape.
+    //----------------------------------------------------------
+    selection.add(shapeToSelect.getShapeId());
+    shapeToSelect.select();
+  }
+
+  /**
+   * Unselectes all selcted shapes.
+   *
+   * @return true if a shape was unselected, false if not.
+   */
+  boolean unselectSelectedShapes()
+  {
+    //----------------------------------------------------------
+    // Unselect the currently selected shape, if any.
+    //----------------------------------------------------------
+    if (!selection.isEmpty())
+    {
+      BitSet selectedIds = selection.toBitSet();
+      selection.clear();
+      updateSelectionMarks(selectedIds);
+
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Selects all managed shapes.
+   */
+  void selectAllShapes()
+  {
+    BitSet changedIds = selection.toBitSet();
+    changedIds.xor(managedShapeIds);
+
+    selection.addAll(managedShapeIds);
+    updateSelectionMarks(changedIds);
+  }
+
+  /**
+   * Selects the shapes that are not selected and unselects the ones that are.
+   */
+  void invertSelection()
+  {
+    selection.invert(managedShapeIds);
+    updateSelectionMarks(managedShapeIds);
+  }
+
+  /**
+   * Selects the shapes whose bounds intersect, or are contained in, the specified area, together with
+   * the specified shapes. All other shapes are unselected. Only the shapes whose selection changes are touched.
+   *
+   * @param area The area in which shapes should be selected.
+   * @param shapeIdsToKeepSelected The IDs of shapes that should be selected regardless of area.
+   */
+  void selectShapesInArea(Rectangle area, BitSet shapeIdsToKeepSelected)
+  {
+    BitSet newlySelectedIds = spatialIndex.findShapesIntersecting(area);
+    newlySelectedIds.or(shapeIdsToKeepSelected);
+    newlySelectedIds.and(managedShapeIds);
+
+    BitSet changedIds = selection.toBitSet();
+    changedIds.xor(newlySelectedIds);
+
+    selection.clear();
+    selection.addAll(newlySelectedIds);
+    updateSelectionMarks(changedIds);
+  }
+
+  /**
+   * Returns the IDs of the selected shapes.
+   *
+   * @return A copy of the IDs of the selected shapes.
+   */
+  BitSet getSelectedShapeIds()
+  {
+    return selection.toBitSet();
+  }
+
+  /**
+   * Returns the selected shapes in the order they are drawn.
+   *
+   * @return The selected shapes.
+   */
+  List<DrawableShape> getSelectedShapes()
+  {
+    List<DrawableShape> selectedShapes = new ArrayList<>(selection.size());
+    for (DrawableShape shape : shapes)
+    {
+      if (selection.contains(shape.getShapeId()))
+      {
+        selectedShapes.add(shape);
+      }
+    }
+
+    return selectedShapes;
+  }
+
+  /**
+   * Returns the managed shapes in reverse order.
+   *
+   * @return The managed shapes in reverse order.
+   */
+  List<DrawableShape> getShapesInReverseOrder()
+  {
+    List<DrawableShape> copy = new ArrayList<>(shapes);
+    Collections.reverse(copy);
+
+    return copy;
+  }
+
+  /**
+   * Undos the last operation.
+   */
+  void undoLastOperation()
+  {
+    FlightRecorderEvents.UndoEvent event = new FlightRecorderEvents.UndoEvent();
+    event.begin();
+
+    if (undoTree != null)
+    {
+      undoTree.undo(this::executeUndoCommand);
+    }
+    else if (undoStack.isEmpty())
+    {
+      throw new IllegalStateException("The undo queue is empty!");
+    }
+    else
+    {
+      executeUndoCommandFromStack(undoStack, redoStack);
+    }
+
+    commitUndoEvent(event, "undo");
+  }
+
+  /**
+   * Redos the last operation.
+   */
+  void redoLastOperation()
+  {
+    FlightRecorderEvents.UndoEvent event = new FlightRecorderEvents.UndoEvent();
+    event.begin();
+
+    if (undoTree != null)
+    {
+      undoTree.redo(this::executeUndoCommand);
+    }
+    else if (redoStack.isEmpty())
+    {
+      throw new IllegalStateException("The redo stack is empty!");
+    }
+    else
+    {
+      executeUndoCommandFromStack(redoStack, undoStack);
+    }
+
+    commitUndoEvent(event, "redo");
+  }
+
+  /**
+   * Determines if there is at least one shape in the redo list.
+   *
+   * @return true if there is at least one shape in the redo list, false if not.
+   */
+  boolean hasAtLeastOneShapeInUndoStack()
+  {
+    if (undoTree != null)
+    {
+      return undoTree.canUndo();
+    }
+
+    return !undoStack.isEmpty();
+  }
+
+  /**
+   * Determines if there is at least one shape in the redo list.
+   *
+   * @return true if there is at least one shape in the redo list, false if not.
+   */
+  boolean hasAtLeastOneShapeInRedoStack()
+  {
+    if (undoTree != null)
+    {
+      return undoTree.canRedo();
+    }
+
+    return !redoStack.isEmpty();
+  }
+
+  /**
+   * Turns the undo tree on or off. When turned on, the current undo and redo stacks become the
+   * first branch of the tree. When turned off, the branch of the tree that leads to the current state
+   * and its last visited redo path become the undo and redo stacks; all other branches are dropped.
+   *
+   * @param enabled true if undo branches should be kept.
+   */
+  void setUndoTreeEnabled(boolean enabled)
+  {
+    if (enabled == isUndoTreeEnabled())
+    {
+      return;
+    }
+
+    if (enabled)
+    {
+      undoTree = new UndoTree<>();
+      for (UndoQueueCommand undoCommand : undoStack)
+      {
+        undoTree.add(undoCommand);
+      }
+
+      // The top of the redo stack is the next command to redo.
+      List<UndoQueueCommand> redoPath = new ArrayList<>(redoStack);
+      Collections.reverse(redoPath);
+      undoTree.addRedoPath(redoPath);
+
+      undoStack.clear();
+      redoStack.clear();
+    }
+    else
+    {
+      undoStack.addAll(undoTree.getAppliedPath());
+      List<UndoQueueCommand> redoPath = undoTree.getRedoPath();
+      Collections.reverse(redoPath);
+      redoStack.addAll(redoPath);
+      undoTree = null;
+    }
+  }
+
+  boolean isUndoTreeEnabled()
+  {
+    return undoTree != null;
+  }
+
+  /**
+   * Returns the number of operations that can be undone or redone, counting all branches of
+   * the undo tree if it is enabled.
+   *
+   * @return The size of the undo history.
+   */
+  int getUndoHistorySize()
+  {
+    if (undoTree != null)
+    {
+      return undoTree.getNumberOfNodes();
+    }
+
+    return undoStack.size() + redoStack.size();
+  }
+
+  /**
+   * Returns the number of operations that successive undos would undo.
+   *
+   * @return The undo depth.
+   */
+  int getUndoDepth()
+  {
+    return undoTree != null ? undoTree.getUndoDepth() : undoStack.size();
+  }
+
+  /**
+   * Returns the number of operations that successive redos would redo.
+   *
+   * @return The redo depth.
+   */
+  int getRedoDepth()
+  {
+    return undoTree != null ? undoTree.getRedoDepth() : redoStack.size();
+  }
+
+  /**
+   * Estimates the heap used by the undo history, counting all branches of the undo tree if it is
+   * enabled. A shape is counted once for every command that refers to it, also if the document
+   * refers to it as well, so the estimate tells how much the history holds on to rather than
+   * how much would be freed without it.
+   *
+   * @return The estimated number of bytes.
+   */
+  long estimateUndoHistoryBytes()
+  {
+    List<UndoQueueCommand> commands = new ArrayList<>();
+    if (undoTree != null)
+    {
+      commands.addAll(undoTree.getCommands());
+    }
+    else
+    {
+      commands.addAll(undoStack);
+      commands.addAll(redoStack);
+    }
+
+    long bytes = 0;
+    for (UndoQueueCommand command : commands)
+    {
+      bytes += command.estimateBytes();
+    }
+
+    return bytes;
+  }
+
+  /**
+   * Determines if the undo tree contains another branch than the one leading to the current state.
+   *
+   * @return true if there is another branch to switch to.
+   */
+  boolean hasOtherUndoBranches()
+  {
+    return undoTree != null && undoTree.hasOtherBranches();
+  }
+
+  /**
+   * Switches to the tip of an adjacent branch of the undo tree.
+   *
+   * @param direction 1 for the next branch, -1 for the previous one.
+   * @throws IllegalStateException If the undo tree is not enabled or has no other branch.
+   */
+  void switchToAdjacentUndoBranch(int direction)
+  {
+    if (undoTree == null)
+    {
+      throw new IllegalStateException("The undo tree is not enabled!");
+    }
+
+    FlightRecorderEvents.UndoEvent event = new FlightRecorderEvents.UndoEvent();
+    event.begin();
+    undoTree.switchToAdjacentBranch(direction, this::executeUndoCommand);
+    commitUndoEvent(event, "switch branch");
+  }
+
+  /**
+   * Returns true if a shape is selected.
+   *
+   * @return true if a shape is selected.
+   */
+  boolean isAShapeSelected()
+  {
+    return !selection.isEmpty();
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  // 
+  // PRIVATE METHODS.
+  // 
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP 
+
+  /**
+   * Records the command that undoes an operation that just has been performed.
+   *
+   * @param undoCommand The command that undoes the operation.
+   */
+  private void pushUndoCommand(UndoQueueCommand undoCommand)
   {
-    if (shapeToDisplayWhenResizing == null)
+    if (undoTree != null)
     {
-      throw new IllegalStateException("No resize operation is ongoing!");
+      undoTree.add(undoCommand);
+    }
+    else
+    {
+      undoStack.push(undoCommand);
     }
+  }
 
-    // Tell the shape to calculate its new coordinates based on the
-    // delta it has moved.
-    shapeToDisplayWhenResizing.incorporateResizeVector();
+  private void removeShapes(List<DrawableShape> shapes)
+  {
+    List<DrawableShape>  shapesToRemove = new ArrayList<>(shapes);
+    removeShapesDoNotAddToAnyStack(shapesToRemove);
 
-    // Create UndoCommand so that we can undo the resize.
-    ShapeTupleList stl = new ShapeTupleList();
-    stl.add(new ShapeTuple(shapeToDisplayWhenResizing, originalShapeBeforeResizing));
-    undoStack.push(new UndoQueueCommand(OperationType.REPLACE, stl));
-    resetResizeCache();
+    pushUndoCommand(new UndoQueueCommand(OperationType.ADD, shapesToRemove));
   }
 
   /**
-   * Returns the topmost shape in which the specified point is included in either a resize area or in the
-   * actual shape.
+   * Removes the specified shapes from the managed list. Removes a single shape by searching from the end
+   * and several shapes in one pass over the list.
    *
-   * @param point The point to check.
-   * @param shouldIncludeResizeAreas true if resize areas should be included in the search.
-   * @return Tuple containing the topmost shape that includes point in either resize area or actual shape,
-   *         or null if point is not included in any shape. The dragType of the returned tuple indicates if the
-   *         point was included in a resize area or in the actual shape.
+   * @param shapesToRemove The shapes to remove.
+   * @return The shapes that actually were removed, in the order they were in the managed list.
    */
-  ShapeAndDragTypeTuple findTopmostShapeThatIncludesPoint(CoordinatePair point,
-                                                                  boolean shouldIncludeResizeAreas)
+  private List<DrawableShape> removeShapesDoNotAddToAnyStack(List<DrawableShape> shapesToRemove)
   {
-    for (DrawableShape shape : getShapesInReverseOrder())
+    List<DrawableShape> removedShapes = new ArrayList<>(shapesToRemove.size());
+    IndexList removedIndices = new IndexList();
+    if (shapesToRemove.size() == 1)
     {
-      if (shouldIncludeResizeAreas && shape.isPointInResizeArea(point))
+      int index = removeLastOccurrence(shapesToRemove.get(0));
+      if (index >= 0)
       {
-        return new ShapeAndDragTypeTuple(shape, DragType.RESIZE);
+        removedShapes.add(shapesToRemove.get(0));
+        removedIndices.add(index);
+        shapeLeft(shapesToRemove.get(0), false);
       }
+    }
+    else
+    {
+      Set<DrawableShape> setOfShapesToRemove = Collections.newSetFromMap(new IdentityHashMap<DrawableShape, Boolean>());
+      setOfShapesToRemove.addAll(shapesToRemove);
 
-      if (shape.isPointIncluded(point))
+      List<DrawableShape> remainingShapes = new ArrayList<>(shapes.size());
+      for (DrawableShape shape : shapes)
       {
-        return new ShapeAndDragTypeTuple(shape, DragType.MOVE);
+        if (setOfShapesToRemove.contains(shape))
+        {
+          removedIndices.add(remainingShapes.size() + removedShapes.size());
+          removedShapes.add(shape);
+          shapeLeft(shape, false);
+        }
+        else
+        {
+          remainingShapes.add(shape);
+        }
       }
+      shapes = remainingShapes;
+      shapesShared = false;
+    }
+
+    shapesToReturn = Collections.unmodifiableList(shapes);
+    if (shapeChangeListener != null && !removedShapes.isEmpty())
+    {
+      shapeChangeListener.shapesRemoved(removedIndices.toArray());
     }
 
-    return null;
+    return removedShapes;
   }
 
+
   /**
-   * Selectes the specified shape.
+   * Removes a shape from the managed list. Searches from the end, as the shapes that are
+   * undone, redone and moved usually are the most recently added ones.
    *
-   * @param shapeToSelect The shape to select.
-   * @param unselectOtherSelectedShapes true if the currently selected shapes, if any, should be unselected.
+   * @param shape The shape to remove.
+   * @return The position the shape had, or -1 if the shape was not managed.
    */
-  void selectShape(DrawableShape shapeToSelect, boolean unselectOtherSelectedShapes)
+  private int removeLastOccurrence(DrawableShape shape)
   {
-    //----------------------------------------------------------
-    // The shape to select must be managed.
-    //----------------------------------------------------------
-    if (!shapes.contains(shapeToSelect))
+    int index = shapes.lastIndexOf(shape);
+    if (index >= 0)
     {
-      throw new IllegalArgumentException("The selected shape is not managed!");
+      prepareShapesForModification();
+      shapes.remove(index);
     }
 
-    //----------------------------------------------------------
-    // Unselect the currently selected shapes, if so indicated.
-    //----------------------------------------------------------
-    if (unselectOtherSelectedShapes)
+    return index;
+  }
+
+  private void addShapesDoNotAddToAnyStack(List<DrawableShape> shapes)
+  {
+    prepareShapesForModification();
+    this.shapes.addAll(shapes);
+    for (DrawableShape shape : shapes)
     {
-      unselectSelectedShapes();
+      shapeEntered(shape);
+      changeTracker.shapeAdded(shape.getShapeId());
     }
 
-    //----------------------------------------------------------
-    // Select the shape.
-    //----------------------------------------------------------
-    selectedShapes.add(shapeToSelect);
-    shapeToSelect.select();
+    shapesToReturn = Collections.unmodifiableList(this.shapes);
+    if (shapeChangeListener != null && !shapes.isEmpty())
+    {
+      shapeChangeListener.shapesAdded(shapes);
+    }
   }
 
   /**
-   * Unselectes all selcted shapes.
+   * Replaces the first shape of each tuple with the second one, keeping its position in the managed list.
+   * All replacements are done in one pass over the list.
    *
-   * @return true if a shape was unselected, false if not.
+   * @param replacements The shapes to replace and the shapes to replace them with.
    */
-  boolean unselectSelectedShapes()
+  private void replaceShapesDoNotAddToAnyStack(ShapeTupleList replacements)
   {
-    //----------------------------------------------------------
-    // Unselect the currently selected shape, if any.
-    //----------------------------------------------------------
-    if (!selectedShapes.isEmpty())
+    Map<DrawableShape, DrawableShape> replacementMap = new IdentityHashMap<>(replacements.size());
+    for (ShapeTuple shapeTuple : replacements)
+    {
+      replacementMap.put(shapeTuple.getFirstShape(), shapeTuple.getSecondShape());
+    }
+
+    IndexList replacedIndices = new IndexList();
+    List<DrawableShape> replacedShapes = new ArrayList<>(replacements.size());
+    prepareShapesForModification();
+    ListIterator<DrawableShape> iterator = shapes.listIterator();
+    while (iterator.hasNext() && !replacementMap.isEmpty())
     {
-      for (DrawableShape shape : selectedShapes)
+      DrawableShape shape = iterator.next();
+      DrawableShape replacement = replacementMap.remove(shape);
+      if (replacement != null)
       {
-        shape.unselect();
+        iterator.set(replacement);
+        shapeLeft(shape, true);
+        shapeEntered(replacement);
+        changeTracker.shapeReplaced(shape.getShapeId(), replacement.getShapeId());
+        replacedIndices.add(iterator.previousIndex());
+        replacedShapes.add(replacement);
       }
-      selectedShapes.clear();
+    }
 
-      return true;
+    // Shapes that are not managed any more are added on top, just like before.
+    List<DrawableShape> addedShapes = new ArrayList<>(replacementMap.values());
+    for (DrawableShape replacement : addedShapes)
+    {
+      shapes.add(replacement);
+      shapeEntered(replacement);
+      changeTracker.shapeAdded(replacement.getShapeId());
     }
+    shapesToReturn = Collections.unmodifiableList(shapes);
 
-    return false;
+    if (shapeChangeListener != null && !replacedShapes.isEmpty())
+    {
+      shapeChangeListener.shapesReplaced(replacedIndices.toArray(), replacedShapes);
+    }
+    if (shapeChangeListener != null && !addedShapes.isEmpty())
+    {
+      shapeChangeListener.shapesAdded(addedShapes);
+    }
   }
 
-  /**
-   * Unselects the specified selected shape.
-   *
-   * @param shapeToUnselect The shape to unselect.
-   */
-  private void unselectSelectedShape(DrawableShape shapeToUnselect)
+  private void addShapeDoNotAddToAnyStack(DrawableShape shape)
   {
-    selectedShapes.remove(shapeToUnselect);
-    shapeToUnselect.unselect();
+    prepareShapesForModification();
+    shapes.add(shape);
+    shapeEntered(shape);
+    changeTracker.shapeAdded(shape.getShapeId());
+    shapesToReturn = Collections.unmodifiableList(shapes);
+    if (shapeChangeListener != null)
+    {
+      shapeChangeListener.shapesAdded(Collections.singletonList(shape));
+    }
   }
 
   /**
-   * Returs of copy of the set containg selected shapes.
+   * Must be called when loaded shapes have been added. They are saved in the document, so they
+   * are not changes, unless changes were made before they were added.
    *
-   * @return A copy of the selected shapes set.
+   * @param unchanged true if no changes had been made before the shapes were added.
    */
-  private  Set<DrawableShape> getCopyOfSelectedShapesSet()
+  private void loadedShapesAdded(boolean unchanged)
   {
-    Set<DrawableShape> currentLySelectedShapes = new LinkedHashSet<>();
-    currentLySelectedShapes.addAll(selectedShapes);
-    return currentLySelectedShapes;
+    if (unchanged)
+    {
+      changeTracker.clearChanges();
+    }
+    else
+    {
+      // Shapes added during the load would not be in the same order in the document.
+      changeTracker.forgetChanges();
+    }
   }
 
   /**
-   * Returns the managed shapes in reverse order.
-   *
-   * @return The managed shapes in reverse order.
+   * Copies the list of shapes if it is shared with a snapshot. Must be called before the list is
+   * modified in place.
    */
-  List<DrawableShape> getShapesInReverseOrder()
+  private void prepareShapesForModification()
   {
-    List<DrawableShape> copy = new ArrayList<>(shapes);
-    Collections.reverse(copy);
-
-    return copy;
+    if (shapesShared)
+    {
+      shapes = new ArrayList<>(shapes);
+      shapesShared = false;
+    }
   }
 
   /**
-   * Undos the last operation.
+   * Clones a shape. The clone keeps the ID of the shape, as it is meant to replace it.
+   *
+   * @param shape The shape to clone.
+   * @return The clone.
    */
-  void undoLastOperation()
+  private static DrawableShape cloneShape(DrawableShape shape)
   {
-    if (undoStack.isEmpty())
-    {
-      throw new IllegalStateException("The undo queue is empty!");
-    }
-
-    executeUndoCommandFromStack(undoStack, redoStack);
+    DrawableShape clone = shape.createClone();
+    clone.setShapeId(shape.getShapeId());
+    return clone;
   }
 
   /**
-   * Redos the last operation.
+   * Estimates the heap used by a shape. Freehand points that are still encoded take their
+   * encoded length; decoded ones take an object each.
+   *
+   * @param shape The shape.
+   * @return The estimated number of bytes.
    */
-  void redoLastOperation()
+  private static long estimateBytes(DrawableShape shape)
   {
-    if (redoStack.isEmpty())
+    long bytes = SHAPE_BYTES;
+    if (shape instanceof FreehandShape)
     {
-      throw new IllegalStateException("The redo stack is empty!");
+      List<CoordinatePair> points = ((FreehandShape)shape).getCoordinatePoints();
+      if (points instanceof EncodedPointList)
+      {
+        bytes += ((EncodedPointList)points).getEncodedLength();
+      }
+      else
+      {
+        bytes += (long)points.size() * DECODED_POINT_BYTES;
+      }
     }
 
-    executeUndoCommandFromStack(redoStack, undoStack);
+    return bytes;
   }
 
   /**
-   * Determines if there is at least one shape in the redo list.
+   * Determines if the specified shape is managed. O(1), unlike searching the list of shapes.
    *
-   * @return true if there is at least one shape in the redo list, false if not.
+   * @param shape The shape to check.
+   * @return true if shape is managed.
    */
-  boolean hasAtLeastOneShapeInUndoStack()
+  private boolean isManaged(DrawableShape shape)
   {
-    return !undoStack.isEmpty();
+    int shapeId = shape.getShapeId();
+    return shapeId > 0 && shapeId < shapesById.size() && shapesById.get(shapeId) == shape;
   }
 
   /**
-   * Determines if there is at least one shape in the redo list.
+   * Must be called when a shape has been put in the managed list. Gives the shape an ID, if it does
+   * not have a unique one, and marks it as selected if its ID is selected.
    *
-   * @return true if there is at least one shape in the redo list, false if not.
+   * @param shape The shape that has been put in the list.
    */
-  boolean hasAtLeastOneShapeInRedoStack()
+  private void shapeEntered(DrawableShape shape)
   {
-    return !redoStack.isEmpty();
+    int shapeId = shape.getShapeId();
+    if (shapeId <= 0 || managedShapeIds.get(shapeId))
+    {
+      shapeId = nextShapeId++;
+      shape.setShapeId(shapeId);
+    }
+    nextShapeId = Math.max(nextShapeId, shapeId + 1);
+
+    managedShapeIds.set(shapeId);
+    spatialIndex.add(shapeId, shape.getBounds());
+    while (shapesById.size() <= shapeId)
+    {
+      shapesById.add(null);
+    }
+    shapesById.set(shapeId, shape);
+
+    updateSelectionMark(shape);
   }
 
   /**
-   * Returns true if a shape is selected.
+   * Must be called when a shape has been taken out of the managed list.
    *
-   * @return true if a shape is selected.
+   * @param shape The shape that has been taken out of the list.
+   * @param isReplaced true if the shape is replaced by a shape with the same ID, which then should
+   *                   keep the selection.
    */
-  boolean isAShapeSelected()
-  {
-    return !selectedShapes.isEmpty();
-  }
-
-  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
-  // 
-  // PRIVATE METHODS.
-  // 
-  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP 
-
-  private void removeShapes(Set<DrawableShape> shapes)
+  private void shapeLeft(DrawableShape shape, boolean isReplaced)
   {
-    List<DrawableShape>  shapesToRemove = new ArrayList<>(shapes);
-    removeShapesDoNotAddToAnyStack(shapesToRemove);
-
-    undoStack.push(new UndoQueueCommand(OperationType.ADD, shapesToRemove));
-  }
+    int shapeId = shape.getShapeId();
+    managedShapeIds.clear(shapeId);
+    shapesById.set(shapeId, null);
+    spatialIndex.remove(shapeId);
 
-  private void removeShapesDoNotAddToAnyStack(List<DrawableShape> shapesToRemove)
-  {
-    for (DrawableShape shape : shapesToRemove)
+    if (!isReplaced)
     {
-      shapes.remove(shape);
+      selection.remove(shapeId);
+      changeTracker.shapeRemoved(shapeId);
     }
-
-    shapesToReturn = Collections.unmodifiableList(shapes);
-  }
-
-  private void removeShapeDoNotAddToAnyStack(DrawableShape shape)
-  {
-    shapes.remove(shape);
-    shapesToReturn = Collections.unmodifiableList(shapes);
   }
 
-  private void addShapesDoNotAddToAnyStack(List<DrawableShape> shapes)
+  /**
+   * Updates the selection marks of the managed shapes with the specified IDs so that they
+   * reflect the selection.
+   *
+   * @param shapeIds The IDs of the shapes to update.
+   */
+  private void updateSelectionMarks(BitSet shapeIds)
   {
-      for (DrawableShape shape : shapes)
+    for (int shapeId = shapeIds.nextSetBit(0); shapeId >= 0; shapeId = shapeIds.nextSetBit(shapeId + 1))
+    {
+      DrawableShape shape = shapeId < shapesById.size() ? shapesById.get(shapeId) : null;
+      if (shape != null)
       {
-        addShapeDoNotAddToAnyStack(shape);
+        updateSelectionMark(shape);
       }
+    }
   }
 
-  private void addShapeDoNotAddToAnyStack(DrawableShape shape)
-  {
-    addShapeDoNotAddToAnyStack(shape, -1);
-  }
-
-  private void addShapeDoNotAddToAnyStack(DrawableShape shape, int index)
+  /**
+   * The shapes mark themselves as selected when drawn. Updates the mark of a shape so that it
+   * reflects the selection.
+   *
+   * @param shape The shape to update.
+   */
+  private void updateSelectionMark(DrawableShape shape)
   {
-    if (index < 0 || index >= shapes.size())
+    if (selection.contains(shape.getShapeId()))
     {
-      shapes.add(shape);
+      shape.select();
     }
     else
     {
-      shapes.add(index, shape);
+      shape.unselect();
     }
-
-    shapesToReturn = Collections.unmodifiableList(shapes);
   }
 
-
   /**
    * Removes all shapes.
    */
   void removeAllShapes()
   {
+    if (shapesShared)
+    {
+      shapes = new ArrayList<>();
+      shapesShared = false;
+    }
     shapes.clear();
     shapesToReturn = Collections.emptyList();
+    selection.clear();
+    managedShapeIds.clear();
+    shapesById.clear();
+    spatialIndex.clear();
+    changeTracker.forgetChanges();
     undoStack.clear();
     redoStack.clear();
+    if (undoTree != null)
+    {
+      undoTree = new UndoTree<>();
+    }
+
+    if (shapeChangeListener != null)
+    {
+      shapeChangeListener.allShapesRemoved();
+    }
   }
 
   private void executeUndoCommandFromStack(Stack<UndoQueueCommand> stackToExecuteCommandFrom, 
@@ -504,36 +1387,53 @@ class ShapeManager
       throw new IllegalStateException("The stack is empty!");
     }
 
-    UndoQueueCommand undoStackCommand = stackToExecuteCommandFrom.pop();
+    stackToAddInverseTo.push(executeUndoCommand(stackToExecuteCommandFrom.pop()));
+  }
+
+  private void commitUndoEvent(FlightRecorderEvents.UndoEvent event, String operation)
+  {
+    if (event.shouldCommit())
+    {
+      event.operation = operation;
+      event.numberOfShapes = shapes.size();
+      event.commit();
+    }
+  }
+
+  /**
+   * Executes an undo (or redo) command.
+   *
+   * @param undoStackCommand The command to execute.
+   * @return The command that reverses the executed one.
+   */
+  private UndoQueueCommand executeUndoCommand(UndoQueueCommand undoStackCommand)
+  {
     List<DrawableShape> shapes = undoStackCommand.getShapes();
     switch (undoStackCommand.getOperationType())
     {
       case ADD:
         addShapesDoNotAddToAnyStack(shapes);
-        stackToAddInverseTo.push(new UndoQueueCommand(OperationType.REMOVE, shapes));
-        break;
+        return new UndoQueueCommand(OperationType.REMOVE, shapes);
       case REMOVE:
         removeShapesDoNotAddToAnyStack(shapes);
-        stackToAddInverseTo.push(new UndoQueueCommand(OperationType.ADD, shapes));
-        break;
+        return new UndoQueueCommand(OperationType.ADD, shapes);
     case REPLACE:
       ShapeTupleList shapeTupleList= undoStackCommand.getShapeTupleList();
-      for (ShapeTuple shapeTuple : shapeTupleList)
-      {
-        DrawableShape shapeToReplace = shapeTuple.getFirstShape();
-        DrawableShape shapeToReplaceWith = shapeTuple.getSecondShape();
-        int indexOfPrimaryShape = shapes.indexOf(shapeToReplace);
-
-        removeShapeDoNotAddToAnyStack(shapeToReplace);
-        addShapeDoNotAddToAnyStack(shapeToReplaceWith, indexOfPrimaryShape);
+      replaceShapesDoNotAddToAnyStack(shapeTupleList);
 
-      }
       // Just revert the shape lists in order to create the inverse operation.
-      stackToAddInverseTo.push(new UndoQueueCommand(OperationType.REPLACE, shapeTupleList.swapItemsInTuples()));
-
-      break;
+      return new UndoQueueCommand(OperationType.REPLACE, shapeTupleList.swapItemsInTuples());
+    case COMPOUND:
+      // Undo the parts in reverse order. The inverse then redoes them in the original order.
+      List<UndoQueueCommand> subCommands = undoStackCommand.getSubCommands();
+      List<UndoQueueCommand> inverseSubCommands = new ArrayList<>(subCommands.size());
+      for (int i = subCommands.size() - 1; i >= 0; i--)
+      {
+        inverseSubCommands.add(executeUndoCommand(subCommands.get(i)));
+      }
+      return new UndoQueueCommand(inverseSubCommands);
     default:
-      System.out.println("DEFAULT"); 
+      throw new IllegalStateException("Unknown operation type: " + undoStackCommand.getOperationType());
     }
   }
 
@@ -542,7 +1442,7 @@ class ShapeManager
    */
   private void resetMoveCache()
   {
-    movedShapes.clear();
+    moveTranslationVector = null;
     ongoingDragOperation = null;
   }
 
@@ -585,6 +1485,7 @@ class ShapeManager
     private final OperationType operationType;
     private final List<DrawableShape> shapes = new ArrayList<>();
     private final ShapeTupleList shapeTupleList = new ShapeTupleList();
+    private final List<UndoQueueCommand> subCommands = new ArrayList<>();
 
     private UndoQueueCommand(OperationType operationType,
                              List<DrawableShape> shapes)
@@ -606,6 +1507,17 @@ class ShapeManager
       this.shapeTupleList.initializeFrom(shapeTupleList);
     }
 
+    /**
+     * Creates a command consisting of several commands that are executed as one.
+     *
+     * @param subCommands The commands, in the order they are to be executed.
+     */
+    private UndoQueueCommand(List<UndoQueueCommand> subCommands)
+    {
+      this.operationType = OperationType.COMPOUND;
+      this.subCommands.addAll(subCommands);
+    }
+
 
     private OperationType getOperationType()
     {
@@ -621,6 +1533,36 @@ class ShapeManager
     {
       return shapeTupleList;
     }
+
+    private List<UndoQueueCommand> getSubCommands()
+    {
+      return subCommands;
+    }
+
+    /**
+     * Estimates the heap used by this command and the shapes it refers to.
+     *
+     * @return The estimated number of bytes.
+     */
+    private long estimateBytes()
+    {
+      long bytes = COMMAND_BYTES;
+      for (DrawableShape shape : shapes)
+      {
+        bytes += REFERENCE_BYTES + ShapeManager.estimateBytes(shape);
+      }
+      for (ShapeTuple shapeTuple : shapeTupleList)
+      {
+        bytes += 2 * REFERENCE_BYTES + ShapeManager.estimateBytes(shapeTuple.getFirstShape()) +
+          ShapeManager.estimateBytes(shapeTuple.getSecondShape());
+      }
+      for (UndoQueueCommand subCommand : subCommands)
+      {
+        bytes += REFERENCE_BYTES + subCommand.estimateBytes();
+      }
+
+      return bytes;
+    }
   }
 
   //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
@@ -779,4 +1721,32 @@ class ShapeManager
 
   }
 
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  // 
+  // INNER CLASS
+  // 
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH 
+
+  /**
+   * Growable list of positions in the list of shapes, without boxing.
+   */
+  private static class IndexList
+  {
+    private int[] indices = new int[4];
+    private int size;
+
+    private void add(int index)
+    {
+      if (size == indices.length)
+      {
+        indices = Arrays.copyOf(indices, size * 2);
+      }
+      indices[size++] = index;
+    }
+
+    private int[] toArray()
+    {
+      return Arrays.copyOf(indices, size);
+    }
+  }
 }
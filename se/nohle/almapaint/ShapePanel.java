@@ -21,6 +21,7 @@ package se.nohle.almapaint;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
+import java.util.BitSet;
 import java.util.List;
 
 /**
@@ -28,6 +29,10 @@ import java.util.List;
  */
 class ShapePanel extends JPanel
 {
+  /** Stroke used to draw the rectangle of a marquee selection. */
+  private static final Stroke MARQUEE_STROKE =
+    new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10, new float[] {4, 4}, 0);
+
   /** Manages the shapes that the user has drawn or loaded. */
   private ShapeManager shapeManager = new ShapeManager();
  
@@ -41,8 +46,29 @@ class ShapePanel extends JPanel
   private boolean dragStarted;  
   private FreehandShape freehandShapeUnderConstruction;
   private boolean dragOperationOfExistingShapeOngoing;
+
+  /** The area of the ongoing marquee selection. Null if no marquee selection is ongoing. */
+  private Rectangle marqueeArea;
+
+  /** The shapes that should stay selected during the ongoing marquee selection. */
+  private BitSet shapeIdsSelectedBeforeMarquee;
   private Callback callback;
 
+  /** Drawn beneath the shapes while a document is being loaded. Null if there is none. */
+  private Image placeholder;
+
+  /** The number of pixels of the placeholder per pixel of the panel. */
+  private double placeholderScale;
+
+  /** False while the shapes must not be changed by the user, such as while a document is loaded. */
+  private boolean editable = true;
+
+  /** Drawn on top of the shapes. Null if the performance overlay is turned off. */
+  private PerformanceHud performanceHud;
+
+  /** Redraws the performance overlay while nothing else is painted. */
+  private final Timer performanceHudTimer = new Timer(500, e -> repaint(performanceHud.getBounds()));
+
   /**
    * Constructor
    *
@@ -82,6 +108,63 @@ class ShapePanel extends JPanel
     this.strokeWidth = width;
   }
 
+  /**
+   * Sets an image to draw beneath the shapes, such as a thumbnail of a document that is being
+   * loaded. The image is scaled up to the size it was made from.
+   *
+   * @param placeholder The image, or null to draw none.
+   * @param scale The number of pixels of the image per pixel of the panel.
+   */
+  void setPlaceholder(Image placeholder, double scale)
+  {
+    this.placeholder = placeholder;
+    this.placeholderScale = scale;
+    repaint();
+  }
+
+  /**
+   * Sets whether the user may draw, select and move shapes with the mouse. A gesture that is
+   * ongoing when the panel is made uneditable is abandoned.
+   *
+   * @param editable true if the user may change the shapes.
+   */
+  void setEditable(boolean editable)
+  {
+    this.editable = editable;
+    if (!editable)
+    {
+      shapeUnderConstruction = null;
+      freehandShapeUnderConstruction = null;
+      dragStarted = false;
+      dragStartPoint = null;
+      dragOperationOfExistingShapeOngoing = false;
+      marqueeArea = null;
+      shapeIdsSelectedBeforeMarquee = null;
+      repaint();
+    }
+  }
+
+  /**
+   * Turns the performance overlay on or off. The statistics of the overlay start over each time
+   * it is turned on.
+   *
+   * @param visible true if the overlay should be drawn.
+   */
+  void setPerformanceHudVisible(boolean visible)
+  {
+    if (visible)
+    {
+      performanceHud = new PerformanceHud();
+      performanceHudTimer.start();
+    }
+    else
+    {
+      performanceHudTimer.stop();
+      performanceHud = null;
+    }
+    repaint();
+  }
+
   //----------------------------------------------------------
   // PACKAGE METHODS,
   //---------------------------------------------------------- 
@@ -95,6 +178,26 @@ class ShapePanel extends JPanel
     repaint();
   }
 
+  /**
+   * Selects all shapes.
+   */
+  void selectAllShapes()
+  {
+    shapeManager.selectAllShapes();
+    repaint();
+    callback.shapeSelectionChanged();
+  }
+
+  /**
+   * Selects the shapes that are not selected and unselects the ones that are.
+   */
+  void invertSelection()
+  {
+    shapeManager.invertSelection();
+    repaint();
+    callback.shapeSelectionChanged();
+  }
+
   /**
    * Removes all shapes.
    */
@@ -135,6 +238,71 @@ class ShapePanel extends JPanel
     callback.numberOfShapesHasChanged();
   }
 
+  /**
+   * Switches to the tip of an adjacent branch of the undo tree.
+   *
+   * @param direction 1 for the next branch, -1 for the previous one.
+   * @throws IllegalStateException If there is no other branch.
+   */
+  void switchToAdjacentUndoBranch(int direction)
+  {
+    shapeManager.switchToAdjacentUndoBranch(direction);
+    repaint();
+
+    // Tell the main frame that the number of shapes has changed.
+    callback.numberOfShapesHasChanged();
+  }
+
+  /**
+   * Turns the undo tree, which keeps every undo branch, on or off.
+   *
+   * @param enabled true if undo branches should be kept.
+   */
+  void setUndoTreeEnabled(boolean enabled)
+  {
+    shapeManager.setUndoTreeEnabled(enabled);
+  }
+
+  /**
+   * Returns the number of operations that successive undos would undo.
+   *
+   * @return The undo depth.
+   */
+  int getUndoDepth()
+  {
+    return shapeManager.getUndoDepth();
+  }
+
+  /**
+   * Returns the number of operations that successive redos would redo.
+   *
+   * @return The redo depth.
+   */
+  int getRedoDepth()
+  {
+    return shapeManager.getRedoDepth();
+  }
+
+  /**
+   * Estimates the heap used by the undo history.
+   *
+   * @return The estimated number of bytes.
+   */
+  long estimateUndoHistoryBytes()
+  {
+    return shapeManager.estimateUndoHistoryBytes();
+  }
+
+  /**
+   * Determines if there is another undo branch to switch to.
+   *
+   * @return true if there is another undo branch.
+   */
+  boolean hasOtherUndoBranches()
+  {
+    return shapeManager.hasOtherUndoBranches();
+  }
+
   void deleteSelectedShape()
   {
     shapeManager.removeSelectedShapes();
@@ -196,15 +364,166 @@ class ShapePanel extends JPanel
     callback.numberOfShapesHasChanged();
   }
 
+  /**
+   * Replaces the shape manager, and with it the shapes, the selection, the undo history, the
+   * tracked changes and the change listener. Used to load a document into a manager of its own,
+   * so that the document displayed before is kept intact, and can be put back as it was, until
+   * the load has succeeded. The new manager keeps undo branches if the replaced one did.
+   *
+   * @param shapeManager The manager to use from now on.
+   * @return The manager that was replaced.
+   */
+  ShapeManager replaceShapeManager(ShapeManager shapeManager)
+  {
+    ShapeManager replacedShapeManager = this.shapeManager;
+    shapeManager.setUndoTreeEnabled(replacedShapeManager.isUndoTreeEnabled());
+    this.shapeManager = shapeManager;
+    repaint();
+
+    callback.numberOfShapesHasChanged();
+    return replacedShapeManager;
+  }
+
+  /**
+   * Adds shapes after the current ones without making the addition undoable. Used when
+   * a document is loaded in batches. Unlike setShapes, the callback is not notified,
+   * so that the batches of a large document can be added cheaply.
+   *
+   * @param shapes The shapes to add.
+   */
+  void addLoadedShapes(List<DrawableShape> shapes)
+  {
+    shapeManager.addLoadedShapes(shapes);
+    repaint();
+  }
+
+  /**
+   * Inserts shapes among the current ones without making the insertion undoable. Used when
+   * the parts of a document are loaded out of order. Like addLoadedShapes, the callback is
+   * not notified.
+   *
+   * @param shapes The shapes to insert.
+   * @param indices The positions the shapes should have after the insertion, in ascending order.
+   */
+  void insertLoadedShapes(List<DrawableShape> shapes, int[] indices)
+  {
+    shapeManager.insertLoadedShapes(shapes, indices);
+    repaint();
+  }
+
+  /**
+   * Adds shapes on top of the current ones as part of an import that adds them in batches. The
+   * callback is not notified until the import has completed or been aborted.
+   *
+   * @param shapes The shapes to add.
+   */
+  void addImportedShapes(List<DrawableShape> shapes)
+  {
+    shapeManager.addImportedShapes(shapes);
+    repaint();
+  }
+
+  /**
+   * Makes the shapes added by an import undoable, as one operation.
+   */
+  void importCompleted()
+  {
+    shapeManager.importCompleted();
+    callback.numberOfShapesHasChanged();
+  }
+
+  /**
+   * Removes the shapes added by an import that has failed or been cancelled.
+   */
+  void importAborted()
+  {
+    shapeManager.importAborted();
+    repaint();
+    callback.numberOfShapesHasChanged();
+  }
+
+  /**
+   * Applies a batch of operations to the shapes. Results in one undo entry, one repaint
+   * and one change notification regardless of the size of the batch.
+   *
+   * @param batch The operations to apply.
+   */
+  void applyBatch(ShapeBatch batch)
+  {
+    shapeManager.applyBatch(batch);
+    repaint();
+
+    callback.numberOfShapesHasChanged();
+  }
+
+  /**
+   * Sets the listener to notify when the list of shapes changes.
+   *
+   * @param shapeChangeListener The listener, or null to notify none.
+   */
+  void setShapeChangeListener(ShapeChangeListener shapeChangeListener)
+  {
+    shapeManager.setShapeChangeListener(shapeChangeListener);
+  }
+
+  /**
+   * Returns an immutable snapshot of the shapes. Takes constant time, and the snapshot
+   * may be read by other threads.
+   *
+   * @return The snapshot.
+   */
+  List<DrawableShape> takeSnapshotOfShapes()
+  {
+    return shapeManager.takeSnapshotOfShapes();
+  }
+
+  /**
+   * Returns the changes made to the shapes since they were last taken, or since the shapes
+   * were marked as saved.
+   *
+   * @return The changes, or null if they are unknown.
+   */
+  ShapeChanges takeChanges()
+  {
+    return shapeManager.takeChanges();
+  }
+
+  /**
+   * Regards the current shapes as saved, so that only changes made from now on are tracked.
+   */
+  void markShapesAsSaved()
+  {
+    shapeManager.markShapesAsSaved();
+  }
+
+  /**
+   * Regards all shapes as changed, so that the next save has to save all of them.
+   */
+  void markAllShapesAsChanged()
+  {
+    shapeManager.markAllShapesAsChanged();
+  }
+
   /**
    * Returns the sum of the hash codes of the shapes.
    *
    * @return The sum of the hash codes of the shapes. 
    */
   int hashCodeOfShapes()
+  {
+    return hashCodeOfShapes(shapeManager.getShapes());
+  }
+
+  /**
+   * Returns the sum of the hash codes of the specified shapes.
+   *
+   * @param shapes The shapes.
+   * @return The sum of the hash codes of the shapes. 
+   */
+  static int hashCodeOfShapes(List<DrawableShape> shapes)
   {
     int sum = 0;
-    for (DrawableShape shape : shapeManager.getShapes())
+    for (DrawableShape shape : shapes)
     {
       sum += shape.hashCode();
     }
@@ -405,18 +724,24 @@ class ShapePanel extends JPanel
    * If a shape was selected prior to starting the drag operation,
    * this method moves that shape by an amount indicate by the vector beteween
    * the drag start point and the point specified when calling this method.
+   * If the drag started on empty space, a marquee selection is made instead.
    *
    *@param point The current mouse pointer position.
+   *@param addToSelection true if a marquee selection should add to the current selection.
    */
-  private void handleDragOfExistingShape(CoordinatePair point)
+  private void handleDragOfExistingShape(CoordinatePair point, boolean addToSelection)
   {
-    if (!dragOperationOfExistingShapeOngoing)
+    if (!dragOperationOfExistingShapeOngoing && marqueeArea == null)
     {
       if (shapeManager.handleDragOfExistingShape(point))
       {
         dragOperationOfExistingShapeOngoing = true;
         callback.shapeSelectionChanged();
       }
+      else
+      {
+        startMarqueeSelection(addToSelection);
+      }
     }
     
 
@@ -427,6 +752,35 @@ class ShapePanel extends JPanel
       shapeManager.dragOperationShapeHasBeenDragged(translationVector);
       repaint();
     }
+    else
+    {
+      updateMarqueeSelection(point);
+    }
+  }
+
+  /**
+   * Starts a marquee selection at the drag start point.
+   *
+   * @param addToSelection true if the currently selected shapes should stay selected.
+   */
+  private void startMarqueeSelection(boolean addToSelection)
+  {
+    shapeIdsSelectedBeforeMarquee = addToSelection ? shapeManager.getSelectedShapeIds() : new BitSet();
+    marqueeArea = new Rectangle(dragStartPoint.x, dragStartPoint.y, 0, 0);
+  }
+
+  /**
+   * Stretches the marquee to the specified point and selects the shapes it covers. The selection
+   * is found through the spatial index of the shape manager, so this is cheap enough to do on every drag event.
+   *
+   * @param point The current mouse pointer position.
+   */
+  private void updateMarqueeSelection(CoordinatePair point)
+  {
+    marqueeArea = new Rectangle(Math.min(dragStartPoint.x, point.x), Math.min(dragStartPoint.y, point.y),
+      Math.abs(point.x - dragStartPoint.x), Math.abs(point.y - dragStartPoint.y));
+    shapeManager.selectShapesInArea(marqueeArea, shapeIdsSelectedBeforeMarquee);
+    repaint();
   }
 
   /**
@@ -472,17 +826,101 @@ class ShapePanel extends JPanel
   @Override
   public void paintComponent(Graphics g)
   {
+    FlightRecorderEvents.PaintEvent event = new FlightRecorderEvents.PaintEvent();
+    event.begin();
+    long startTime = System.nanoTime();
+
     super.paintComponent(g);
+    StartupTimer.painted();
+
+    if (placeholder != null)
+    {
+      Graphics2D g2 = (Graphics2D)g.create();
+      g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g2.scale(1 / placeholderScale, 1 / placeholderScale);
+      g2.drawImage(placeholder, 0, 0, null);
+      g2.dispose();
+    }
 
-    for (DrawableShape shape : shapeManager.getShapes())
+    // Shapes outside of the area to paint are not drawn. The selected shapes are drawn
+    // translated while they are being moved, so they are checked against the area translated back.
+    Rectangle clip = g.getClipBounds();
+    CoordinatePair moveTranslationVector = shapeManager.getMoveTranslationVector();
+    Rectangle movedClip = null;
+    if (clip != null && moveTranslationVector != null)
+    {
+      movedClip = new Rectangle(clip);
+      movedClip.translate(-moveTranslationVector.x, -moveTranslationVector.y);
+    }
+    List<DrawableShape> shapes = shapeManager.getShapes();
+    int numberOfCulledShapes = 0;
+    long numberOfFreehandPoints = 0;
+    for (DrawableShape shape : shapes)
     {
-      shape.draw(g);
+      if (performanceHud != null && shape instanceof FreehandShape)
+      {
+        numberOfFreehandPoints += ((FreehandShape)shape).getNumberOfPoints();
+      }
+
+      boolean moved = moveTranslationVector != null && shapeManager.isShapeSelected(shape);
+      if (clip != null && !shapeManager.isShapeBeingResized(shape) &&
+          !(moved ? movedClip : clip).intersects(shape.getBounds()))
+      {
+        numberOfCulledShapes++;
+        continue;
+      }
+
+      if (moved)
+      {
+        g.translate(moveTranslationVector.x, moveTranslationVector.y);
+        shape.draw(g);
+        g.translate(-moveTranslationVector.x, -moveTranslationVector.y);
+      }
+      else
+      {
+        shape.draw(g);
+      }
     }
 
     if (shapeUnderConstruction != null)
     {
       shapeUnderConstruction.draw(g);
     }
+
+    if (marqueeArea != null)
+    {
+      Graphics2D g2 = (Graphics2D)g;
+      g2.setColor(Color.GRAY);
+      g2.setStroke(MARQUEE_STROKE);
+      g2.drawRect(marqueeArea.x, marqueeArea.y, marqueeArea.width, marqueeArea.height);
+    }
+
+    // The timer that refreshes the performance overlay only repaints the area below it. Those
+    // paints are not counted, or the overlay would mostly measure itself.
+    long paintNanos = System.nanoTime() - startTime;
+    boolean onlyPerformanceHudRepainted = performanceHud != null && clip != null &&
+      performanceHud.getBounds().contains(clip);
+    if (!onlyPerformanceHudRepainted)
+    {
+      EditorMetrics.PAINT_LATENCY.record(paintNanos);
+    }
+
+    if (performanceHud != null)
+    {
+      if (!onlyPerformanceHudRepainted)
+      {
+        performanceHud.paintCompleted(paintNanos, shapes.size() - numberOfCulledShapes,
+          numberOfCulledShapes, numberOfFreehandPoints);
+      }
+      performanceHud.draw(g, shapeManager.getUndoHistorySize(), shapeManager.getLastHitTestNanos());
+    }
+
+    if (event.shouldCommit())
+    {
+      event.numberOfShapes = shapes.size();
+      event.numberOfCulledShapes = numberOfCulledShapes;
+      event.commit();
+    }
   }
 
   //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
@@ -505,18 +943,31 @@ class ShapePanel extends JPanel
     @Override
     public void mousePressed(MouseEvent e)
     {
+      if (!editable)
+      {
+        return;
+      }
       dragStartPoint = new CoordinatePair(e.getX(), e.getY());
     }
 
     @Override
     public void mouseReleased(MouseEvent e)
     {
+      if (!editable)
+      {
+        return;
+      }
       if (dragStarted)
       {
         if (dragOperationOfExistingShapeOngoing) // A move has ended.
         {
           shapeManager.dragOfExistingShapeCompleted();
         }
+        else if (marqueeArea != null) // A marquee selection has ended.
+        {
+          repaint();
+          callback.shapeSelectionChanged();
+        }
         else
         {
           // Not move => unselect the selected shape, if any.
@@ -554,12 +1005,18 @@ class ShapePanel extends JPanel
       dragStartPoint = null;
       freehandShapeUnderConstruction = null;
       dragOperationOfExistingShapeOngoing = false;
+      marqueeArea = null;
+      shapeIdsSelectedBeforeMarquee = null;
     }
 
 
     @Override
     public void mouseDragged(MouseEvent e)
     {
+      if (!editable)
+      {
+        return;
+      }
       dragStarted = true;
       if (isRectangleShapeSelected())
       {
@@ -579,7 +1036,7 @@ class ShapePanel extends JPanel
       }
       else if (isMoveToolSelected())
       {
-        handleDragOfExistingShape(new CoordinatePair(e.getX() - 1, e.getY() - 1));
+        handleDragOfExistingShape(new CoordinatePair(e.getX() - 1, e.getY() - 1), e.isControlDown());
       }      
     }
   }
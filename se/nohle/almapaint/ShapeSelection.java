@@ -0,0 +1,91 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.util.BitSet;
+
+/**
+ * The set of selected shapes, stored as a bit set over shape IDs. Membership tests are O(1)
+ * and bulk operations work on whole words of IDs at a time.
+ */
+class ShapeSelection
+{
+  private final BitSet selectedIds = new BitSet();
+
+  boolean contains(int shapeId)
+  {
+    return selectedIds.get(shapeId);
+  }
+
+  void add(int shapeId)
+  {
+    selectedIds.set(shapeId);
+  }
+
+  void remove(int shapeId)
+  {
+    selectedIds.clear(shapeId);
+  }
+
+  /**
+   * Selects all the specified IDs, keeping the IDs that already are selected.
+   *
+   * @param shapeIds The IDs to select.
+   */
+  void addAll(BitSet shapeIds)
+  {
+    selectedIds.or(shapeIds);
+  }
+
+  /**
+   * Inverts the selection within the specified universe of IDs. IDs outside of it are unselected.
+   *
+   * @param allShapeIds The IDs of all shapes that can be selected.
+   */
+  void invert(BitSet allShapeIds)
+  {
+    selectedIds.xor(allShapeIds);
+    selectedIds.and(allShapeIds);
+  }
+
+  void clear()
+  {
+    selectedIds.clear();
+  }
+
+  boolean isEmpty()
+  {
+    return selectedIds.isEmpty();
+  }
+
+  int size()
+  {
+    return selectedIds.cardinality();
+  }
+
+  /**
+   * Returns a copy of the selected IDs.
+   *
+   * @return A copy of the selected IDs.
+   */
+  BitSet toBitSet()
+  {
+    return (BitSet)selectedIds.clone();
+  }
+}
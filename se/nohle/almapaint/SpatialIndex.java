@@ -0,0 +1,301 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.awt.Rectangle;
+import java.util.*;
+
+/**
+ * Spatial index over the bounds of shapes, keyed by shape ID. The plane is divided into a grid
+ * of square cells and every shape is registered in the cells its bounds overlap. A range query
+ * then only has to look at the shapes in the cells that the queried area overlaps.
+ *
+ * Shapes so large that they would be registered in very many cells are kept in a separate
+ * set that every query checks.
+ *
+ * Every shape remembers where in each of its cells its ID is, so that it is removed without
+ * searching the cells. Moving or deleting many shapes in a crowded area would otherwise take
+ * time in proportion to the square of their number.
+ */
+class SpatialIndex
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  private static final int CELL_SIZE = 128;
+  private static final int MAX_NUMBER_OF_CELLS_PER_SHAPE = 64;
+
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  private final Map<Long, Cell> cells = new HashMap<>();
+  private final List<Rectangle> boundsById = new ArrayList<>();
+
+  /**
+   * The slot the ID of each shape has in each of its cells, row by row from the top left cell.
+   * Null for shapes that are not in any cell.
+   */
+  private final List<int[]> slotsById = new ArrayList<>();
+  private final BitSet oversizedShapeIds = new BitSet();
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Adds a shape to the index.
+   *
+   * @param shapeId The ID of the shape.
+   * @param bounds The bounds of the shape.
+   */
+  void add(int shapeId, Rectangle bounds)
+  {
+    while (boundsById.size() <= shapeId)
+    {
+      boundsById.add(null);
+      slotsById.add(null);
+    }
+    boundsById.set(shapeId, bounds);
+
+    if (isOversized(bounds))
+    {
+      oversizedShapeIds.set(shapeId);
+      return;
+    }
+
+    int[] slots = new int[numberOfCells(bounds)];
+    int cellIndex = 0;
+    for (int cellY = firstCell(bounds.y); cellY <= lastCell(bounds.y, bounds.height); cellY++)
+    {
+      for (int cellX = firstCell(bounds.x); cellX <= lastCell(bounds.x, bounds.width); cellX++)
+      {
+        Long key = cellKey(cellX, cellY);
+        Cell cell = cells.get(key);
+        if (cell == null)
+        {
+          cell = new Cell();
+          cells.put(key, cell);
+        }
+        slots[cellIndex++] = cell.add(shapeId);
+      }
+    }
+    slotsById.set(shapeId, slots);
+  }
+
+  /**
+   * Removes a shape from the index. Does nothing if the shape is not indexed.
+   *
+   * @param shapeId The ID of the shape.
+   */
+  void remove(int shapeId)
+  {
+    Rectangle bounds = shapeId < boundsById.size() ? boundsById.get(shapeId) : null;
+    if (bounds == null)
+    {
+      return;
+    }
+    boundsById.set(shapeId, null);
+
+    if (oversizedShapeIds.get(shapeId))
+    {
+      oversizedShapeIds.clear(shapeId);
+      return;
+    }
+
+    int[] slots = slotsById.set(shapeId, null);
+    int cellIndex = 0;
+    for (int cellY = firstCell(bounds.y); cellY <= lastCell(bounds.y, bounds.height); cellY++)
+    {
+      for (int cellX = firstCell(bounds.x); cellX <= lastCell(bounds.x, bounds.width); cellX++)
+      {
+        Long key = cellKey(cellX, cellY);
+        Cell cell = cells.get(key);
+        int slot = slots[cellIndex++];
+        int movedShapeId = cell.remove(slot);
+        if (movedShapeId >= 0)
+        {
+          Rectangle movedBounds = boundsById.get(movedShapeId);
+          int movedCellIndex = (cellY - firstCell(movedBounds.y)) *
+            (lastCell(movedBounds.x, movedBounds.width) - firstCell(movedBounds.x) + 1) +
+            cellX - firstCell(movedBounds.x);
+          slotsById.get(movedShapeId)[movedCellIndex] = slot;
+        }
+        else if (cell.size == 0)
+        {
+          cells.remove(key);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the IDs of the shapes whose bounds intersect, or are contained in, the specified area.
+   *
+   * @param area The area to query.
+   * @return The IDs of the shapes intersecting area.
+   */
+  BitSet findShapesIntersecting(Rectangle area)
+  {
+    BitSet result = new BitSet();
+
+    long numberOfCells = (long)(lastCell(area.x, area.width) - firstCell(area.x) + 1) *
+      (lastCell(area.y, area.height) - firstCell(area.y) + 1);
+    if (numberOfCells > cells.size())
+    {
+      // Cheaper to look at every occupied cell than at every cell of the area.
+      for (Cell cell : cells.values())
+      {
+        addIntersectingShapes(cell, area, result);
+      }
+    }
+    else
+    {
+      for (int cellY = firstCell(area.y); cellY <= lastCell(area.y, area.height); cellY++)
+      {
+        for (int cellX = firstCell(area.x); cellX <= lastCell(area.x, area.width); cellX++)
+        {
+          Cell cell = cells.get(cellKey(cellX, cellY));
+          if (cell != null)
+          {
+            addIntersectingShapes(cell, area, result);
+          }
+        }
+      }
+    }
+
+    for (int shapeId = oversizedShapeIds.nextSetBit(0); shapeId >= 0;
+         shapeId = oversizedShapeIds.nextSetBit(shapeId + 1))
+    {
+      if (boundsById.get(shapeId).intersects(area))
+      {
+        result.set(shapeId);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Removes all shapes from the index.
+   */
+  void clear()
+  {
+    cells.clear();
+    boundsById.clear();
+    slotsById.clear();
+    oversizedShapeIds.clear();
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PRIVATE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  private void addIntersectingShapes(Cell cell, Rectangle area, BitSet result)
+  {
+    for (int i = 0; i < cell.size; i++)
+    {
+      int shapeId = cell.shapeIds[i];
+      if (!result.get(shapeId) && boundsById.get(shapeId).intersects(area))
+      {
+        result.set(shapeId);
+      }
+    }
+  }
+
+  private static boolean isOversized(Rectangle bounds)
+  {
+    long numberOfCells = (long)(lastCell(bounds.x, bounds.width) - firstCell(bounds.x) + 1) *
+      (lastCell(bounds.y, bounds.height) - firstCell(bounds.y) + 1);
+    return numberOfCells > MAX_NUMBER_OF_CELLS_PER_SHAPE;
+  }
+
+  /**
+   * Returns the number of cells the bounds of a shape that is not oversized overlap.
+   */
+  private static int numberOfCells(Rectangle bounds)
+  {
+    return (lastCell(bounds.x, bounds.width) - firstCell(bounds.x) + 1) *
+      (lastCell(bounds.y, bounds.height) - firstCell(bounds.y) + 1);
+  }
+
+  private static int firstCell(int coordinate)
+  {
+    return Math.floorDiv(coordinate, CELL_SIZE);
+  }
+
+  private static int lastCell(int coordinate, int length)
+  {
+    return Math.floorDiv(coordinate + Math.max(length, 0), CELL_SIZE);
+  }
+
+  private static Long cellKey(int cellX, int cellY)
+  {
+    return ((long)cellX << 32) | (cellY & 0xffffffffL);
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  //
+  // INNER CLASS
+  //
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+
+  /**
+   * The IDs of the shapes overlapping one cell of the grid.
+   */
+  private static class Cell
+  {
+    private int[] shapeIds = new int[4];
+    private int size;
+
+    /**
+     * Adds an ID.
+     *
+     * @return The slot of the ID.
+     */
+    private int add(int shapeId)
+    {
+      if (size == shapeIds.length)
+      {
+        shapeIds = Arrays.copyOf(shapeIds, size * 2);
+      }
+      shapeIds[size] = shapeId;
+      return size++;
+    }
+
+    /**
+     * Removes the ID in a slot by moving the last ID into its place.
+     *
+     * @return The ID that was moved into the slot, or -1 if the removed ID was the last one.
+     */
+    private int remove(int slot)
+    {
+      if (slot == --size)
+      {
+        return -1;
+      }
+
+      shapeIds[slot] = shapeIds[size];
+      return shapeIds[slot];
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import javax.swing.SwingUtilities;
+
+/**
+ * Records when the phases of the startup of the application are reached, so that the time to
+ * the first paint of the window can be followed. If the system property almapaint.startupTimes
+ * is true, the times are printed, counted from the start of the JVM.
+ *
+ * Recording a phase only reads the clock. The start time of the JVM is only looked up when the
+ * times are printed, as the management classes that know it take long to load.
+ */
+class StartupTimer
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  private static final boolean PRINT = Boolean.getBoolean("almapaint.startupTimes");
+
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  private static final List<String> phases = new ArrayList<>();
+  private static final List<Long> times = new ArrayList<>();
+
+  /** Run on the EDT after the first paint. Null if there is nothing to run. */
+  private static Runnable firstPaintCallback;
+  private static boolean painted;
+
+  private StartupTimer()
+  {
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Records that a phase of the startup has been reached.
+   *
+   * @param phase The name of the phase.
+   */
+  static synchronized void mark(String phase)
+  {
+    times.add(System.nanoTime());
+    phases.add(phase);
+  }
+
+  /**
+   * Sets what to do once the window has been painted, such as work that is not needed to
+   * show it.
+   *
+   * @param callback Run on the EDT after the first paint.
+   */
+  static synchronized void setFirstPaintCallback(Runnable callback)
+  {
+    firstPaintCallback = callback;
+  }
+
+  /**
+   * Called on the EDT whenever the drawing area is painted. Records the first paint.
+   */
+  static void painted()
+  {
+    if (painted)
+    {
+      return;
+    }
+    painted = true;
+
+    mark("first paint");
+    Runnable callback;
+    synchronized (StartupTimer.class)
+    {
+      callback = firstPaintCallback;
+      firstPaintCallback = null;
+    }
+    if (callback != null)
+    {
+      // Let the paint complete first.
+      SwingUtilities.invokeLater(callback);
+    }
+  }
+
+  /**
+   * Prints the time from the start of the JVM to each phase, if the system property
+   * almapaint.startupTimes is true.
+   */
+  static synchronized void print()
+  {
+    if (!PRINT)
+    {
+      return;
+    }
+
+    long now = System.nanoTime();
+    long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+    StringBuilder report = new StringBuilder("Startup times (ms since JVM start):");
+    for (int i = 0; i < phases.size(); i++)
+    {
+      report.append(String.format(Locale.ROOT, "%n  %-16s %6d", phases.get(i),
+        uptime - (now - times.get(i)) / 1000000));
+    }
+    System.err.println(report);
+  }
+}
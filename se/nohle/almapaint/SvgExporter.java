@@ -0,0 +1,266 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Exports shapes as an SVG image. The elements are written straight to a buffered writer as the
+ * shapes are walked, without building a document in memory, so the memory used does not depend
+ * on the number of shapes or points.
+ *
+ * Consecutive shapes with the same color and stroke width are put in a group that carries the
+ * color and the stroke width, so that the elements of the shapes only have their coordinates.
+ * The strokes are given the caps and joins of a java.awt.BasicStroke, so that the image looks
+ * like the shapes do in the application.
+ */
+class SvgExporter
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  private final Writer writer;
+
+  /** Used to format ints without creating strings. Large enough for Integer.MIN_VALUE. */
+  private final char[] digits = new char[11];
+
+  /** The color and stroke width of the open group. The color is null if no group is open. */
+  private Color groupColor;
+  private int groupStrokeWidth;
+
+  private SvgExporter(Writer writer)
+  {
+    this.writer = writer;
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Exports shapes to an SVG file.
+   *
+   * @param file The file to export to.
+   * @param shapes The shapes to export, in the order they are drawn.
+   * @param size The size of the image. Shapes outside of it are clipped.
+   */
+  static void export(File file, List<DrawableShape> shapes, Dimension size)
+    throws IOException
+  {
+    try (Writer writer = new BufferedWriter(
+           new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8), BUFFER_SIZE))
+    {
+      new SvgExporter(writer).writeDocument(shapes, size);
+    }
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PRIVATE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  private void writeDocument(List<DrawableShape> shapes, Dimension size)
+    throws IOException
+  {
+    writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    writer.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"");
+    writeInt(size.width);
+    writer.write("\" height=\"");
+    writeInt(size.height);
+    writer.write("\" viewBox=\"0 0 ");
+    writeInt(size.width);
+    writer.write(' ');
+    writeInt(size.height);
+    // The caps, joins and miter limit of a BasicStroke.
+    writer.write("\" fill=\"none\" stroke-linecap=\"square\" stroke-linejoin=\"miter\" stroke-miterlimit=\"10\">\n");
+
+    for (DrawableShape shape : shapes)
+    {
+      writeShape(shape);
+    }
+
+    if (groupColor != null)
+    {
+      writer.write("</g>\n");
+    }
+    writer.write("</svg>\n");
+  }
+
+  private void writeShape(DrawableShape shape)
+    throws IOException
+  {
+    if (shape instanceof RectangleShape)
+    {
+      RectangleShape rectangle = (RectangleShape)shape;
+      if (rectangle.getWidth() < 0 || rectangle.getHeight() < 0)
+      {
+        // Not drawn by Graphics either.
+        return;
+      }
+      startElement(shape, "<rect x=\"");
+      writeInt(rectangle.getTopLeftX());
+      writer.write("\" y=\"");
+      writeInt(rectangle.getTopLeftY());
+      writer.write("\" width=\"");
+      writeInt(rectangle.getWidth());
+      writer.write("\" height=\"");
+      writeInt(rectangle.getHeight());
+      endElement(rectangle.isFilled());
+    }
+    else if (shape instanceof LineShape)
+    {
+      LineShape line = (LineShape)shape;
+      startElement(shape, "<line x1=\"");
+      writeInt(line.getStartX());
+      writer.write("\" y1=\"");
+      writeInt(line.getStartY());
+      writer.write("\" x2=\"");
+      writeInt(line.getEndX());
+      writer.write("\" y2=\"");
+      writeInt(line.getEndY());
+      endElement(false);
+    }
+    else if (shape instanceof CircleShape)
+    {
+      CircleShape circle = (CircleShape)shape;
+      startElement(shape, "<circle cx=\"");
+      writeInt(circle.getCenterPoint().x);
+      writer.write("\" cy=\"");
+      writeInt(circle.getCenterPoint().y);
+      writer.write("\" r=\"");
+      writeInt(circle.getRadius());
+      endElement(circle.isFilled());
+    }
+    else if (shape instanceof FreehandShape)
+    {
+      List<CoordinatePair> points = ((FreehandShape)shape).getCoordinatePoints();
+      if (points.size() < 2)
+      {
+        // A single point draws no line.
+        return;
+      }
+      startElement(shape, "<polyline points=\"");
+      boolean first = true;
+      for (CoordinatePair point : points)
+      {
+        if (!first)
+        {
+          writer.write(' ');
+        }
+        writeInt(point.x);
+        writer.write(',');
+        writeInt(point.y);
+        first = false;
+      }
+      endElement(false);
+    }
+  }
+
+  /**
+   * Starts the element of a shape, first starting a new group if the shape has another color
+   * or stroke width than the shapes of the open group.
+   *
+   * @param shape The shape.
+   * @param start The start of the element, up to the value of its first attribute.
+   */
+  private void startElement(DrawableShape shape, String start)
+    throws IOException
+  {
+    Color color = shape.getColor();
+    if (!color.equals(groupColor) || shape.getStrokeWidth() != groupStrokeWidth)
+    {
+      if (groupColor != null)
+      {
+        writer.write("</g>\n");
+      }
+      groupColor = color;
+      groupStrokeWidth = shape.getStrokeWidth();
+
+      // The color is set as the current color, so that filled shapes can refer to it.
+      writer.write("<g color=\"#");
+      writeHexByte(color.getRed());
+      writeHexByte(color.getGreen());
+      writeHexByte(color.getBlue());
+      writer.write("\" stroke=\"currentColor\" stroke-width=\"");
+      writeInt(groupStrokeWidth);
+      if (color.getAlpha() != 255)
+      {
+        // Applied to each element on its own, like the alpha of a color is by Graphics.
+        String opacity = Float.toString(color.getAlpha() / 255f);
+        writer.write("\" stroke-opacity=\"");
+        writer.write(opacity);
+        writer.write("\" fill-opacity=\"");
+        writer.write(opacity);
+      }
+      writer.write("\">\n");
+    }
+
+    writer.write(start);
+  }
+
+  /**
+   * Ends the element of a shape.
+   *
+   * @param filled true if the shape is filled. Graphics does not stroke a filled shape.
+   */
+  private void endElement(boolean filled)
+    throws IOException
+  {
+    writer.write(filled ? "\" fill=\"currentColor\" stroke=\"none\"/>\n" : "\"/>\n");
+  }
+
+  private void writeInt(int value)
+    throws IOException
+  {
+    long remaining = Math.abs((long)value);
+    int start = digits.length;
+    do
+    {
+      digits[--start] = (char)('0' + remaining % 10);
+      remaining /= 10;
+    }
+    while (remaining != 0);
+
+    if (value < 0)
+    {
+      digits[--start] = '-';
+    }
+    writer.write(digits, start, digits.length - start);
+  }
+
+  private void writeHexByte(int value)
+    throws IOException
+  {
+    writer.write(Character.forDigit(value >> 4, 16));
+    writer.write(Character.forDigit(value & 0xf, 16));
+  }
+}
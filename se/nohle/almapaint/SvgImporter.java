@@ -0,0 +1,805 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.awt.Color;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Imports shapes from an SVG image. The image is parsed on the calling thread with a streaming
+ * StAX reader, and the shapes are handed over to a listener in batches as they are created, so
+ * that they can be added while the rest of the image is parsed. No document is built in memory
+ * and no more than a batch of shapes is kept.
+ *
+ * Rectangles, circles, lines, polylines, polygons and paths consisting of straight segments
+ * are imported. A polyline, polygon or path becomes a freehand shape per subpath. Paths with
+ * curves and other elements are skipped, and so are the contents of elements that are not
+ * rendered, such as defs. The presentation attributes and style properties color, fill,
+ * stroke, stroke-width and the opacities are used, inherited as in SVG. Of the transforms,
+ * only translations are applied. As the shapes of the application are either filled or
+ * stroked, a rectangle or circle with a fill is imported as filled with the fill color.
+ */
+class SvgImporter
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** A paint that refers to the color property. */
+  private static final Color CURRENT_COLOR = new Color(0, 0, 0);
+
+  /** Elements whose contents are not rendered. */
+  private static final Set<String> NON_RENDERED_ELEMENTS = new HashSet<>(Arrays.asList(
+    "defs", "symbol", "clipPath", "mask", "pattern", "marker", "linearGradient", "radialGradient",
+    "filter", "metadata", "title", "desc", "style", "script"));
+
+  private static final Map<String, Color> NAMED_COLORS = new HashMap<>();
+
+  //----------------------------------------------------------
+  // STATIC INITIALIZER.
+  //----------------------------------------------------------
+  static
+  {
+    NAMED_COLORS.put("black", Color.BLACK);
+    NAMED_COLORS.put("silver", new Color(0xc0c0c0));
+    NAMED_COLORS.put("gray", new Color(0x808080));
+    NAMED_COLORS.put("grey", new Color(0x808080));
+    NAMED_COLORS.put("white", Color.WHITE);
+    NAMED_COLORS.put("maroon", new Color(0x800000));
+    NAMED_COLORS.put("red", Color.RED);
+    NAMED_COLORS.put("purple", new Color(0x800080));
+    NAMED_COLORS.put("fuchsia", Color.MAGENTA);
+    NAMED_COLORS.put("magenta", Color.MAGENTA);
+    NAMED_COLORS.put("green", new Color(0x008000));
+    NAMED_COLORS.put("lime", Color.GREEN);
+    NAMED_COLORS.put("olive", new Color(0x808000));
+    NAMED_COLORS.put("yellow", Color.YELLOW);
+    NAMED_COLORS.put("navy", new Color(0x000080));
+    NAMED_COLORS.put("blue", Color.BLUE);
+    NAMED_COLORS.put("teal", new Color(0x008080));
+    NAMED_COLORS.put("aqua", Color.CYAN);
+    NAMED_COLORS.put("cyan", Color.CYAN);
+    NAMED_COLORS.put("orange", new Color(0xffa500));
+  }
+
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  /** The styles of the open elements, innermost first. */
+  private final Deque<Style> styles = new ArrayDeque<>();
+
+  private final FileChannel channel;
+  private final long numberOfBytes;
+  private final int batchSize;
+  private final ImportListener listener;
+  private List<DrawableShape> batch;
+  private int numberOfShapesImported;
+
+  /** True when the listener has stopped the import. */
+  private boolean stopped;
+
+  /**
+   * Constructor
+   *
+   * @param channel The file being imported, which the number of bytes read is taken from.
+   * @param batchSize The maximum number of shapes in a batch.
+   * @param listener The listener to hand the shapes over to.
+   */
+  private SvgImporter(FileChannel channel, int batchSize, ImportListener listener)
+    throws IOException
+  {
+    this.channel = channel;
+    this.numberOfBytes = channel.size();
+    this.batchSize = batchSize;
+    this.listener = listener;
+    this.batch = new ArrayList<>(batchSize);
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Imports the shapes of an SVG file and hands them over to a listener in batches, as they are
+   * created.
+   *
+   * @param file The file to import.
+   * @param batchSize The maximum number of shapes in a batch.
+   * @param listener The listener to hand the shapes over to.
+   * @return true if the whole file was imported, false if the listener stopped the import.
+   * @throws IOException If the file cannot be read or is not well-formed XML.
+   */
+  static boolean load(File file, int batchSize, ImportListener listener)
+    throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+    {
+      SvgImporter importer = new SvgImporter(channel, batchSize, listener);
+      importer.readElements(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+      if (!importer.stopped && !importer.batch.isEmpty())
+      {
+        // The reader may have closed the file at the end of the document.
+        importer.handOverBatch(importer.numberOfBytes);
+      }
+      return !importer.stopped;
+    }
+    catch (XMLStreamException e)
+    {
+      throw new IOException("Invalid SVG file: " + e.getMessage(), e);
+    }
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PRIVATE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  private void readElements(InputStream is)
+    throws XMLStreamException, IOException
+  {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    // SVG files may have a DOCTYPE, but nothing should be fetched because of it.
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    XMLStreamReader reader = factory.createXMLStreamReader(is);
+    try
+    {
+      styles.push(new Style());
+      // The number of open elements whose contents are not rendered.
+      int nonRenderedDepth = 0;
+      while (!stopped && reader.hasNext())
+      {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT)
+        {
+          Style style = styles.peek().derive(reader);
+          styles.push(style);
+          String name = reader.getLocalName();
+          if (nonRenderedDepth > 0 || NON_RENDERED_ELEMENTS.contains(name) || style.hidden)
+          {
+            nonRenderedDepth++;
+          }
+          else
+          {
+            readShapes(reader, name, style);
+          }
+        }
+        else if (event == XMLStreamConstants.END_ELEMENT)
+        {
+          styles.pop();
+          if (nonRenderedDepth > 0)
+          {
+            nonRenderedDepth--;
+          }
+        }
+      }
+    }
+    finally
+    {
+      reader.close();
+    }
+  }
+
+  /**
+   * Creates the shapes of an element, if it is a supported shape.
+   */
+  private void readShapes(XMLStreamReader reader, String name, Style style)
+    throws IOException
+  {
+    switch (name)
+    {
+      case "rect":
+      {
+        int width = Math.round(readLength(reader, "width"));
+        int height = Math.round(readLength(reader, "height"));
+        if (width > 0 && height > 0)
+        {
+          boolean filled = style.resolveFill() != null;
+          Color color = filled ? style.resolveFill() : style.resolveStroke();
+          if (color != null)
+          {
+            addShape(new RectangleShape(color, style.x(readLength(reader, "x")), style.y(readLength(reader, "y")),
+              width, height, filled, style.getStrokeWidth()));
+          }
+        }
+        break;
+      }
+      case "circle":
+      {
+        int radius = Math.round(readLength(reader, "r"));
+        if (radius > 0)
+        {
+          boolean filled = style.resolveFill() != null;
+          Color color = filled ? style.resolveFill() : style.resolveStroke();
+          if (color != null)
+          {
+            CoordinatePair center = new CoordinatePair(style.x(readLength(reader, "cx")), style.y(readLength(reader, "cy")));
+            addShape(new CircleShape(color, center, radius, filled, style.getStrokeWidth(), false));
+          }
+        }
+        break;
+      }
+      case "line":
+      {
+        Color color = style.resolveStroke();
+        if (color != null)
+        {
+          addShape(new LineShape(color, style.x(readLength(reader, "x1")), style.y(readLength(reader, "y1")),
+            style.x(readLength(reader, "x2")), style.y(readLength(reader, "y2")), style.getStrokeWidth(), false));
+        }
+        break;
+      }
+      case "polyline":
+      case "polygon":
+      {
+        Color color = style.resolveLineColor();
+        String points = reader.getAttributeValue(null, "points");
+        if (color != null && points != null)
+        {
+          List<CoordinatePair> coordinatePoints = new ArrayList<>();
+          NumberScanner scanner = new NumberScanner(points);
+          while (scanner.hasNumber())
+          {
+            float x = scanner.nextNumber();
+            if (!scanner.hasNumber())
+            {
+              break;
+            }
+            coordinatePoints.add(new CoordinatePair(style.x(x), style.y(scanner.nextNumber())));
+          }
+          if (name.equals("polygon") && !coordinatePoints.isEmpty())
+          {
+            coordinatePoints.add(coordinatePoints.get(0));
+          }
+          addFreehandShape(color, style.getStrokeWidth(), coordinatePoints);
+        }
+        break;
+      }
+      case "path":
+      {
+        Color color = style.resolveLineColor();
+        String data = reader.getAttributeValue(null, "d");
+        if (color != null && data != null)
+        {
+          readPath(data, color, style);
+        }
+        break;
+      }
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Creates a freehand shape of each subpath of a path. Nothing is created if the path has
+   * other than straight segments.
+   *
+   * @param data The path data.
+   * @param color The color of the shapes.
+   * @param style The style of the path.
+   */
+  private void readPath(String data, Color color, Style style)
+    throws IOException
+  {
+    List<List<CoordinatePair>> subpaths = new ArrayList<>();
+    List<CoordinatePair> points = null;
+    NumberScanner scanner = new NumberScanner(data);
+    char command = 0;
+    float x = 0;
+    float y = 0;
+    float startX = 0;
+    float startY = 0;
+    while (scanner.skipSeparators())
+    {
+      if (Character.isLetter(scanner.peek()))
+      {
+        command = scanner.nextCommand();
+        if (command == 'Z' || command == 'z')
+        {
+          // Close the subpath. Drawing on without moving starts a new one at the same point.
+          if (points != null)
+          {
+            points.add(new CoordinatePair(style.x(startX), style.y(startY)));
+          }
+          x = startX;
+          y = startY;
+          points = null;
+          continue;
+        }
+      }
+
+      boolean relative = Character.isLowerCase(command);
+      switch (Character.toUpperCase(command))
+      {
+        case 'M':
+          x = (relative ? x : 0) + scanner.nextNumber();
+          y = (relative ? y : 0) + scanner.nextNumber();
+          startX = x;
+          startY = y;
+          points = new ArrayList<>();
+          subpaths.add(points);
+          // Further coordinate pairs are lines.
+          command = relative ? 'l' : 'L';
+          break;
+        case 'L':
+          x = (relative ? x : 0) + scanner.nextNumber();
+          y = (relative ? y : 0) + scanner.nextNumber();
+          break;
+        case 'H':
+          x = (relative ? x : 0) + scanner.nextNumber();
+          break;
+        case 'V':
+          y = (relative ? y : 0) + scanner.nextNumber();
+          break;
+        default:
+          // A curve, or data before the first command.
+          return;
+      }
+      if (Float.isNaN(x) || Float.isNaN(y))
+      {
+        return;
+      }
+
+      if (points == null)
+      {
+        points = new ArrayList<>();
+        points.add(new CoordinatePair(style.x(startX), style.y(startY)));
+        subpaths.add(points);
+      }
+      if (points.isEmpty() || Character.toUpperCase(command) != 'M')
+      {
+        points.add(new CoordinatePair(style.x(x), style.y(y)));
+      }
+    }
+
+    for (List<CoordinatePair> subpath : subpaths)
+    {
+      addFreehandShape(color, style.getStrokeWidth(), subpath);
+    }
+  }
+
+  private void addFreehandShape(Color color, int strokeWidth, List<CoordinatePair> points)
+    throws IOException
+  {
+    // A single point draws no line.
+    if (points.size() >= 2)
+    {
+      addShape(new FreehandShape(color, strokeWidth, points));
+    }
+  }
+
+  private void addShape(DrawableShape shape)
+    throws IOException
+  {
+    if (stopped)
+    {
+      return;
+    }
+
+    batch.add(shape);
+    if (batch.size() == batchSize)
+    {
+      handOverBatch(channel.position());
+    }
+  }
+
+  private void handOverBatch(long numberOfBytesRead)
+  {
+    numberOfShapesImported += batch.size();
+    stopped = !listener.shapesImported(batch, numberOfShapesImported, numberOfBytesRead, numberOfBytes);
+    batch = new ArrayList<>(batchSize);
+  }
+
+  /**
+   * Reads a coordinate or length attribute. Units are ignored.
+   *
+   * @return The value, or 0 if the attribute is missing or invalid.
+   */
+  private static float readLength(XMLStreamReader reader, String attributeName)
+  {
+    return parseLength(reader.getAttributeValue(null, attributeName), 0);
+  }
+
+  private static float parseLength(String value, float defaultValue)
+  {
+    if (value == null)
+    {
+      return defaultValue;
+    }
+
+    NumberScanner scanner = new NumberScanner(value);
+    float length = scanner.nextNumber();
+    return Float.isNaN(length) ? defaultValue : length;
+  }
+
+  /**
+   * Parses a color.
+   *
+   * @return The color, null for none, CURRENT_COLOR for currentColor, or defaultColor if the
+   *         value is not understood.
+   */
+  private static Color parseColor(String value, Color defaultColor)
+  {
+    value = value.trim();
+    try
+    {
+      if (value.equals("none") || value.equals("transparent"))
+      {
+        return null;
+      }
+      if (value.equals("currentColor"))
+      {
+        return CURRENT_COLOR;
+      }
+      if (value.startsWith("#") && value.length() == 7)
+      {
+        return new Color(Integer.parseInt(value.substring(1), 16));
+      }
+      if (value.startsWith("#") && value.length() == 4)
+      {
+        int rgb = Integer.parseInt(value.substring(1), 16);
+        return new Color(((rgb >> 8) & 0xf) * 0x11, ((rgb >> 4) & 0xf) * 0x11, (rgb & 0xf) * 0x11);
+      }
+      if (value.startsWith("rgb(") && value.endsWith(")"))
+      {
+        NumberScanner scanner = new NumberScanner(value.substring(4, value.length() - 1));
+        return new Color(clamp(scanner.nextNumber()), clamp(scanner.nextNumber()), clamp(scanner.nextNumber()));
+      }
+    }
+    catch (IllegalArgumentException e)
+    {
+      return defaultColor;
+    }
+
+    Color color = NAMED_COLORS.get(value.toLowerCase());
+    return color != null ? color : defaultColor;
+  }
+
+  private static int clamp(float component)
+  {
+    return Float.isNaN(component) ? 0 : Math.max(0, Math.min(255, Math.round(component)));
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  //
+  // INNER INTERFACE
+  //
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+
+  /**
+   * Receives shapes while a file is being imported.
+   */
+  interface ImportListener
+  {
+    /**
+     * Called with each batch of imported shapes. Called on the thread that imports the file.
+     *
+     * @param shapes The shapes of the batch, in the order they are drawn.
+     * @param numberOfShapesImported The number of shapes imported so far, including this batch.
+     * @param numberOfBytesRead The number of bytes of the file read so far.
+     * @param numberOfBytes The size of the file.
+     * @return true to continue importing, false to stop.
+     */
+    boolean shapesImported(List<DrawableShape> shapes, int numberOfShapesImported, long numberOfBytesRead,
+                           long numberOfBytes);
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  //
+  // INNER CLASS
+  //
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+
+  /**
+   * The properties that apply to an element, the inherited ones and its own.
+   */
+  private static class Style
+  {
+    private Color color = Color.BLACK;
+    /** Null for none. */
+    private Color fill = Color.BLACK;
+    /** Null for none. */
+    private Color stroke;
+    private float strokeWidth = 1;
+    private float opacity = 1;
+    private float fillOpacity = 1;
+    private float strokeOpacity = 1;
+    private float translateX;
+    private float translateY;
+    private boolean hidden;
+
+    /**
+     * Creates the style of a child element.
+     *
+     * @param reader Reader positioned at the start of the child element.
+     * @return The style of the child.
+     */
+    private Style derive(XMLStreamReader reader)
+    {
+      Style style = new Style();
+      style.color = color;
+      style.fill = fill;
+      style.stroke = stroke;
+      style.strokeWidth = strokeWidth;
+      style.opacity = opacity;
+      style.fillOpacity = fillOpacity;
+      style.strokeOpacity = strokeOpacity;
+      style.translateX = translateX;
+      style.translateY = translateY;
+
+      String styleAttribute = null;
+      for (int i = 0; i < reader.getAttributeCount(); i++)
+      {
+        String name = reader.getAttributeLocalName(i);
+        if (name.equals("style"))
+        {
+          styleAttribute = reader.getAttributeValue(i);
+        }
+        else if (name.equals("transform"))
+        {
+          style.applyTransform(reader.getAttributeValue(i));
+        }
+        else
+        {
+          style.setProperty(name, reader.getAttributeValue(i));
+        }
+      }
+
+      // Style properties take precedence over presentation attributes.
+      if (styleAttribute != null)
+      {
+        for (String declaration : styleAttribute.split(";"))
+        {
+          int colon = declaration.indexOf(':');
+          if (colon > 0)
+          {
+            style.setProperty(declaration.substring(0, colon).trim(), declaration.substring(colon + 1).trim());
+          }
+        }
+      }
+
+      return style;
+    }
+
+    private void setProperty(String name, String value)
+    {
+      switch (name)
+      {
+        case "color":
+          Color parsedColor = parseColor(value, color);
+          color = parsedColor != null && parsedColor != CURRENT_COLOR ? parsedColor : color;
+          break;
+        case "fill":
+          fill = parseColor(value, fill);
+          break;
+        case "stroke":
+          stroke = parseColor(value, stroke);
+          break;
+        case "stroke-width":
+          strokeWidth = parseLength(value, strokeWidth);
+          break;
+        case "opacity":
+          // Not inherited in SVG, but the opacity of a group applies to its contents.
+          opacity *= parseLength(value, 1);
+          break;
+        case "fill-opacity":
+          fillOpacity = parseLength(value, fillOpacity);
+          break;
+        case "stroke-opacity":
+          strokeOpacity = parseLength(value, strokeOpacity);
+          break;
+        case "display":
+        case "visibility":
+          hidden |= value.equals("none") || value.equals("hidden");
+          break;
+        default:
+          break;
+      }
+    }
+
+    /**
+     * Applies the translations of a transform attribute. Other transforms are ignored.
+     */
+    private void applyTransform(String transform)
+    {
+      for (int start = transform.indexOf("translate("); start >= 0;
+           start = transform.indexOf("translate(", start + 1))
+      {
+        NumberScanner scanner = new NumberScanner(transform.substring(start + "translate(".length()));
+        float x = scanner.nextNumber();
+        float y = scanner.hasNumber() ? scanner.nextNumber() : 0;
+        if (!Float.isNaN(x) && !Float.isNaN(y))
+        {
+          translateX += x;
+          translateY += y;
+        }
+      }
+    }
+
+    private Color resolveFill()
+    {
+      return resolve(fill, fillOpacity);
+    }
+
+    private Color resolveStroke()
+    {
+      return resolve(stroke, strokeOpacity);
+    }
+
+    /**
+     * The color to draw a line-like shape with: the stroke, or else the fill.
+     */
+    private Color resolveLineColor()
+    {
+      Color resolvedStroke = resolveStroke();
+      return resolvedStroke != null ? resolvedStroke : resolveFill();
+    }
+
+    private Color resolve(Color paint, float paintOpacity)
+    {
+      if (paint == null)
+      {
+        return null;
+      }
+
+      Color resolvedColor = paint == CURRENT_COLOR ? color : paint;
+      int alpha = Math.round(255 * Math.max(0, Math.min(1, opacity * paintOpacity)));
+      return alpha == 255 ? resolvedColor :
+        new Color(resolvedColor.getRed(), resolvedColor.getGreen(), resolvedColor.getBlue(), alpha);
+    }
+
+    private int getStrokeWidth()
+    {
+      return Math.max(1, Math.round(strokeWidth));
+    }
+
+    private int x(float x)
+    {
+      return Math.round(x + translateX);
+    }
+
+    private int y(float y)
+    {
+      return Math.round(y + translateY);
+    }
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  //
+  // INNER CLASS
+  //
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+
+  /**
+   * Reads the numbers of an attribute such as the points of a polyline or the data of a path.
+   * Numbers are separated by white space or commas, or by nothing if the next one starts with
+   * a sign or, after a decimal point, with another decimal point.
+   */
+  private static class NumberScanner
+  {
+    private final String text;
+    private int position;
+
+    private NumberScanner(String text)
+    {
+      this.text = text;
+    }
+
+    /**
+     * Skips white space and commas.
+     *
+     * @return true if there is more to read.
+     */
+    private boolean skipSeparators()
+    {
+      while (position < text.length() &&
+             (Character.isWhitespace(text.charAt(position)) || text.charAt(position) == ','))
+      {
+        position++;
+      }
+
+      return position < text.length();
+    }
+
+    private char peek()
+    {
+      return text.charAt(position);
+    }
+
+    private char nextCommand()
+    {
+      return text.charAt(position++);
+    }
+
+    private boolean hasNumber()
+    {
+      if (!skipSeparators())
+      {
+        return false;
+      }
+      char c = peek();
+      return Character.isDigit(c) || c == '-' || c == '+' || c == '.';
+    }
+
+    /**
+     * Reads the next number. Anything right after the number, such as a unit, is left unread.
+     *
+     * @return The number, or NaN if there is no number next.
+     */
+    private float nextNumber()
+    {
+      if (!hasNumber())
+      {
+        return Float.NaN;
+      }
+
+      int start = position;
+      if (peek() == '-' || peek() == '+')
+      {
+        position++;
+      }
+      boolean decimalPoint = false;
+      while (position < text.length())
+      {
+        char c = text.charAt(position);
+        if (c == '.' && !decimalPoint)
+        {
+          decimalPoint = true;
+        }
+        else if ((c == 'e' || c == 'E') && position + 1 < text.length() &&
+                 (Character.isDigit(text.charAt(position + 1)) || text.charAt(position + 1) == '-' ||
+                  text.charAt(position + 1) == '+'))
+        {
+          position += 2;
+          while (position < text.length() && Character.isDigit(text.charAt(position)))
+          {
+            position++;
+          }
+          break;
+        }
+        else if (!Character.isDigit(c))
+        {
+          break;
+        }
+        position++;
+      }
+
+      try
+      {
+        return Float.parseFloat(text.substring(start, position));
+      }
+      catch (NumberFormatException e)
+      {
+        return Float.NaN;
+      }
+    }
+  }
+}
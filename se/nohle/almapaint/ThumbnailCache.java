@@ -0,0 +1,314 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+import javax.swing.SwingUtilities;
+
+/**
+ * On-disk cache of thumbnails of documents, so that a document can be previewed without loading
+ * it. The thumbnails are PNG images of the drawing area, at a fixed scale, kept in a directory in
+ * the home directory of the user.
+ *
+ * A thumbnail is stored under a hash of the path, the modification time and the size of the
+ * document, so a document that has been changed since its thumbnail was made does not find it.
+ * Such thumbnails are never used again and are evicted in time: when the cache grows beyond its
+ * size cap, the least recently used thumbnails are deleted. The modification time of a thumbnail
+ * is updated when its document is opened, which keeps track of the order in which they were used;
+ * showing a thumbnail in a menu or a preview does not count as a use.
+ */
+class ThumbnailCache
+{
+  //----------------------------------------------------------
+  // Constants
+  //----------------------------------------------------------
+  /** The number of pixels of a thumbnail per pixel of the drawing area. */
+  static final double SCALE = 1.0 / 8;
+
+  private static final Path CACHE_DIRECTORY = Paths.get(System.getProperty("user.home"), ".almapaint-thumbnails");
+  private static final long MAX_CACHE_SIZE = 16 * 1024 * 1024;
+  private static final String THUMBNAIL_SUFFIX = ".png";
+
+  /** Makes the thumbnails, one at a time, in the background. */
+  private static final ExecutorService GENERATOR = Executors.newSingleThreadExecutor(runnable ->
+    {
+      Thread thread = new Thread(runnable, "Thumbnail generator");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+  /**
+   * Reads the thumbnails, one at a time, in the background, so that the EDT never waits for the
+   * disk or for PNG decoding. Separate from the generator so that reads do not queue behind exports.
+   */
+  private static final ExecutorService LOADER = Executors.newSingleThreadExecutor(runnable ->
+    {
+      Thread thread = new Thread(runnable, "Thumbnail loader");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+  private ThumbnailCache()
+  {
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Reads the thumbnail of a document in the background, scaled down to fit in a square.
+   *
+   * @param document The document.
+   * @param maxSize The side of the square, in pixels, or 0 for the thumbnail as it is stored.
+   * @param markAsUsed If the thumbnail should count as used, for the eviction order. Only true when
+   *   the document is actually opened, not when its thumbnail is merely shown in a menu or preview.
+   * @param loadedCallback Run on the EDT with the thumbnail, or with null if there is no thumbnail
+   *   of the document as it is now.
+   */
+  static void load(File document, int maxSize, boolean markAsUsed, Consumer<BufferedImage> loadedCallback)
+  {
+    LOADER.execute(() ->
+      {
+        BufferedImage image = read(document, markAsUsed);
+        if (image != null && maxSize > 0)
+        {
+          image = scale(image, maxSize);
+        }
+        BufferedImage loadedImage = image;
+        SwingUtilities.invokeLater(() -> loadedCallback.accept(loadedImage));
+      });
+  }
+
+  /**
+   * Makes a thumbnail of a document in the background, unless it has one already.
+   *
+   * @param thumbnail The file the thumbnail goes in, from getThumbnailFile, as soon as the shapes
+   *   have been saved. The document may be saved again before the thumbnail is made, so the file
+   *   is not looked up from the document then.
+   * @param shapes The shapes of the document.
+   * @param size The size of the drawing area.
+   * @param generatedCallback Run on the EDT when the thumbnail has been made.
+   */
+  static void generate(Path thumbnail, List<DrawableShape> shapes, Dimension size, Runnable generatedCallback)
+  {
+    GENERATOR.execute(() ->
+      {
+        try
+        {
+          if (Files.isRegularFile(thumbnail))
+          {
+            return;
+          }
+
+          Files.createDirectories(CACHE_DIRECTORY);
+          Path temporaryFile = Files.createTempFile(CACHE_DIRECTORY, null, ".tmp");
+          try
+          {
+            PngExporter.export(temporaryFile.toFile(), shapes, size, SCALE);
+            Files.move(temporaryFile, thumbnail, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+          }
+          finally
+          {
+            Files.deleteIfExists(temporaryFile);
+          }
+
+          evictLeastRecentlyUsed();
+          SwingUtilities.invokeLater(generatedCallback);
+        }
+        catch (IOException | RuntimeException e)
+        {
+          e.printStackTrace();
+        }
+      });
+  }
+
+  /**
+   * Returns the file that holds the thumbnail of a document as it is now.
+   *
+   * @throws IOException If the attributes of the document cannot be read.
+   */
+  static Path getThumbnailFile(File document)
+    throws IOException
+  {
+    BasicFileAttributes attributes = Files.readAttributes(document.toPath(), BasicFileAttributes.class);
+    String key = document.getAbsolutePath() + '\n' + attributes.lastModifiedTime().toMillis() + '\n' +
+      attributes.size();
+
+    try
+    {
+      StringBuilder name = new StringBuilder();
+      for (byte b : MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8)))
+      {
+        name.append(String.format("%02x", b & 0xff));
+      }
+      return CACHE_DIRECTORY.resolve(name.append(THUMBNAIL_SUFFIX).toString());
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      // Every Java platform has SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PRIVATE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Returns the thumbnail of a document, or null if there is no thumbnail of the document as it is
+   * now.
+   */
+  private static BufferedImage read(File document, boolean markAsUsed)
+  {
+    try
+    {
+      Path thumbnail = getThumbnailFile(document);
+      if (!Files.isRegularFile(thumbnail))
+      {
+        EditorMetrics.THUMBNAIL_CACHE.miss();
+        return null;
+      }
+      if (markAsUsed)
+      {
+        Files.setLastModifiedTime(thumbnail, FileTime.fromMillis(System.currentTimeMillis()));
+      }
+      BufferedImage image = ImageIO.read(thumbnail.toFile());
+      if (image == null)
+      {
+        EditorMetrics.THUMBNAIL_CACHE.miss();
+        return null;
+      }
+      EditorMetrics.THUMBNAIL_CACHE.hit();
+      return image;
+    }
+    catch (IOException e)
+    {
+      // The document cannot be read, or the thumbnail has just been evicted.
+      EditorMetrics.THUMBNAIL_CACHE.miss();
+      return null;
+    }
+  }
+
+  /**
+   * Returns an image scaled down, keeping its proportions, to fit in a square. Images that already
+   * fit are returned as they are. The image is halved, bilinearly, until it is less than twice the
+   * final size, so that no source pixels are skipped.
+   */
+  private static BufferedImage scale(BufferedImage image, int maxSize)
+  {
+    double scale = Math.min((double) maxSize / image.getWidth(), (double) maxSize / image.getHeight());
+    if (scale >= 1)
+    {
+      return image;
+    }
+
+    int width = Math.max(1, (int) (image.getWidth() * scale));
+    int height = Math.max(1, (int) (image.getHeight() * scale));
+    BufferedImage scaledImage = image;
+    do
+    {
+      int stepWidth = Math.max(width, scaledImage.getWidth() / 2);
+      int stepHeight = Math.max(height, scaledImage.getHeight() / 2);
+      BufferedImage stepImage = new BufferedImage(stepWidth, stepHeight, BufferedImage.TYPE_INT_ARGB);
+      Graphics2D g2 = stepImage.createGraphics();
+      try
+      {
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2.drawImage(scaledImage, 0, 0, stepWidth, stepHeight, null);
+      }
+      finally
+      {
+        g2.dispose();
+      }
+      scaledImage = stepImage;
+    }
+    while (scaledImage.getWidth() > width || scaledImage.getHeight() > height);
+    return scaledImage;
+  }
+
+  /**
+   * Deletes the least recently used thumbnails until the cache is no larger than its cap.
+   */
+  private static void evictLeastRecentlyUsed()
+    throws IOException
+  {
+    List<Path> thumbnails;
+    try (Stream<Path> files = Files.list(CACHE_DIRECTORY))
+    {
+      thumbnails = files.filter(file -> file.getFileName().toString().endsWith(THUMBNAIL_SUFFIX))
+        .collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    long[] sizes = new long[thumbnails.size()];
+    FileTime[] lastUsedTimes = new FileTime[thumbnails.size()];
+    long cacheSize = 0;
+    for (int i = 0; i < thumbnails.size(); i++)
+    {
+      BasicFileAttributes attributes = Files.readAttributes(thumbnails.get(i), BasicFileAttributes.class);
+      sizes[i] = attributes.size();
+      lastUsedTimes[i] = attributes.lastModifiedTime();
+      cacheSize += sizes[i];
+    }
+
+    if (cacheSize <= MAX_CACHE_SIZE)
+    {
+      return;
+    }
+
+    List<Integer> leastRecentlyUsedFirst = new ArrayList<>(thumbnails.size());
+    for (int i = 0; i < thumbnails.size(); i++)
+    {
+      leastRecentlyUsedFirst.add(i);
+    }
+    leastRecentlyUsedFirst.sort(Comparator.comparing(i -> lastUsedTimes[i]));
+    for (int i : leastRecentlyUsedFirst)
+    {
+      if (cacheSize <= MAX_CACHE_SIZE)
+      {
+        break;
+      }
+      Files.deleteIfExists(thumbnails.get(i));
+      cacheSize -= sizes[i];
+    }
+  }
+}
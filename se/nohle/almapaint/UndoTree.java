@@ -0,0 +1,376 @@
+/*
+ Copyright 2012 Lars Nohle
+
+ This file is part of AlmaPaint.
+
+ AlmaPaint is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ AlmaPaint is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with AlmaPaint.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.nohle.almapaint;
+
+import java.util.*;
+
+/**
+ * A tree of undoable commands. In contrast to a pair of undo/redo stacks, nothing is
+ * lost when a new command is added after one or more undos: the new command simply
+ * becomes another child of the current node.
+ *
+ * Every node only knows its parent and its own command, so all branches share their
+ * common ancestry. A node holds exactly one command: the command that undoes it while
+ * the node is applied, and the command that redoes it while it is not.
+ *
+ * @param <T> The type of the commands.
+ */
+class UndoTree<T>
+{
+  //----------------------------------------------------------
+  // FIELDS
+  //----------------------------------------------------------
+  private final Node<T> root = new Node<>(null, null);
+  private Node<T> current = root;
+  private int numberOfNodes;
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PACKAGE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Adds a command for an operation that just has been performed. The new node becomes
+   * the current one. Any redo path from the previous current node is kept as a sibling branch.
+   *
+   * @param undoCommand The command that undoes the operation.
+   */
+  void add(T undoCommand)
+  {
+    Node<T> node = new Node<>(current, undoCommand);
+    current.children.add(node);
+    current.lastVisitedChild = node;
+    current = node;
+    numberOfNodes++;
+  }
+
+  /**
+   * Adds a chain of operations that are not applied below the current node. Used when
+   * a redo stack is converted to a tree.
+   *
+   * @param redoCommands The redo commands. The first one is the one to execute on the next redo.
+   */
+  void addRedoPath(List<T> redoCommands)
+  {
+    Node<T> parent = current;
+    for (T redoCommand : redoCommands)
+    {
+      Node<T> node = new Node<>(parent, redoCommand);
+      parent.children.add(node);
+      parent.lastVisitedChild = node;
+      parent = node;
+      numberOfNodes++;
+    }
+  }
+
+  /**
+   * Returns the undo commands of the applied nodes, the first applied operation first.
+   *
+   * @return The undo commands of the path from the root to the current node.
+   */
+  List<T> getAppliedPath()
+  {
+    List<T> path = new ArrayList<>(current.depth);
+    for (Node<T> node = current; node != root; node = node.parent)
+    {
+      path.add(node.command);
+    }
+    Collections.reverse(path);
+
+    return path;
+  }
+
+  /**
+   * Returns the redo commands that successive redos would execute, the first one first.
+   *
+   * @return The redo commands of the last visited path below the current node.
+   */
+  List<T> getRedoPath()
+  {
+    List<T> path = new ArrayList<>();
+    for (Node<T> node = current.lastVisitedChild; node != null; node = node.lastVisitedChild)
+    {
+      path.add(node.command);
+    }
+
+    return path;
+  }
+
+  boolean canUndo()
+  {
+    return current != root;
+  }
+
+  boolean canRedo()
+  {
+    return current.lastVisitedChild != null;
+  }
+
+  /**
+   * Returns true if the path from the root to the current node passes a node that
+   * has more than one child, i.e. if there is another branch to switch to.
+   *
+   * @return true if there is at least one other branch.
+   */
+  boolean hasOtherBranches()
+  {
+    return findClosestFork() != null;
+  }
+
+  int getNumberOfNodes()
+  {
+    return numberOfNodes;
+  }
+
+  /**
+   * Returns the number of operations that successive undos would undo.
+   *
+   * @return The length of the path from the root to the current node.
+   */
+  int getUndoDepth()
+  {
+    return current.depth;
+  }
+
+  /**
+   * Returns the number of operations that successive redos would redo.
+   *
+   * @return The length of the last visited path below the current node.
+   */
+  int getRedoDepth()
+  {
+    int redoDepth = 0;
+    for (Node<T> node = current.lastVisitedChild; node != null; node = node.lastVisitedChild)
+    {
+      redoDepth++;
+    }
+
+    return redoDepth;
+  }
+
+  /**
+   * Returns the commands of all nodes, in no particular order.
+   *
+   * @return The commands of all branches.
+   */
+  List<T> getCommands()
+  {
+    List<T> commands = new ArrayList<>(numberOfNodes);
+    Deque<Node<T>> nodesToVisit = new ArrayDeque<>(root.children);
+    while (!nodesToVisit.isEmpty())
+    {
+      Node<T> node = nodesToVisit.pop();
+      commands.add(node.command);
+      nodesToVisit.addAll(node.children);
+    }
+
+    return commands;
+  }
+
+  /**
+   * Undoes the current node and moves to its parent.
+   *
+   * @param executor Executes the undo command.
+   * @throws IllegalStateException If there is nothing to undo.
+   */
+  void undo(CommandExecutor<T> executor)
+  {
+    if (!canUndo())
+    {
+      throw new IllegalStateException("There is nothing to undo!");
+    }
+
+    current.command = executor.execute(current.command);
+    current.parent.lastVisitedChild = current;
+    current = current.parent;
+  }
+
+  /**
+   * Redoes the last visited child of the current node.
+   *
+   * @param executor Executes the redo command.
+   * @throws IllegalStateException If there is nothing to redo.
+   */
+  void redo(CommandExecutor<T> executor)
+  {
+    if (!canRedo())
+    {
+      throw new IllegalStateException("There is nothing to redo!");
+    }
+
+    applyChild(current.lastVisitedChild, executor);
+  }
+
+  /**
+   * Switches to the tip of the branch next to (or previous to) the one the current node is on,
+   * counting from the closest node above the current node where the tree forks.
+   *
+   * @param direction 1 for the next branch, -1 for the previous one.
+   * @param executor Executes the undo and redo commands needed to get there.
+   * @throws IllegalStateException If there is no other branch.
+   */
+  void switchToAdjacentBranch(int direction, CommandExecutor<T> executor)
+  {
+    Node<T> childOnPath = findClosestFork();
+    if (childOnPath == null)
+    {
+      throw new IllegalStateException("There is no other branch!");
+    }
+
+    List<Node<T>> siblings = childOnPath.parent.children;
+    int index = Math.floorMod(siblings.indexOf(childOnPath) + direction, siblings.size());
+    Node<T> target = siblings.get(index);
+    while (target.lastVisitedChild != null)
+    {
+      target = target.lastVisitedChild;
+    }
+
+    switchTo(target, executor);
+  }
+
+  /**
+   * Makes the specified node the current one. Undoes up to the closest common ancestor
+   * of the current node and the target, then redoes down to the target.
+   *
+   * @param target The node to switch to.
+   * @param executor Executes the undo and redo commands.
+   */
+  void switchTo(Node<T> target, CommandExecutor<T> executor)
+  {
+    Node<T> ancestor = findCommonAncestor(current, target);
+
+    while (current != ancestor)
+    {
+      undo(executor);
+    }
+
+    Deque<Node<T>> path = new ArrayDeque<>(target.depth - ancestor.depth);
+    for (Node<T> node = target; node != ancestor; node = node.parent)
+    {
+      path.push(node);
+    }
+
+    for (Node<T> node : path)
+    {
+      applyChild(node, executor);
+    }
+  }
+
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+  //
+  // PRIVATE METHODS.
+  //
+  //PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP
+
+  /**
+   * Redoes the specified child of the current node and makes it the current node.
+   */
+  private void applyChild(Node<T> child, CommandExecutor<T> executor)
+  {
+    child.command = executor.execute(child.command);
+    current.lastVisitedChild = child;
+    current = child;
+  }
+
+  /**
+   * Walks up from the current node to the closest node that has more than one child.
+   *
+   * @return The child of that node on the path to the current node, or null if there is no fork.
+   */
+  private Node<T> findClosestFork()
+  {
+    for (Node<T> node = current; node != root; node = node.parent)
+    {
+      if (node.parent.children.size() > 1)
+      {
+        return node;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the closest common ancestor of two nodes. Cost is proportional to the distance
+   * between the nodes, not to the size of the tree.
+   */
+  private static <T> Node<T> findCommonAncestor(Node<T> a, Node<T> b)
+  {
+    while (a.depth > b.depth)
+    {
+      a = a.parent;
+    }
+
+    while (b.depth > a.depth)
+    {
+      b = b.parent;
+    }
+
+    while (a != b)
+    {
+      a = a.parent;
+      b = b.parent;
+    }
+
+    return a;
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  //
+  // INNER INTERFACE
+  //
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+
+  /**
+   * Executes commands stored in the tree.
+   */
+  interface CommandExecutor<T>
+  {
+    /**
+     * Should execute the specified command.
+     *
+     * @param command The command to execute.
+     * @return The command that reverses the executed one.
+     */
+    T execute(T command);
+  }
+
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+  //
+  // INNER CLASS
+  //
+  //HHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHHH
+
+  static class Node<T>
+  {
+    private final Node<T> parent;
+    private final int depth;
+    private final List<Node<T>> children = new ArrayList<>(1);
+    private Node<T> lastVisitedChild;
+    private T command;
+
+    private Node(Node<T> parent, T command)
+    {
+      this.parent = parent;
+      this.depth = parent == null ? 0 : parent.depth + 1;
+      this.command = command;
+    }
+  }
+}